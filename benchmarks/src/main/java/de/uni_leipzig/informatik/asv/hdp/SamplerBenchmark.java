@@ -0,0 +1,138 @@
+package de.uni_leipzig.informatik.asv.hdp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.uni_leipzig.informatik.asv.hdp.HDPGibbsSampler.CountStorage;
+import de.uni_leipzig.informatik.asv.hdp.HDPGibbsSampler.Doc;
+import de.uni_leipzig.informatik.asv.hdp.HDPGibbsSampler.SamplingMethod;
+import de.uni_leipzig.informatik.asv.hdp.HDPGibbsSampler.Worker;
+import de.uni_leipzig.informatik.asv.utils.SyntheticCorpus;
+
+/**
+ * The hot paths of {@link HDPGibbsSampler}, on a {@link SyntheticCorpus}
+ * after some burn-in sweeps. Everything is seeded, so the same parameters give
+ * the same sampler state. Run with
+ * 
+ * <pre>
+ * java -jar target/benchmarks.jar SamplerBenchmark -p method=SPARSE
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SamplerBenchmark {
+
+	@Param({ "42" })
+	public long seed;
+	@Param({ "1000" })
+	public int documents;
+	@Param({ "1000", "10000" })
+	public int vocabulary;
+	@Param({ "100" })
+	public int documentLength;
+	@Param({ "10", "100" })
+	public int topics;
+	@Param({ "DENSE" })
+	public SamplingMethod method;
+	@Param({ "AUTO" })
+	public CountStorage storage;
+	@Param({ "20" })
+	public int burnIn;
+
+	private HDPGibbsSampler hdp;
+	private Worker worker;
+	/** the current word */
+	private int di, wi;
+
+	@Setup
+	public void setUp() throws IOException {
+		SyntheticCorpus corpus = new SyntheticCorpus(seed, documents,
+				vocabulary, documentLength, topics);
+		hdp = new HDPGibbsSampler(seed);
+		hdp.setSamplingMethod(method);
+		hdp.setCountStorage(storage);
+		hdp.addInstances(corpus.getDocuments(), vocabulary);
+		hdp.train(0, burnIn, new PrintStream(new ByteArrayOutputStream()));
+		worker = hdp.workers[0];
+		worker.adopt();
+		worker.sampleTable(0, 0); // for sampleTopic()
+	}
+
+	private void nextWord() {
+		if (++wi >= hdp.docs[di].documentLength) {
+			wi = 0;
+			di = (di + 1) % hdp.docs.length;
+		}
+	}
+
+	/** the dense table distribution of a word, without changing the state */
+	@Benchmark
+	public int sampleTable() {
+		nextWord();
+		return worker.sampleTable(di, wi);
+	}
+
+	/** the dense topic distribution of a new table */
+	@Benchmark
+	public int sampleTopic() {
+		return worker.sampleTopic();
+	}
+
+	/** takes a word from its table and puts it back */
+	@Benchmark
+	public void removeWordUpdateWord() {
+		Doc doc;
+		int ti;
+		do { // an emptied table can not be refilled
+			nextWord();
+			doc = hdp.docs[di];
+			ti = hdp.tableAssignments.get(doc.offset + wi);
+		} while (doc.wordCountByTable[ti] < 2);
+		int ki = doc.tableToTopic[ti];
+		worker.removeWord(di, wi);
+		worker.updateWord(di, wi, ti, ki);
+	}
+
+	/** one step of a sweep, with the sampling method */
+	@Benchmark
+	public void sampleWord() {
+		nextWord();
+		worker.sampleWord(di, wi);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void defragment() {
+		hdp.defragment();
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void shuffle() {
+		hdp.shuffle();
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public long gibbsSampling() {
+		return hdp.gibbsSampling();
+	}
+}
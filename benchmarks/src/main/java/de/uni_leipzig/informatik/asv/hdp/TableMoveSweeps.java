@@ -0,0 +1,83 @@
+package de.uni_leipzig.informatik.asv.hdp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import de.uni_leipzig.informatik.asv.hdp.HDPGibbsSampler.SamplingMethod;
+import de.uni_leipzig.informatik.asv.utils.SyntheticCorpus;
+
+/**
+ * How many sweeps {@link HDPGibbsSampler#setResampleTableTopics(boolean)}
+ * saves on a {@link SyntheticCorpus}. Trains the same seeded corpus with and
+ * without table moves and reports the first sweep at which each run reaches
+ * the plateau of the run without them, the mean log-likelihood of its last
+ * tenth of sweeps. Not a JMH benchmark, as it counts sweeps rather than
+ * timing a hot path. Run with
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar de.uni_leipzig.informatik.asv.hdp.TableMoveSweeps \
+ *     [seed documents vocabulary documentLength topics sweeps method]
+ * </pre>
+ */
+public class TableMoveSweeps {
+
+	public static void main(String[] args) throws IOException {
+		long seed = args.length > 0 ? Long.parseLong(args[0]) : 42;
+		int documents = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int vocabulary = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+		int documentLength = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+		int topics = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+		int sweeps = args.length > 5 ? Integer.parseInt(args[5]) : 500;
+		SamplingMethod method = args.length > 6 ? SamplingMethod
+				.valueOf(args[6]) : SamplingMethod.SPARSE;
+		SyntheticCorpus corpus = new SyntheticCorpus(seed, documents,
+				vocabulary, documentLength, topics);
+
+		double[] without = new double[sweeps], with = new double[sweeps];
+		long withoutMillis = train(corpus, seed, method, false, without);
+		long withMillis = train(corpus, seed, method, true, with);
+
+		double plateau = 0.0;
+		int tail = Math.max(sweeps / 10, 1);
+		for (int i = sweeps - tail; i < sweeps; i++)
+			plateau += without[i] / tail;
+		System.out.format("plateau without table moves: %.0f%n", plateau);
+		report("without", without, plateau, withoutMillis);
+		report("with", with, plateau, withMillis);
+	}
+
+	/** @return the time of all sweeps, in ms */
+	private static long train(SyntheticCorpus corpus, long seed,
+			SamplingMethod method, boolean tableMoves,
+			final double[] logLikelihoods) throws IOException {
+		HDPGibbsSampler hdp = new HDPGibbsSampler(seed);
+		hdp.setSamplingMethod(method);
+		hdp.setResampleTableTopics(tableMoves);
+		hdp.addInstances(corpus.getDocuments(), corpus.getVocabularySize());
+		hdp.addTrainingListener(new TrainingListener() {
+			@Override
+			public void iterationCompleted(TrainingMetrics metrics) {
+				logLikelihoods[metrics.getIteration()] = metrics
+						.getLogLikelihood();
+			}
+		});
+		long start = System.currentTimeMillis();
+		hdp.train(0, logLikelihoods.length, new PrintStream(
+				new ByteArrayOutputStream()));
+		return System.currentTimeMillis() - start;
+	}
+
+	private static void report(String name, double[] logLikelihoods,
+			double plateau, long millis) {
+		int reached = -1;
+		for (int i = 0; i < logLikelihoods.length && reached < 0; i++)
+			if (logLikelihoods[i] >= plateau)
+				reached = i + 1;
+		System.out.format("%s table moves: plateau at sweep %s, "
+				+ "final %.0f, %.1f ms per sweep%n", name,
+				reached < 0 ? "never" : String.valueOf(reached),
+				logLikelihoods[logLikelihoods.length - 1], (double) millis
+						/ logLikelihoods.length);
+	}
+}
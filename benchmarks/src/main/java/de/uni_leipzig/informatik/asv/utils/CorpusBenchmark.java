@@ -0,0 +1,68 @@
+package de.uni_leipzig.informatik.asv.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Loading a {@link SyntheticCorpus} from LDA-C text and from binary */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CorpusBenchmark {
+
+	@Param({ "42" })
+	public long seed;
+	@Param({ "10000" })
+	public int documents;
+	@Param({ "10000" })
+	public int vocabulary;
+	@Param({ "100" })
+	public int documentLength;
+	@Param({ "100" })
+	public int topics;
+
+	private byte[] ldac;
+	private File binary;
+
+	@Setup
+	public void setUp() throws IOException {
+		SyntheticCorpus corpus = new SyntheticCorpus(seed, documents,
+				vocabulary, documentLength, topics);
+		ldac = corpus.toLDAC();
+		binary = File.createTempFile("corpus", ".bin");
+		BinaryCorpus.write(corpus.getDocuments(), vocabulary, binary,
+				BinaryCorpus.COMPRESSED);
+	}
+
+	@TearDown
+	public void tearDown() {
+		binary.delete();
+	}
+
+	@Benchmark
+	public int[][] parseLDAC() throws IOException {
+		return new CLDACorpus(new ByteArrayInputStream(ldac)).getDocuments();
+	}
+
+	@Benchmark
+	public int[][] readBinary() throws IOException {
+		return new BinaryCorpus(binary).getDocuments();
+	}
+}
@@ -0,0 +1,84 @@
+package de.uni_leipzig.informatik.asv.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+/**
+ * A random corpus with topic structure, the same for the same parameters:
+ * every topic prefers its own band of |V| / K terms, and every document mixes
+ * up to three topics with some uniform noise.
+ */
+public class SyntheticCorpus {
+
+	private static final double NOISE = 0.1;
+
+	private final int[][] documents;
+	private final int vocabularySize;
+
+	/**
+	 * @param seed
+	 *            of the random number generator
+	 * @param numberOfDocuments
+	 *            |D|
+	 * @param vocabularySize
+	 *            |V|
+	 * @param documentLength
+	 *            words per document, on average
+	 * @param numberOfTopics
+	 *            K, at most |V|
+	 */
+	public SyntheticCorpus(long seed, int numberOfDocuments,
+			int vocabularySize, int documentLength, int numberOfTopics) {
+		Random random = new Random(seed);
+		this.vocabularySize = vocabularySize;
+		int band = vocabularySize / numberOfTopics;
+		documents = new int[numberOfDocuments][];
+		for (int d = 0; d < numberOfDocuments; d++) {
+			int[] topics = new int[1 + random.nextInt(3)];
+			for (int i = 0; i < topics.length; i++)
+				topics[i] = random.nextInt(numberOfTopics);
+			int[] doc = documents[d] = new int[documentLength / 2
+					+ random.nextInt(documentLength + 1)];
+			for (int wi = 0; wi < doc.length; wi++)
+				if (random.nextDouble() < NOISE)
+					doc[wi] = random.nextInt(vocabularySize);
+				else
+					doc[wi] = topics[random.nextInt(topics.length)] * band
+							+ random.nextInt(band);
+		}
+	}
+
+	/** @return |D| x |V| matrix of the documents */
+	public int[][] getDocuments() {
+		return documents;
+	}
+
+	/** @return |V| */
+	public int getVocabularySize() {
+		return vocabularySize;
+	}
+
+	/** @return the corpus in LDA-C format (see {@link CLDACorpus}) */
+	public byte[] toLDAC() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(bytes);
+		int[] counts = new int[vocabularySize];
+		for (int[] doc : documents) {
+			int m = 0;
+			for (int term : doc)
+				if (counts[term]++ == 0)
+					m++;
+			StringBuilder line = new StringBuilder().append(m);
+			for (int term : doc)
+				if (counts[term] > 0) {
+					line.append(' ').append(term).append(':')
+							.append(counts[term]);
+					counts[term] = 0;
+				}
+			out.println(line);
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2011 Arnim Bleier, Andreas Niekler and Patrick Jaehnichen
+ * Licensed under the GNU Lesser General Public License.
+ * http://www.gnu.org/licenses/lgpl.html
+ */
+package de.uni_leipzig.informatik.asv.hdp;
+
+import java.util.Random;
+
+/**
+ * Walker's alias table (built with Vose's method): draws from a fixed discrete
+ * distribution in O(1) after an O(n) build.
+ *
+ * Keeps the unnormalized weights it was built from, so that a
+ * Metropolis-Hastings step can correct for the table having gone stale.
+ */
+class AliasTable {
+
+	/** number of outcomes */
+	int size;
+	/** sum of the weights */
+	double totalMass;
+	/** size; the weight of each outcome at build time */
+	float[] mass = new float[0];
+	/** size; probability of keeping the outcome of a bucket */
+	private float[] prob = new float[0];
+	/** size; the outcome that fills the rest of a bucket */
+	private int[] alias = new int[0];
+	/** scratch for the build */
+	private int[] small = new int[0], large = new int[0];
+
+	/** number of draws since the last build */
+	int uses;
+	/** what the table was built for, e.g. a topic numbering */
+	int generation;
+
+	/**
+	 * @param weights
+	 *            unnormalized, non-negative, at least one positive
+	 * @param n
+	 *            number of weights to use
+	 */
+	void build(double[] weights, int n) {
+		if (prob.length < n) {
+			mass = new float[n * 2];
+			prob = new float[n * 2];
+			alias = new int[n * 2];
+			small = new int[n * 2];
+			large = new int[n * 2];
+		}
+		size = n;
+		uses = 0;
+		totalMass = 0.0;
+		for (int i = 0; i < n; i++)
+			totalMass += weights[i];
+
+		int s = 0, l = 0;
+		for (int i = 0; i < n; i++) {
+			mass[i] = (float) weights[i];
+			prob[i] = (float) (weights[i] * n / totalMass);
+			if (prob[i] < 1f)
+				small[s++] = i;
+			else
+				large[l++] = i;
+		}
+		while (s > 0 && l > 0) {
+			int less = small[--s], more = large[--l];
+			alias[less] = more;
+			prob[more] = prob[more] + prob[less] - 1f;
+			if (prob[more] < 1f)
+				small[s++] = more;
+			else
+				large[l++] = more;
+		}
+		while (l > 0)
+			prob[large[--l]] = 1f;
+		while (s > 0) // only left over by rounding
+			prob[small[--s]] = 1f;
+	}
+
+	/** @return an outcome in [0, size) with probability mass[i] / totalMass */
+	int sample(Random random) {
+		uses++;
+		int i = random.nextInt(size);
+		return random.nextFloat() < prob[i] ? i : alias[i];
+	}
+}
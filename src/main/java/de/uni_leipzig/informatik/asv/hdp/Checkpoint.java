@@ -0,0 +1,147 @@
+/*
+ * Copyright 2011 Arnim Bleier, Andreas Niekler and Patrick Jaehnichen
+ * Licensed under the GNU Lesser General Public License.
+ * http://www.gnu.org/licenses/lgpl.html
+ */
+package de.uni_leipzig.informatik.asv.hdp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * A snapshot of the complete state of a {@link HDPGibbsSampler} after an
+ * iteration, from which {@link HDPGibbsSampler#resume(java.io.File)} continues
+ * training. The per-term topic counts are not saved but recounted from the
+ * assignments; the per-topic totals are saved to check them. All ints are
+ * big-endian.
+ */
+class Checkpoint {
+
+	static final int MAGIC = 0x48445053; // HDPS
+	static final int VERSION = 3;
+
+	/** number of completed iterations */
+	int iteration;
+	int sizeOfVocabulary;
+	int numberOfTopics;
+	double alpha, beta, gamma;
+	/** K */
+	int[] numberOfTablesByTopic;
+	/** K */
+	int[] wordCountByTopic;
+	/** |D|; document ids, in sweep order */
+	int[] ids;
+	/** |D| */
+	int[] lengths;
+	/** |W|; the terms of the documents, in the order of ids */
+	int[] terms;
+	/** |W|; the table of every word, parallel to terms */
+	int[] tables;
+	/** |D| x numberOfTables */
+	int[][] tableToTopic;
+	/** the random number generators of the sampler and workers */
+	FastRandom[] randoms;
+
+	/** Writes to a temporary file first, so file is always complete */
+	void write(File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(iteration);
+			out.writeInt(sizeOfVocabulary);
+			out.writeInt(numberOfTopics);
+			out.writeDouble(alpha);
+			out.writeDouble(beta);
+			out.writeDouble(gamma);
+			for (int k = 0; k < numberOfTopics; k++) {
+				out.writeInt(numberOfTablesByTopic[k]);
+				out.writeInt(wordCountByTopic[k]);
+			}
+			out.writeInt(ids.length);
+			out.writeInt(terms.length);
+			for (int d = 0, i = 0; d < ids.length; d++) {
+				out.writeInt(ids[d]);
+				out.writeInt(lengths[d]);
+				for (int end = i + lengths[d]; i < end; i++) {
+					out.writeInt(terms[i]);
+					out.writeInt(tables[i]);
+				}
+				out.writeInt(tableToTopic[d].length);
+				for (int k : tableToTopic[d])
+					out.writeInt(k);
+			}
+			out.writeInt(randoms.length);
+			for (FastRandom random : randoms) {
+				out.writeLong(random.getS0());
+				out.writeLong(random.getS1());
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) { // not atomic on all platforms
+			file.delete();
+			if (!tmp.renameTo(file))
+				throw new IOException("could not write " + file);
+		}
+	}
+
+	static Checkpoint read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file), 1 << 16));
+		try {
+			if (in.readInt() != MAGIC)
+				throw new IOException(file + " is not a checkpoint");
+			if (in.readInt() != VERSION)
+				throw new IOException(file + " has an unsupported version");
+			Checkpoint c = new Checkpoint();
+			c.iteration = in.readInt();
+			c.sizeOfVocabulary = in.readInt();
+			c.numberOfTopics = in.readInt();
+			c.alpha = in.readDouble();
+			c.beta = in.readDouble();
+			c.gamma = in.readDouble();
+			c.numberOfTablesByTopic = new int[c.numberOfTopics];
+			c.wordCountByTopic = new int[c.numberOfTopics];
+			for (int k = 0; k < c.numberOfTopics; k++) {
+				c.numberOfTablesByTopic[k] = in.readInt();
+				c.wordCountByTopic[k] = in.readInt();
+			}
+			int numberOfDocuments = in.readInt();
+			c.ids = new int[numberOfDocuments];
+			c.lengths = new int[numberOfDocuments];
+			c.tableToTopic = new int[numberOfDocuments][];
+			c.terms = new int[in.readInt()];
+			c.tables = new int[c.terms.length];
+			for (int d = 0, i = 0; d < numberOfDocuments; d++) {
+				c.ids[d] = in.readInt();
+				c.lengths[d] = in.readInt();
+				for (int end = i + c.lengths[d]; i < end; i++) {
+					c.terms[i] = in.readInt();
+					c.tables[i] = in.readInt();
+				}
+				c.tableToTopic[d] = new int[in.readInt()];
+				for (int t = 0; t < c.tableToTopic[d].length; t++)
+					c.tableToTopic[d][t] = in.readInt();
+			}
+			c.randoms = new FastRandom[in.readInt()];
+			for (int r = 0; r < c.randoms.length; r++) {
+				long s0 = in.readLong(), s1 = in.readLong();
+				if (s0 == 0 && s1 == 0)
+					throw new IOException("corrupt checkpoint, random " + r);
+				c.randoms[r] = new FastRandom(s0, s1);
+			}
+			return c;
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2011 Arnim Bleier, Andreas Niekler and Patrick Jaehnichen
+ * Licensed under the GNU Lesser General Public License.
+ * http://www.gnu.org/licenses/lgpl.html
+ */
+package de.uni_leipzig.informatik.asv.hdp;
+
+/**
+ * Decides when statistics of the Gibbs chain have stopped drifting: for
+ * every statistic, the mean over the last window of iterations differs from
+ * the mean over the window before by at most tolerance, relative to the
+ * latter. Comparing means rather than single iterations lets the chain
+ * fluctuate around its stationary values.
+ */
+class ConvergenceMonitor {
+
+	private final int window;
+	private final double tolerance;
+	/** statistic x 2 * window; the last values, in a ring */
+	private final double[][] history;
+	private int count;
+
+	ConvergenceMonitor(int numberOfStatistics, int window, double tolerance) {
+		this.window = window;
+		this.tolerance = tolerance;
+		history = new double[numberOfStatistics][2 * window];
+	}
+
+	/**
+	 * @param values
+	 *            of the statistics after an iteration
+	 * @return whether all have converged
+	 */
+	boolean add(double... values) {
+		int slot = count++ % (2 * window);
+		for (int s = 0; s < history.length; s++)
+			history[s][slot] = values[s];
+		if (count < 2 * window)
+			return false;
+		for (int s = 0; s < history.length; s++) {
+			double earlier = 0.0, later = 0.0;
+			for (int i = 0; i < window; i++) {
+				// the oldest value is at count % (2 * window)
+				earlier += history[s][(count + i) % (2 * window)];
+				later += history[s][(count + window + i) % (2 * window)];
+			}
+			if (Math.abs(later - earlier) > tolerance * Math.abs(earlier))
+				return false;
+		}
+		return true;
+	}
+}
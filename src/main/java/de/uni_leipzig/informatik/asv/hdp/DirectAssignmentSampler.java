@@ -0,0 +1,459 @@
+/*
+ * Copyright 2011 Arnim Bleier, Andreas Niekler and Patrick Jaehnichen
+ * Licensed under the GNU Lesser General Public License.
+ * http://www.gnu.org/licenses/lgpl.html
+ */
+package de.uni_leipzig.informatik.asv.hdp;
+
+import static java.lang.System.currentTimeMillis;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Random;
+
+import de.uni_leipzig.informatik.asv.utils.TopicsWriter;
+import de.uni_leipzig.informatik.asv.utils.WordAssignmentsWriter;
+
+/**
+ * Hierarchical Dirichlet Processes sampler in the direct assignment scheme
+ * (Teh et al. 2006, section 5.3): every word is assigned a topic rather than
+ * a table, and the topics have global stick weights. The tables are only
+ * counted, by an auxiliary draw per document and topic once per sweep,
+ * from which the stick weights are resampled.
+ *
+ * Per word only its term and topic are kept, per document its offset.
+ * A topic is drawn from three buckets in the style of
+ * {@link HDPGibbsSampler.SamplingMethod#SPARSE}: the topics of the word's
+ * term, the topics of the document, and the smoothing mass over all topics,
+ * which is cached and rarely walked. A word thus costs time in proportion to
+ * the topics active in its document and term, not to the document's tables.
+ *
+ * Trains sequentially, without the checkpoints, listeners and other options
+ * of {@link HDPGibbsSampler}.
+ */
+public class DirectAssignmentSampler implements HDPSampler {
+
+	private final long seed;
+	private final Random random;
+
+	private double alpha = HDPGibbsSampler.ALPHA;
+	private double beta = HDPGibbsSampler.BETA;
+	private double gamma = HDPGibbsSampler.GAMMA;
+
+	/** |V| */
+	private int sizeOfVocabulary;
+	/** D + 1; the words of document d are offsets[d] to offsets[d + 1] - 1 */
+	int[] offsets;
+	/** |W|; the term and topic of every word */
+	int[] terms, topics;
+	/** D; in which order the next sweep visits the documents */
+	private int[] order;
+
+	/** |K|; between sweeps all topics have words */
+	int numberOfTopics;
+	int[] wordCountByTopic;
+	/** K x |V|, indexed */
+	TopicTermCounts wordCountByTopicAndTerm;
+	/** K; the tables counted in the last sweep */
+	private int[] numberOfTablesByTopic;
+	private int totalNumberOfTables;
+	/** K; the topics' stick weights */
+	double[] stick;
+	/** the weight of all topics not yet created */
+	double newStick;
+
+	/** K; 1 / (wordCountByTopic[k] + |V| * beta) */
+	private double[] normalizer;
+	/** K; (alpha * stick[k] + documentCounts[k]) * normalizer[k] */
+	private double[] coefficient;
+	/** sum over k of alpha * stick[k] * beta * normalizer[k] */
+	private double smoothingMass;
+	/** sum over the document's topics of documentCounts[k] * beta * normalizer */
+	private double documentMass;
+
+	/** K; the words of the current document per topic */
+	private int[] documentCounts;
+	/** the topics with documentCounts[k] &gt; 0 */
+	private int[] documentTopics;
+	private int numberOfDocumentTopics;
+	/** cumulative weights of the term bucket */
+	private double[] termWeights = new double[20];
+	/** K; the tables counted in this sweep */
+	private int[] tablesOfSweep;
+
+	/** With a random seed, see {@link #getSeed()} */
+	public DirectAssignmentSampler() {
+		this(new Random().nextLong());
+	}
+
+	/** @param seed for reproducible runs */
+	public DirectAssignmentSampler(long seed) {
+		this.seed = seed;
+		this.random = new FastRandom(seed);
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	public void setAlpha(double alpha) {
+		if (!(alpha > 0))
+			throw new IllegalArgumentException("alpha must be > 0");
+		this.alpha = alpha;
+	}
+
+	/** @param beta to set before {@link #addInstances} */
+	public void setBeta(double beta) {
+		if (!(beta > 0))
+			throw new IllegalArgumentException("beta must be > 0");
+		this.beta = beta;
+	}
+
+	public void setGamma(double gamma) {
+		if (!(gamma > 0))
+			throw new IllegalArgumentException("gamma must be > 0");
+		this.gamma = gamma;
+	}
+
+	public double getAlpha() {
+		return alpha;
+	}
+
+	public double getBeta() {
+		return beta;
+	}
+
+	public double getGamma() {
+		return gamma;
+	}
+
+	/**
+	 * Assigns all words to a single topic, with a table in every document,
+	 * as {@link HDPGibbsSampler#addInstances(int[][], int)} starts
+	 */
+	public void addInstances(int[][] documents, int V) {
+		sizeOfVocabulary = V;
+		offsets = new int[documents.length + 1];
+		for (int d = 0; d < documents.length; d++)
+			offsets[d + 1] = offsets[d] + documents[d].length;
+		int W = offsets[documents.length];
+		terms = new int[W];
+		topics = new int[W];
+		order = new int[documents.length];
+		for (int d = 0; d < documents.length; d++) {
+			System.arraycopy(documents[d], 0, terms, offsets[d],
+					documents[d].length);
+			order[d] = d;
+		}
+
+		numberOfTopics = 1;
+		wordCountByTopic = new int[2];
+		numberOfTablesByTopic = new int[2];
+		stick = new double[2];
+		normalizer = new double[2];
+		coefficient = new double[2];
+		documentCounts = new int[2];
+		documentTopics = new int[2];
+		tablesOfSweep = new int[2];
+		if (V > HDPGibbsSampler.SPARSE_COUNTS_VOCABULARY_SIZE)
+			wordCountByTopicAndTerm = TopicTermCounts.sparse(V);
+		else
+			wordCountByTopicAndTerm = TopicTermCounts.dense(V, numberOfTopics);
+		wordCountByTopicAndTerm.index(numberOfTopics);
+		for (int i = 0; i < W; i++)
+			wordCountByTopicAndTerm.increment(0, terms[i]);
+		wordCountByTopic[0] = W;
+		for (int d = 0; d < documents.length; d++)
+			if (documents[d].length > 0)
+				tablesOfSweep[0]++;
+		removeEmptyTopics();
+		sampleSticks();
+	}
+
+	public TrainingResult train(int shuffleLag, int maxIter, PrintStream log)
+			throws IOException {
+		int start = (int) (currentTimeMillis() / 1000);
+		log.println("time\titer\t#topics\t#tables");
+		for (int iter = 0; iter < maxIter; iter++) {
+			if (shuffleLag > 0 && iter > 0 && iter % shuffleLag == 0)
+				shuffle();
+			sweep();
+			int time = (int) (currentTimeMillis() / 1000) - start;
+			log.println(time + "\t" + iter + "\t" + numberOfTopics + "\t"
+					+ totalNumberOfTables);
+		}
+		log.println("training complete");
+		return new TrainingResult(TrainingResult.StopReason.MAX_ITERATIONS,
+				maxIter);
+	}
+
+	public int getNumberOfTopics() {
+		return numberOfTopics;
+	}
+
+	/** @return the tables counted in the last sweep */
+	public int getTotalNumberOfTables() {
+		return totalNumberOfTables;
+	}
+
+	public HDPModel getModel() {
+		return new HDPModel(numberOfTopics, sizeOfVocabulary,
+				numberOfTablesByTopic, wordCountByTopic,
+				wordCountByTopicAndTerm, alpha, beta, gamma);
+	}
+
+	public void writeTopics(TopicsWriter writer) throws IOException {
+		HDPGibbsSampler.writeTopics(wordCountByTopicAndTerm, numberOfTopics,
+				sizeOfVocabulary, writer);
+	}
+
+	/** Writes -1 as every word's table */
+	public void writeWordAssignments(WordAssignmentsWriter writer)
+			throws IOException {
+		writer.openForIteration();
+		for (int d = 0; d < offsets.length - 1; d++)
+			for (int i = offsets[d]; i < offsets[d + 1]; i++)
+				writer.writeAssignment(d, terms[i], topics[i], -1);
+		writer.closeIteration();
+	}
+
+	/** Permutes the order in which the documents are sampled */
+	void shuffle() {
+		for (int d = order.length - 1; d > 0; d--) {
+			int e = random.nextInt(d + 1), t = order[d];
+			order[d] = order[e];
+			order[e] = t;
+		}
+	}
+
+	/**
+	 * Samples the topic of every word and counts the tables, then removes
+	 * the topics without words and resamples the stick weights
+	 */
+	void sweep() {
+		double vb = sizeOfVocabulary * beta;
+		smoothingMass = 0.0;
+		for (int k = 0; k < numberOfTopics; k++) {
+			normalizer[k] = 1.0 / (wordCountByTopic[k] + vb);
+			coefficient[k] = alpha * stick[k] * normalizer[k];
+			smoothingMass += alpha * stick[k] * beta * normalizer[k];
+			tablesOfSweep[k] = 0;
+		}
+		for (int d : order)
+			sampleDocument(d);
+		removeEmptyTopics();
+		sampleSticks();
+	}
+
+	private void sampleDocument(int d) {
+		documentTopics = ensureCapacity(documentTopics, numberOfTopics);
+		numberOfDocumentTopics = 0;
+		for (int i = offsets[d]; i < offsets[d + 1]; i++)
+			if (documentCounts[topics[i]]++ == 0)
+				documentTopics[numberOfDocumentTopics++] = topics[i];
+		documentMass = 0.0;
+		for (int j = 0; j < numberOfDocumentTopics; j++) {
+			int k = documentTopics[j];
+			documentMass += documentCounts[k] * beta * normalizer[k];
+			coefficient[k] = (alpha * stick[k] + documentCounts[k])
+					* normalizer[k];
+		}
+
+		for (int i = offsets[d]; i < offsets[d + 1]; i++) {
+			int term = terms[i];
+			removeWord(topics[i], term);
+			int k = sampleTopic(term);
+			if (k == numberOfTopics)
+				addTopic();
+			addWord(k, term);
+			topics[i] = k;
+		}
+
+		// count the tables of each topic, auxiliarily
+		for (int j = 0; j < numberOfDocumentTopics; j++) {
+			int k = documentTopics[j];
+			tablesOfSweep[k] += sampleNumberOfTables(documentCounts[k], alpha
+					* stick[k]);
+			documentCounts[k] = 0;
+			coefficient[k] = alpha * stick[k] * normalizer[k];
+		}
+	}
+
+	/**
+	 * Draws the topic of a word from p(k) ~ (n_dk + alpha stick_k) (n_kw +
+	 * beta) / (n_k + |V| beta), or alpha newStick / |V| for a new topic,
+	 * split into the term, document and smoothing buckets
+	 *
+	 * @return the topic, numberOfTopics for a new one
+	 */
+	private int sampleTopic(int term) {
+		int[] termTopics = wordCountByTopicAndTerm.topics(term);
+		int size = wordCountByTopicAndTerm.size(term);
+		termWeights = ensureCapacity(termWeights, size);
+		double termMass = 0.0;
+		for (int j = 0; j < size; j++) {
+			termMass += coefficient[termTopics[j]]
+					* wordCountByTopicAndTerm.countAt(term, j);
+			termWeights[j] = termMass;
+		}
+		double newMass = alpha * newStick / sizeOfVocabulary;
+		double u = random.nextDouble()
+				* (termMass + documentMass + smoothingMass + newMass);
+		if (u < termMass) {
+			for (int j = 0; j < size - 1; j++)
+				if (u < termWeights[j])
+					return termTopics[j];
+			return termTopics[size - 1];
+		}
+		u -= termMass;
+		if (u < documentMass) {
+			for (int j = 0; j < numberOfDocumentTopics - 1; j++) {
+				int k = documentTopics[j];
+				u -= documentCounts[k] * beta * normalizer[k];
+				if (u < 0)
+					return k;
+			}
+			return documentTopics[numberOfDocumentTopics - 1];
+		}
+		u -= documentMass;
+		if (u < smoothingMass) {
+			for (int k = 0; k < numberOfTopics - 1; k++) {
+				u -= alpha * stick[k] * beta * normalizer[k];
+				if (u < 0)
+					return k;
+			}
+			return numberOfTopics - 1;
+		}
+		return numberOfTopics;
+	}
+
+	private void removeWord(int k, int term) {
+		uncacheTopic(k);
+		wordCountByTopic[k]--;
+		wordCountByTopicAndTerm.decrement(k, term);
+		if (--documentCounts[k] == 0) {
+			int j = 0;
+			while (documentTopics[j] != k)
+				j++;
+			documentTopics[j] = documentTopics[--numberOfDocumentTopics];
+		}
+		cacheTopic(k);
+	}
+
+	private void addWord(int k, int term) {
+		uncacheTopic(k);
+		wordCountByTopic[k]++;
+		wordCountByTopicAndTerm.increment(k, term);
+		if (documentCounts[k]++ == 0) {
+			documentTopics = ensureCapacity(documentTopics,
+					numberOfDocumentTopics);
+			documentTopics[numberOfDocumentTopics++] = k;
+		}
+		cacheTopic(k);
+	}
+
+	/** Takes topic k out of the buckets before its counts change */
+	private void uncacheTopic(int k) {
+		smoothingMass -= alpha * stick[k] * beta * normalizer[k];
+		documentMass -= documentCounts[k] * beta * normalizer[k];
+	}
+
+	/** Puts topic k back into the buckets after its counts changed */
+	private void cacheTopic(int k) {
+		normalizer[k] = 1.0 / (wordCountByTopic[k] + sizeOfVocabulary * beta);
+		smoothingMass += alpha * stick[k] * beta * normalizer[k];
+		documentMass += documentCounts[k] * beta * normalizer[k];
+		coefficient[k] = (alpha * stick[k] + documentCounts[k])
+				* normalizer[k];
+	}
+
+	/**
+	 * Creates topic numberOfTopics, breaking its stick weight off the weight
+	 * of the new topics: stick_k = b newStick with b ~ Beta(1, gamma)
+	 */
+	private void addTopic() {
+		int k = numberOfTopics++;
+		wordCountByTopic = ensureCapacity(wordCountByTopic, k);
+		numberOfTablesByTopic = ensureCapacity(numberOfTablesByTopic, k);
+		tablesOfSweep = ensureCapacity(tablesOfSweep, k);
+		documentCounts = ensureCapacity(documentCounts, k);
+		stick = ensureCapacity(stick, k);
+		normalizer = ensureCapacity(normalizer, k);
+		coefficient = ensureCapacity(coefficient, k);
+		wordCountByTopicAndTerm.addTopic(numberOfTopics);
+		wordCountByTopic[k] = 0;
+		tablesOfSweep[k] = 0;
+		documentCounts[k] = 0;
+		stick[k] = RandomVariates.beta(random, 1.0, gamma) * newStick;
+		newStick -= stick[k];
+		normalizer[k] = 1.0 / (sizeOfVocabulary * beta);
+		coefficient[k] = alpha * stick[k] * normalizer[k];
+		smoothingMass += alpha * stick[k] * beta * normalizer[k];
+	}
+
+	/**
+	 * The number of tables n words of a topic sit at in a document, given its
+	 * weight a = alpha stick_k: a sum of Bernoulli(a / (a + i)), i &lt; n
+	 * (Antoniak)
+	 */
+	private int sampleNumberOfTables(int n, double a) {
+		int m = 0;
+		for (int i = 0; i < n; i++)
+			if (random.nextDouble() * (a + i) < a)
+				m++;
+		return m;
+	}
+
+	/** Renumbers the topics with words, and the counted tables with them */
+	private void removeEmptyTopics() {
+		int[] kOldToKNew = new int[numberOfTopics];
+		int newNumberOfTopics = 0;
+		totalNumberOfTables = 0;
+		for (int k = 0; k < numberOfTopics; k++)
+			if (wordCountByTopic[k] > 0) {
+				int j = kOldToKNew[k] = newNumberOfTopics++;
+				wordCountByTopic[j] = wordCountByTopic[k];
+				numberOfTablesByTopic[j] = tablesOfSweep[k];
+				stick[j] = stick[k];
+				totalNumberOfTables += tablesOfSweep[k];
+			} else
+				kOldToKNew[k] = -1;
+		if (newNumberOfTopics < numberOfTopics) {
+			wordCountByTopicAndTerm.relabel(kOldToKNew, numberOfTopics,
+					newNumberOfTopics);
+			for (int i = 0; i < topics.length; i++)
+				topics[i] = kOldToKNew[topics[i]];
+			numberOfTopics = newNumberOfTopics;
+		}
+	}
+
+	/**
+	 * Draws the stick weights from their posterior given the tables, (stick,
+	 * newStick) ~ Dirichlet(m_1, ..., m_K, gamma)
+	 */
+	private void sampleSticks() {
+		double sum = newStick = RandomVariates.gamma(random, gamma);
+		for (int k = 0; k < numberOfTopics; k++)
+			sum += stick[k] = RandomVariates.gamma(random,
+					numberOfTablesByTopic[k]);
+		for (int k = 0; k < numberOfTopics; k++)
+			stick[k] /= sum;
+		newStick /= sum;
+	}
+
+	private static int[] ensureCapacity(int[] arr, int min) {
+		if (min < arr.length)
+			return arr;
+		int[] arr2 = new int[min * 2];
+		System.arraycopy(arr, 0, arr2, 0, arr.length);
+		return arr2;
+	}
+
+	private static double[] ensureCapacity(double[] arr, int min) {
+		if (min < arr.length)
+			return arr;
+		double[] arr2 = new double[min * 2];
+		System.arraycopy(arr, 0, arr2, 0, arr.length);
+		return arr2;
+	}
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2011 Arnim Bleier, Andreas Niekler and Patrick Jaehnichen
+ * Licensed under the GNU Lesser General Public License.
+ * http://www.gnu.org/licenses/lgpl.html
+ */
+package de.uni_leipzig.informatik.asv.hdp;
+
+/**
+ * The per-word topic loop of the dense sampler: the likelihood f[k] of the
+ * word under every topic, and the mass of a new table. This is the scalar
+ * loop; with -Dhdp.vector=true, {@link #create()} returns the one built on
+ * the JDK Vector API when the build included it (Java 17 and later) and
+ * jdk.incubator.vector is resolved at runtime (--add-modules
+ * jdk.incubator.vector). Its rounding depends on the CPU's vector width, so
+ * a seed then gives the same results only on the same kind of machine.
+ */
+class FKernel {
+
+	/** Name of the vectorized subclass, compiled from src/main/java17 */
+	private static final String VECTOR_KERNEL = "de.uni_leipzig.informatik.asv.hdp.VectorFKernel";
+
+	/**
+	 * @return the vectorized kernel if enabled with -Dhdp.vector=true and
+	 *         available, else the scalar one
+	 */
+	static FKernel create() {
+		FKernel vector = null;
+		if ("true".equals(System.getProperty("hdp.vector")))
+			vector = vector();
+		return vector != null ? vector : new FKernel();
+	}
+
+	/** @return the vectorized kernel, or null if it is not available */
+	static FKernel vector() {
+		try {
+			return (FKernel) Class.forName(VECTOR_KERNEL)
+					.getDeclaredConstructor().newInstance();
+		} catch (Exception e) {
+			return null;
+		} catch (LinkageError e) { // the module is not there
+			return null;
+		}
+	}
+
+	/**
+	 * Sets f[k] = (termCounts[offset + k] + beta) / (wordCountByTopic[k] + vb)
+	 * 
+	 * @param fNew
+	 *            what to add numberOfTablesByTopic[k] * f[k] to
+	 * @return fNew plus the sum of numberOfTablesByTopic[k] * f[k]
+	 */
+	double f(double fNew, int[] termCounts, int offset, int[] wordCountByTopic,
+			int[] numberOfTablesByTopic, double beta, double vb, double[] f,
+			int numberOfTopics) {
+		for (int ki = 0; ki < numberOfTopics; ki++) {
+			f[ki] = (termCounts[offset + ki] + beta)
+					/ (wordCountByTopic[ki] + vb);
+			fNew += numberOfTablesByTopic[ki] * f[ki];
+		}
+		return fNew;
+	}
+}
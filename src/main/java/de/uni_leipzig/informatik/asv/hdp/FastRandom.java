@@ -0,0 +1,89 @@
+/*
+ * Copyright 2011 Arnim Bleier, Andreas Niekler and Patrick Jaehnichen
+ * Licensed under the GNU Lesser General Public License.
+ * http://www.gnu.org/licenses/lgpl.html
+ */
+package de.uni_leipzig.informatik.asv.hdp;
+
+import java.util.Random;
+
+/**
+ * xoroshiro128** (Blackman and Vigna), seeded with SplitMix64. A drop-in for
+ * {@link Random} that is not synchronized, so one instance must not be shared
+ * between threads; use {@link #split()} to give every thread its own stream.
+ */
+public class FastRandom extends Random {
+
+	private static final long serialVersionUID = 1L;
+
+	private long s0, s1;
+
+	/** Seeded from a {@link Random} */
+	public FastRandom() {
+		this(new Random().nextLong());
+	}
+
+	public FastRandom(long seed) {
+		super(seed); // calls setSeed
+	}
+
+	/** Continues from a saved state, see {@link #getS0()}, {@link #getS1()} */
+	FastRandom(long s0, long s1) {
+		super(0L);
+		if (s0 == 0 && s1 == 0)
+			throw new IllegalArgumentException("all zero state");
+		this.s0 = s0;
+		this.s1 = s1;
+	}
+
+	@Override
+	public void setSeed(long seed) {
+		// the state must not be all zero, SplitMix64 never gives two zeros
+		s0 = splitMix64(seed += 0x9E3779B97F4A7C15L);
+		s1 = splitMix64(seed + 0x9E3779B97F4A7C15L);
+	}
+
+	private static long splitMix64(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	long getS0() {
+		return s0;
+	}
+
+	long getS1() {
+		return s1;
+	}
+
+	/** @return a generator in the current state of this one */
+	FastRandom copy() {
+		return new FastRandom(s0, s1);
+	}
+
+	/** @return a new generator, seeded from this one */
+	public FastRandom split() {
+		return new FastRandom(nextLong());
+	}
+
+	@Override
+	public long nextLong() {
+		long s0 = this.s0, s1 = this.s1;
+		long result = Long.rotateLeft(s0 * 5, 7) * 9;
+		s1 ^= s0;
+		this.s0 = Long.rotateLeft(s0, 24) ^ s1 ^ (s1 << 16);
+		this.s1 = Long.rotateLeft(s1, 37);
+		return result;
+	}
+
+	@Override
+	protected int next(int bits) {
+		return (int) (nextLong() >>> (64 - bits));
+	}
+
+	@Override
+	public double nextDouble() {
+		return (nextLong() >>> 11) * 0x1.0p-53;
+	}
+}
@@ -6,16 +6,29 @@
 package de.uni_leipzig.informatik.asv.hdp;
 
 import static java.lang.System.currentTimeMillis;
-import static java.util.Arrays.asList;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import de.uni_leipzig.informatik.asv.hdp.TopicTermCounts.TermMajor;
 import de.uni_leipzig.informatik.asv.utils.CLDACorpus;
+import de.uni_leipzig.informatik.asv.utils.CLDAParser;
+import de.uni_leipzig.informatik.asv.utils.TopicsWriter;
+import de.uni_leipzig.informatik.asv.utils.WordAssignmentsWriter;
 
 /**
  * Hierarchical Dirichlet Processes Chinese Restaurant Franchise Sampler
@@ -30,258 +43,2425 @@ import de.uni_leipzig.informatik.asv.utils.CLDACorpus;
  * @author <a href="mailto:arnim.bleier+hdp@gmail.com">Arnim Bleier</a>
  * @author renaud.richardet@epfl.ch
  */
-public class HDPGibbsSampler {
+public class HDPGibbsSampler implements HDPSampler {
 
+	/** defaults of {@link #setAlpha}, {@link #setBeta} and {@link #setGamma} */
 	public static final double ALPHA = 1.0;
 	public static final double BETA = 0.5; // default only
 	public static final double GAMMA = 1.5;
 
-	private final Random random = new Random();
-	private double[] p;
-	private double[] f;
+	/** shape and rate of the Gamma priors on alpha and gamma when resampled */
+	private static final double CONCENTRATION_SHAPE = 1.0,
+			CONCENTRATION_RATE = 1.0;
+	/** auxiliary variable rounds per resampling of alpha */
+	private static final int ALPHA_RESAMPLING_ROUNDS = 20;
+
+	/** How the table and topic of a word are drawn */
+	public enum SamplingMethod {
+		/** visits all |K| topics for every word */
+		DENSE,
+		/**
+		 * splits the probability mass into a cached smoothing bucket and a
+		 * bucket over the topics in which the word's term has a non-zero
+		 * count, in the style of SparseLDA
+		 */
+		SPARSE,
+		/**
+		 * proposes the topic of a new table from stale per-term alias tables
+		 * and corrects with Metropolis-Hastings steps, in the style of
+		 * AliasLDA / LightLDA; amortized O(1) per topic proposal
+		 */
+		ALIAS
+	}
+
+	/** How the topic-term counts are stored */
+	public enum CountStorage {
+		/** SPARSE for vocabularies above {@link #SPARSE_COUNTS_VOCABULARY_SIZE} */
+		AUTO,
+		/** a K x |V| matrix; fastest, but allocates |V| ints per topic */
+		DENSE,
+		/**
+		 * a K x |V| matrix of 16 bit counters, half the memory of DENSE;
+		 * larger counts are kept in a map per topic
+		 */
+		COMPACT,
+		/**
+		 * a |V| x K matrix in one array, the counts of each term contiguous;
+		 * the dense sampler then reads them in one run rather than one row
+		 * per topic, see {@link FKernel}. Adding topics beyond the room of a
+		 * row copies the whole matrix.
+		 */
+		TERM_MAJOR,
+		/**
+		 * sorted topic/count pairs per term; memory in proportion to the
+		 * non-zero counts, for large vocabularies
+		 */
+		SPARSE
+	}
+
+	/** |V| above which {@link CountStorage#AUTO} stores the counts sparsely */
+	public static final int SPARSE_COUNTS_VOCABULARY_SIZE = 100000;
+
+	/** documents per seed of {@link #shuffle()} */
+	private static final int SHUFFLE_CHUNK = 1024;
+
+	/**
+	 * for the {@link TrainingMetrics}, every this many words are timed; the
+	 * clock costs more than sampling a word from a few topics
+	 */
+	private static final int TIMING_INTERVAL = 61;
+	/** counts up to which ln Gamma is tabulated for the log-likelihood */
+	private static final int LOG_GAMMA_TABLE_SIZE = 4096;
+
+	/** factors multiplied before a logarithm, see {@link #logOverRising} */
+	private static final int RISING_PRODUCT_LENGTH = 32;
+
+	/** share of uniform topic proposals mixed into the alias proposals */
+	private static final double ALIAS_UNIFORM_PROPOSALS = 0.1;
+
+	/** computes f[] for the dense samplers, vectorized where possible */
+	private static final FKernel KERNEL = FKernel.create();
+
+	private final long seed;
+	/**
+	 * a {@link FastRandom} for the sequential parts; every worker has its own
+	 * stream split from it
+	 */
+	private FastRandom random;
 
 	/** |V| */
 	private int sizeOfVocabulary;
 	/** |W| */
 	private int totalNumberOfWords;
-	/** |K| */
+	/** |K|, including the free topics */
 	private int numberOfTopics = 1;
 	/** |T|?? */
 	private int totalNumberOfTables;
 
-	/** D x {@link Doc}; = |D| x */
-	private Doc[] docs;
-	private int[] numberOfTablesByTopic;
-	private int[] wordCountByTopic;
-	/** K x |V| */
-	private int[][] wordCountByTopicAndTerm;
+	/** D x {@link Doc}; = |D| x */
+	Doc[] docs;
+	/** |W|; the term of every word, documents are {@link Doc#offset} views */
+	IntArray termIndices;
+	/** |W|; the table every word is assigned to, parallel to termIndices */
+	IntArray tableAssignments;
+	/** where termIndices and tableAssignments are mapped from, or null */
+	private MappedWordStore store;
+	/** of the last state saved to the store */
+	private int storeGeneration;
+	private int[] numberOfTablesByTopic;
+	private int[] wordCountByTopic;
+	/** K x |V| */
+	private TopicTermCounts wordCountByTopicAndTerm;
+	/** topics without words, reused before new ids are taken */
+	private int[] freeTopics = new int[2];
+	private int numberOfFreeTopics;
+	/** share of free tables or topics above which they are compacted */
+	private double compactionThreshold = 0.25;
+	/** documents are shuffled within blocks of this many, 0 for all */
+	private int shuffleBlockSize;
+
+	/** one per training thread, workers[0] also does the sequential sweeps */
+	Worker[] workers = new Worker[0];
+	/**
+	 * for the parallel {@link SamplingMethod#SPARSE}: the terms of a round,
+	 * whose indexes the workers update after the merge
+	 */
+	private int[] changedTerms;
+	/** |V|; marks the terms already in changedTerms */
+	private boolean[] termChanged;
+
+	private SamplingMethod samplingMethod = SamplingMethod.DENSE;
+	private CountStorage countStorage = CountStorage.AUTO;
+
+	/** rebuild an alias table after this many draws, 0 for |K| + 1 */
+	private int aliasRebuildLag = 0;
+	private int metropolisHastingsSteps = 2;
+	/** incremented whenever topics are renumbered */
+	private int topicGeneration;
+
+	/** concentration of the documents' tables */
+	private double alpha = ALPHA;
+	/** Dirichlet prior of the topics' term distributions */
+	private double beta = BETA;
+	/** concentration of the topics */
+	private double gamma = GAMMA;
+	private boolean resampleConcentrations;
+	/** iterations of train() before alpha and gamma are resampled */
+	private int resamplingBurnIn;
+	/** see {@link #setResampleTableTopics(boolean)} */
+	private boolean resampleTableTopics;
+	/** see {@link #setGroupTerms(boolean)} */
+	private boolean groupTerms;
+
+	/** where to save a {@link Checkpoint}, or null */
+	private File checkpointFile;
+	private int checkpointInterval;
+	/** the iteration the next {@link #train} starts at, after a resume */
+	private int firstIteration;
+	/** see {@link #setTopWords(int, int)}, or null */
+	private TopTerms topTerms;
+	private int topWordsInterval;
+	private volatile TopWords topWords;
+	/** see {@link #setOutput}, either may be null */
+	private TopicsWriter topicsWriter;
+	private WordAssignmentsWriter assignmentsWriter;
+	private int outputInterval;
+
+	private final List<TrainingListener> listeners = new ArrayList<TrainingListener>();
+	/** documents for the held-out perplexity, or null */
+	private int[][] heldOut;
+	private int heldOutInterval, heldOutIterations;
+	/** see {@link #setConvergence(int, double)}, 0 to run all iterations */
+	private int convergenceWindow;
+	private double convergenceTolerance;
+	/** time spent in {@link #endSweep()} since the last metrics, in ns */
+	private long endSweepNanos;
+	/** for {@link #logLikelihood()}, kept while alpha and beta stay */
+	private LogGamma logGammaOfCounts, logGammaOfAlpha, logGammaOfBeta;
+
+	/** With a random seed, see {@link #getSeed()} */
+	public HDPGibbsSampler() {
+		this(new Random().nextLong());
+	}
+
+	/**
+	 * @param seed
+	 *            for reproducible runs: the same seed and number of threads
+	 *            give the same results
+	 */
+	public HDPGibbsSampler(long seed) {
+		this.seed = seed;
+		this.random = new FastRandom(seed);
+	}
+
+	/** @return the seed this sampler was created with */
+	public long getSeed() {
+		return seed;
+	}
+
+	/** @param samplingMethod to use from the next sweep on */
+	public void setSamplingMethod(SamplingMethod samplingMethod) {
+		this.samplingMethod = samplingMethod;
+		if (wordCountByTopicAndTerm != null)
+			wordCountByTopicAndTerm.unindex();
+	}
+
+	/**
+	 * @param countStorage
+	 *            for the topic-term counts of the next
+	 *            {@link #addInstances(int[][], int)} or resume (default
+	 *            {@link CountStorage#AUTO})
+	 */
+	public void setCountStorage(CountStorage countStorage) {
+		this.countStorage = countStorage;
+	}
+
+	/**
+	 * @param aliasRebuildLag
+	 *            for {@link SamplingMethod#ALIAS}, after how many draws a
+	 *            term's alias table is rebuilt; 0 (default) rebuilds after as
+	 *            many draws as the table has entries, which amortizes the
+	 *            O(K) build to O(1) per draw
+	 */
+	public void setAliasRebuildLag(int aliasRebuildLag) {
+		this.aliasRebuildLag = aliasRebuildLag;
+	}
+
+	/**
+	 * @param metropolisHastingsSteps
+	 *            for {@link SamplingMethod#ALIAS}, number of proposals per word
+	 *            (default 2)
+	 */
+	public void setMetropolisHastingsSteps(int metropolisHastingsSteps) {
+		if (metropolisHastingsSteps < 1)
+			throw new IllegalArgumentException(
+					"metropolisHastingsSteps must be >= 1");
+		this.metropolisHastingsSteps = metropolisHastingsSteps;
+	}
+
+	/** @param alpha concentration of the documents' tables */
+	public void setAlpha(double alpha) {
+		if (!(alpha > 0))
+			throw new IllegalArgumentException("alpha must be > 0");
+		this.alpha = alpha;
+	}
+
+	/**
+	 * @param beta
+	 *            Dirichlet prior of the topics' term distributions, to set
+	 *            before training
+	 */
+	public void setBeta(double beta) {
+		if (!(beta > 0))
+			throw new IllegalArgumentException("beta must be > 0");
+		this.beta = beta;
+	}
+
+	/** @param gamma concentration of the topics */
+	public void setGamma(double gamma) {
+		if (!(gamma > 0))
+			throw new IllegalArgumentException("gamma must be > 0");
+		this.gamma = gamma;
+	}
+
+	public double getAlpha() {
+		return alpha;
+	}
+
+	public double getBeta() {
+		return beta;
+	}
+
+	public double getGamma() {
+		return gamma;
+	}
+
+	/**
+	 * @param resampleConcentrations
+	 *            whether to resample alpha and gamma after every iteration,
+	 *            with the auxiliary variable scheme of Escobar and West and of
+	 *            Teh et al. (2006, appendix A) under Gamma(1, 1) priors; the
+	 *            values set are then only the starting points
+	 * @param burnIn
+	 *            number of iterations of {@link #train} to run first, since
+	 *            resampling from the initial single topic drives both to zero
+	 */
+	public void setResampleConcentrations(boolean resampleConcentrations,
+			int burnIn) {
+		if (burnIn < 0)
+			throw new IllegalArgumentException("burnIn must be >= 0");
+		this.resampleConcentrations = resampleConcentrations;
+		this.resamplingBurnIn = burnIn;
+	}
+
+	/**
+	 * @param resampleTableTopics
+	 *            whether every sweep also resamples the topic of each table
+	 *            with two or more words, given all of its words at once (Teh
+	 *            and Jordan 2010, the sampling of k_jt). A word can only leave
+	 *            a table, so otherwise a whole table changes its topic only
+	 *            by being emptied and built up again; this moves tables stuck
+	 *            on a poor topic in one step, at about the cost of a sweep
+	 *            with the {@link SamplingMethod#SPARSE} sampler.
+	 */
+	public void setResampleTableTopics(boolean resampleTableTopics) {
+		this.resampleTableTopics = resampleTableTopics;
+	}
+
+	/**
+	 * @param groupTerms
+	 *            whether to sweep the equal terms of a document one after
+	 *            the other. train() then groups them, and {@link #shuffle()}
+	 *            permutes the groups rather than the words. The
+	 *            {@link SamplingMethod#DENSE} sampler keeps f[] for the next
+	 *            word of the same term and recomputes only the one or two
+	 *            topics the last word left and joined, instead of all K.
+	 *            The words of a memory-mapped corpus are not moved, as they
+	 *            are not shuffled; the words its documents already hold
+	 *            together, as lda-c corpora do, still reuse f[].
+	 */
+	public void setGroupTerms(boolean groupTerms) {
+		this.groupTerms = groupTerms;
+	}
+
+	/**
+	 * Saves the complete sampler state every interval iterations of
+	 * {@link #train}, from which {@link #resume(File)} can continue. The
+	 * state is copied between two sweeps and written on a background thread.
+	 * 
+	 * @param file
+	 *            to write to, replaced by every checkpoint
+	 * @param interval
+	 *            in iterations, 0 to disable checkpoints
+	 */
+	public void setCheckpoint(File file, int interval) {
+		if (interval < 0)
+			throw new IllegalArgumentException("interval must be >= 0");
+		this.checkpointFile = file;
+		this.checkpointInterval = file != null ? interval : 0;
+	}
+
+	/**
+	 * Writes the topics and word assignments every interval iterations of
+	 * {@link #train}. As for checkpoints, the counts and assignments are
+	 * copied between two sweeps and written on a background thread while
+	 * training continues.
+	 * 
+	 * @param topicsWriter
+	 *            see {@link #writeTopics}, or null
+	 * @param assignmentsWriter
+	 *            see {@link #writeWordAssignments}, or null
+	 * @param interval
+	 *            in iterations, 0 to disable
+	 */
+	public void setOutput(TopicsWriter topicsWriter,
+			WordAssignmentsWriter assignmentsWriter, int interval) {
+		if (interval < 0)
+			throw new IllegalArgumentException("interval must be >= 0");
+		this.topicsWriter = topicsWriter;
+		this.assignmentsWriter = assignmentsWriter;
+		this.outputInterval = interval;
+	}
+
+	/**
+	 * Keeps the n most frequent terms of every topic during {@link #train},
+	 * for monitoring with {@link #getTopWords()}. Every interval iterations
+	 * they are brought up to date between two sweeps: with a single thread
+	 * incrementally, from the terms whose counts rose past a topic's n-th
+	 * term, else by scanning the counts with bounded heaps in parallel
+	 * across the topics.
+	 * 
+	 * @param n
+	 *            terms per topic, 0 to disable
+	 * @param interval
+	 *            in iterations
+	 */
+	public void setTopWords(int n, int interval) {
+		if (n < 0)
+			throw new IllegalArgumentException("n must be >= 0");
+		if (n > 0 && interval < 1)
+			throw new IllegalArgumentException("interval must be >= 1");
+		topTerms = n > 0 ? new TopTerms(n) : null;
+		topWordsInterval = interval;
+		topWords = null;
+	}
+
+	/**
+	 * @return the top terms of {@link #setTopWords(int, int)} as of the last
+	 *         update, or null; can be called from any thread during training
+	 */
+	public TopWords getTopWords() {
+		return topWords;
+	}
+
+	/** @return the n most frequent terms of every topic, computed now */
+	public TopWords topWords(int n) {
+		TopTerms topTerms = new TopTerms(n);
+		topTerms.refresh(wordCountByTopicAndTerm, numberOfTopics,
+				topicGeneration, null, 1);
+		return topTerms.publish();
+	}
+
+	/**
+	 * @param compactionThreshold
+	 *            share of free tables or topics above which they are
+	 *            renumbered after a sweep, in a pass over all words; below,
+	 *            the free ones are reused for new tables and topics. 0
+	 *            compacts after every sweep (default 0.25).
+	 */
+	public void setCompactionThreshold(double compactionThreshold) {
+		if (compactionThreshold < 0 || compactionThreshold >= 1)
+			throw new IllegalArgumentException(
+					"compactionThreshold must be in [0, 1)");
+		this.compactionThreshold = compactionThreshold;
+	}
+
+	/**
+	 * @param shuffleBlockSize
+	 *            if > 0, {@link #shuffle()} permutes the documents only within
+	 *            blocks of that many documents that are adjacent in memory,
+	 *            and the blocks among each other, so that a sweep reads the
+	 *            corpus in runs rather than at random; 0 (default) permutes
+	 *            all documents
+	 */
+	public void setShuffleBlockSize(int shuffleBlockSize) {
+		if (shuffleBlockSize < 0)
+			throw new IllegalArgumentException("shuffleBlockSize must be >= 0");
+		this.shuffleBlockSize = shuffleBlockSize;
+	}
+
+	/**
+	 * @param listener
+	 *            to receive the {@link TrainingMetrics} of every iteration of
+	 *            {@link #train}; measuring them costs a few percent of the
+	 *            sweeps, and nothing without listeners
+	 */
+	public void addTrainingListener(TrainingListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeTrainingListener(TrainingListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Evaluates the model on held-out documents every interval iterations of
+	 * {@link #train}, see {@link HDPModel#perplexity(int[][], int, Random)},
+	 * for the {@link TrainingMetrics} of that iteration. The model is copied
+	 * between two sweeps and evaluated on a background thread; should the
+	 * previous evaluation still be running, train() waits for it.
+	 * 
+	 * @param documents
+	 *            held-out documents, or null to disable the evaluation
+	 * @param interval
+	 *            in iterations
+	 * @param iterations
+	 *            per document, for inferring its topics
+	 */
+	public void setHeldOut(int[][] documents, int interval, int iterations) {
+		if (documents != null && interval < 1)
+			throw new IllegalArgumentException("interval must be >= 1");
+		this.heldOut = documents;
+		this.heldOutInterval = interval;
+		this.heldOutIterations = iterations;
+	}
+
+	/**
+	 * Lets {@link #train} stop before maxIter once the log-likelihood, the
+	 * number of topics and the number of tables have converged: their means
+	 * over the last window iterations differ from the means over the window
+	 * before by at most tolerance, relatively. The
+	 * {@link TrainingResult} tells whether and when training stopped early.
+	 * 
+	 * @param window
+	 *            in iterations, 0 to disable (default)
+	 * @param tolerance
+	 *            e.g. 0.01 for 1%
+	 */
+	public void setConvergence(int window, double tolerance) {
+		if (window < 0)
+			throw new IllegalArgumentException("window must be >= 0");
+		if (!(tolerance >= 0))
+			throw new IllegalArgumentException("tolerance must be >= 0");
+		this.convergenceWindow = window;
+		this.convergenceTolerance = tolerance;
+	}
+
+	/** @return |K| */
+	public int getNumberOfTopics() {
+		return numberOfTopics - numberOfFreeTopics;
+	}
+
+	/** @return the number of occupied tables in all documents */
+	public int getTotalNumberOfTables() {
+		return totalNumberOfTables;
+	}
+
+	/**
+	 * @return a read-only copy of the trained topics, for inferring the topics
+	 *         of held-out documents
+	 */
+	public HDPModel getModel() {
+		return new HDPModel(numberOfTopics, sizeOfVocabulary,
+				numberOfTablesByTopic, wordCountByTopic, wordCountByTopicAndTerm,
+				alpha, beta, gamma);
+	}
+
+	/**
+	 * Initially randomly assign the words to tables and topics.
+	 * 
+	 * @param corpus
+	 *            {@link CLDACorpus#getDocuments()} on which to fit the model
+	 * @param V
+	 *            the size of the vocabulary
+	 */
+	public void addInstances(int[][] documentsInput, int V) {
+		int[] lengths = new int[documentsInput.length];
+		int W = 0;
+		for (int d = 0; d < documentsInput.length; d++)
+			W += lengths[d] = documentsInput[d].length;
+		int[] terms = new int[W];
+		for (int d = 0, offset = 0; d < documentsInput.length; d++) {
+			System.arraycopy(documentsInput[d], 0, terms, offset, lengths[d]);
+			offset += lengths[d];
+		}
+		store = null;
+		setDocuments(IntArray.wrap(terms), IntArray.wrap(new int[W]),
+				lengths, V);
+		initialize();
+	}
+
+	/**
+	 * Adds documents to a model that was already trained, instead of starting
+	 * over with {@link #addInstances(int[][], int)}. The counts grow to a
+	 * larger vocabulary if needed. The words of the new documents are assigned
+	 * one after the other by sampling from the current model, rather than at
+	 * random. The new documents then get burnIn sweeps of their own before the
+	 * next train() samples all documents again.
+	 * 
+	 * @param documentsInput
+	 *            the terms of the new documents, which get the ids after those
+	 *            of the documents so far
+	 * @param V
+	 *            the size of the vocabulary, no less than before
+	 * @param burnIn
+	 *            number of sweeps over the new documents only
+	 */
+	public void appendInstances(int[][] documentsInput, int V, int burnIn) {
+		if (docs == null)
+			throw new IllegalStateException("no model yet, use addInstances()");
+		if (store != null)
+			throw new IllegalStateException(
+					"cannot append to a memory-mapped corpus");
+		if (V < sizeOfVocabulary)
+			throw new IllegalArgumentException("V must be >= "
+					+ sizeOfVocabulary);
+		if (burnIn < 0)
+			throw new IllegalArgumentException("burnIn must be >= 0");
+		int firstNewDoc = docs.length, W = totalNumberOfWords;
+		for (int[] document : documentsInput)
+			W += document.length;
+		int[] terms = new int[W], tables = new int[W];
+		for (int i = 0; i < totalNumberOfWords; i++) {
+			terms[i] = termIndices.get(i);
+			tables[i] = tableAssignments.get(i);
+		}
+		docs = Arrays.copyOf(docs, firstNewDoc + documentsInput.length);
+		for (int d = 0; d < documentsInput.length; d++) {
+			int length = documentsInput[d].length;
+			System.arraycopy(documentsInput[d], 0, terms, totalNumberOfWords,
+					length);
+			docs[firstNewDoc + d] = new Doc(firstNewDoc + d,
+					totalNumberOfWords, length);
+			totalNumberOfWords += length;
+		}
+		termIndices = IntArray.wrap(terms);
+		tableAssignments = IntArray.wrap(tables);
+		if (V > sizeOfVocabulary) {
+			wordCountByTopicAndTerm = wordCountByTopicAndTerm.withVocabulary(V);
+			sizeOfVocabulary = V;
+			topicGeneration++;
+		}
+
+		Worker worker = ensureWorkers(1)[0];
+		worker.adopt();
+		for (int di = firstNewDoc; di < docs.length; di++)
+			for (int wi = 0; wi < docs[di].documentLength; wi++)
+				worker.addWord(di, wi);
+		worker.publish();
+		for (int i = 0; i < burnIn; i++)
+			gibbsSampling(firstNewDoc, docs.length);
+	}
+
+	/**
+	 * Initially randomly assign the words to tables and topics, keeping the
+	 * words and their assignments in a {@link MappedWordStore} rather than on
+	 * the heap. In this mode {@link #shuffle()} only permutes the documents.
+	 */
+	public void addInstances(MappedWordStore store) throws IOException {
+		this.store = store;
+		setDocuments(store.words, store.tables, store.documentLengths,
+				store.sizeOfVocabulary);
+		storeGeneration = store.getProgressGeneration();
+		initialize();
+		defragment(); // saves the initial state
+	}
+
+	/**
+	 * Continues from the assignments in a {@link MappedWordStore} that a
+	 * previous (possibly killed) run was training on. The counts are
+	 * recomputed in a single pass over the words; words that were moved to a
+	 * table created after the last saved state are sampled again.
+	 */
+	public void resumeInstances(MappedWordStore store) throws IOException {
+		MappedWordStore.State state = store.readState();
+		if (state == null)
+			throw new IOException("nothing to resume, use addInstances()");
+		this.store = store;
+		setDocuments(store.words, store.tables, store.documentLengths,
+				store.sizeOfVocabulary);
+		storeGeneration = state.generation;
+		int renumbered;
+		if (store.getProgressGeneration() == state.generation)
+			renumbered = store.getProgressRenumbered();
+		else if (store.getProgressGeneration() == state.generation - 1)
+			renumbered = 0; // killed right after saving the state
+		else
+			throw new IOException("inconsistent store, generation "
+					+ store.getProgressGeneration() + " with state "
+					+ state.generation);
+
+		Doc[] byId = docs;
+		docs = new Doc[byId.length];
+		for (int i = 0; i < docs.length; i++)
+			docs[i] = byId[state.ids[i]];
+		renumberStoredTables(state, renumbered); // finish an interrupted one
+
+		numberOfTopics = state.numberOfTopics;
+		allocateTopicCounts();
+		boolean[] incomplete = new boolean[docs.length];
+		for (int di = 0; di < docs.length; di++)
+			incomplete[di] = !countWords(docs[di], state.numberOfTables[di],
+					state.tableToTopic[di]);
+		Worker worker = ensureWorkers(1)[0];
+		worker.adopt();
+		for (int di = 0; di < docs.length; di++)
+			if (incomplete[di])
+				for (int wi = 0; wi < docs[di].documentLength; wi++)
+					if (tableAssignments.get(docs[di].offset + wi) < 0)
+						worker.addWord(di, wi);
+		worker.publish();
+		defragment();
+	}
+
+	/**
+	 * Continues training from a {@link Checkpoint} written during an earlier
+	 * {@link #train} (see {@link #setCheckpoint(File, int)}). The next train()
+	 * starts at the iteration after the checkpoint and, with a single thread,
+	 * gives exactly the results the checkpointed run would have. Settings
+	 * like the sampling method are not saved.
+	 */
+	public void resume(File file) throws IOException {
+		Checkpoint checkpoint = Checkpoint.read(file);
+		store = null;
+		setDocuments(IntArray.wrap(checkpoint.terms),
+				IntArray.wrap(checkpoint.tables), checkpoint.lengths,
+				checkpoint.sizeOfVocabulary);
+		numberOfTopics = checkpoint.numberOfTopics;
+		alpha = checkpoint.alpha;
+		beta = checkpoint.beta;
+		gamma = checkpoint.gamma;
+		allocateTopicCounts();
+		for (int di = 0; di < docs.length; di++) {
+			docs[di].id = checkpoint.ids[di];
+			if (!countWords(docs[di], checkpoint.tableToTopic[di].length,
+					checkpoint.tableToTopic[di]))
+				throw new IOException("corrupt checkpoint, document "
+						+ checkpoint.ids[di]);
+		}
+		for (int k = 0; k < numberOfTopics; k++)
+			if (numberOfTablesByTopic[k] != checkpoint.numberOfTablesByTopic[k]
+					|| wordCountByTopic[k] != checkpoint.wordCountByTopic[k])
+				throw new IOException("corrupt checkpoint, topic " + k);
+		findFreeTopics();
+
+		random = checkpoint.randoms[0];
+		workers = new Worker[checkpoint.randoms.length - 1];
+		for (int w = 0; w < workers.length; w++)
+			workers[w] = new Worker(checkpoint.randoms[w + 1]);
+		firstIteration = checkpoint.iteration;
+	}
+
+	/**
+	 * Sets a document's tables and adds its words to the counts
+	 * 
+	 * @return false if some words are not at one of the tables, their
+	 *         assignments are then set to -1
+	 */
+	private boolean countWords(Doc doc, int numberOfTables, int[] tableToTopic) {
+		boolean complete = true;
+		doc.numberOfTables = numberOfTables;
+		doc.tableToTopic = new int[numberOfTables * 2 + 2];
+		doc.wordCountByTable = new int[doc.tableToTopic.length];
+		System.arraycopy(tableToTopic, 0, doc.tableToTopic, 0, numberOfTables);
+		for (int i = doc.offset; i < doc.offset + doc.documentLength; i++) {
+			int ti = tableAssignments.get(i);
+			if (ti < 0 || ti >= numberOfTables || tableToTopic[ti] < 0) {
+				complete = false;
+				tableAssignments.set(i, -1);
+				continue;
+			}
+			int ki = doc.tableToTopic[ti];
+			doc.wordCountByTable[ti]++;
+			wordCountByTopic[ki]++;
+			wordCountByTopicAndTerm.increment(ki, termIndices.get(i));
+		}
+		doc.numberOfFreeTables = 0;
+		for (int ti = 0; ti < numberOfTables; ti++)
+			if (doc.wordCountByTable[ti] > 0) {
+				numberOfTablesByTopic[doc.tableToTopic[ti]]++;
+				totalNumberOfTables++;
+			} else {
+				doc.tableToTopic[ti] = -1;
+				doc.freeTable(ti);
+			}
+		return complete;
+	}
+
+	/**
+	 * @param terms
+	 *            |W|, the words of all documents
+	 * @param tables
+	 *            |W|, for the table assignments
+	 * @param lengths
+	 *            |D|, of the documents
+	 * @param V
+	 *            the size of the vocabulary
+	 */
+	private void setDocuments(IntArray terms, IntArray tables, int[] lengths,
+			int V) {
+		sizeOfVocabulary = V;
+		termIndices = terms;
+		tableAssignments = tables;
+		totalNumberOfWords = 0;
+		docs = new Doc[lengths.length];
+		for (int d = 0; d < lengths.length; d++) {
+			docs[d] = new Doc(d, totalNumberOfWords, lengths[d]);
+			totalNumberOfWords += lengths[d];
+		}
+		topicGeneration++;
+		firstIteration = 0;
+	}
+
+	/** Allocates the counts for numberOfTopics topics, all zero */
+	private void allocateTopicCounts() {
+		totalNumberOfTables = 0;
+		numberOfFreeTopics = 0;
+		numberOfTablesByTopic = new int[numberOfTopics + 1];
+		wordCountByTopic = new int[numberOfTopics + 1];
+		if (countStorage == CountStorage.SPARSE
+				|| (countStorage == CountStorage.AUTO
+						&& sizeOfVocabulary > SPARSE_COUNTS_VOCABULARY_SIZE))
+			wordCountByTopicAndTerm = TopicTermCounts.sparse(sizeOfVocabulary);
+		else if (countStorage == CountStorage.COMPACT)
+			wordCountByTopicAndTerm = TopicTermCounts.compact(
+					sizeOfVocabulary, numberOfTopics);
+		else if (countStorage == CountStorage.TERM_MAJOR)
+			wordCountByTopicAndTerm = TopicTermCounts.termMajor(
+					sizeOfVocabulary, numberOfTopics);
+		else
+			wordCountByTopicAndTerm = TopicTermCounts.dense(sizeOfVocabulary,
+					numberOfTopics);
+	}
+
+	/** Initially randomly assign the words to tables and topics */
+	private void initialize() {
+		numberOfTopics = 1;
+		allocateTopicCounts();
+		Worker worker = ensureWorkers(1)[0];
+		worker.adopt();
+		for (int k = 0; k < numberOfTopics; k++) {
+			Doc doc = docs[k];
+			for (int wi = 0; wi < doc.documentLength; wi++)
+				worker.updateWord(doc.id, wi, 0, k);
+		} // all topics have now one document
+		for (int di = numberOfTopics /* ! */; di < docs.length; di++) {
+			Doc doc = docs[di];
+			int k = random.nextInt(numberOfTopics);
+			for (int wi = 0; wi < doc.documentLength; wi++)
+				worker.updateWord(doc.id, wi, 0, k);
+		} // the words in the remaining documents are now assigned too, at rnd
+		worker.publish();
+	}
+
+	/**
+	 * Trains (fits) the model by Gibbs sampling.
+	 * 
+	 * @param shuffleLag
+	 *            at which interval to shuffle the documents
+	 * @param maxIter
+	 *            number of iterations to run
+	 * @param saveLag
+	 *            save interval
+	 * @param log
+	 *            to write to
+	 * @return whether all iterations ran, and how many
+	 */
+	public TrainingResult train(int shuffleLag, int maxIter, PrintStream log)
+			throws IOException {
+		return train(shuffleLag, maxIter, 1, 0, log);
+	}
+
+	/**
+	 * Trains (fits) the model by approximate distributed Gibbs sampling
+	 * (AD-HDP): the documents are partitioned across worker threads, each of
+	 * which samples against its own replica of the topic counts. Every
+	 * syncInterval documents the workers' deltas are merged into the global
+	 * counts, and the topics they created independently are given distinct
+	 * global ids.
+	 * 
+	 * @param shuffleLag
+	 *            at which interval to shuffle the documents
+	 * @param maxIter
+	 *            number of iterations to run
+	 * @param numberOfThreads
+	 *            number of worker threads, 1 for the exact sequential sampler
+	 * @param syncInterval
+	 *            number of documents each worker samples between two merges,
+	 *            or 0 to merge once per iteration
+	 * @param log
+	 *            to write to
+	 * @return whether all iterations ran, and how many
+	 */
+	public TrainingResult train(int shuffleLag, int maxIter,
+			int numberOfThreads, int syncInterval, PrintStream log)
+			throws IOException {
+		if (numberOfThreads < 1)
+			throw new IllegalArgumentException("numberOfThreads must be >= 1");
+		if (syncInterval < 0)
+			throw new IllegalArgumentException("syncInterval must be >= 0");
+		numberOfThreads = Math.min(numberOfThreads, docs.length);
+		ensureWorkers(numberOfThreads);
+		if (groupTerms)
+			groupWordsByTerm();
+		int firstIteration = this.firstIteration;
+		this.firstIteration = 0;
+		TrainingResult result = new TrainingResult(
+				TrainingResult.StopReason.MAX_ITERATIONS, Math.max(maxIter,
+						firstIteration));
+		Training training = new Training(numberOfThreads, syncInterval, log);
+		try {
+			for (int iter = firstIteration; iter < maxIter; iter++) {
+
+				if ((shuffleLag > 0) && (iter > 0) && (iter % shuffleLag == 0))
+					shuffle(training.executor, numberOfThreads);
+				long wall = training.sweep(iter);
+				if (training.afterIteration(iter, wall)) {
+					result = new TrainingResult(
+							TrainingResult.StopReason.CONVERGED, iter + 1);
+					log.println("converged after iteration " + iter);
+					break;
+				}
+			}
+			training.finish();
+		} finally {
+			training.shutdown();
+		}
+		log.println("training complete");
+		return result;
+	}
+
+	/**
+	 * The threads and the pending background work of one {@link #train}, and
+	 * the steps it takes around every sweep
+	 */
+	private class Training {
+
+		/** samples in parallel, or null */
+		final ExecutorService executor;
+		final int numberOfThreads, syncInterval;
+		final PrintStream log;
+		/** writes checkpoints and output, or null */
+		final ExecutorService backgroundWriter;
+		Future<?> checkpointWritten, outputWritten;
+		/** notifies the listeners, or null */
+		final ExecutorService reporter;
+		final TrainingListener[] listeners;
+		final LinkedList<Future<?>> reports = new LinkedList<Future<?>>();
+		Future<?> heldOutEvaluated;
+		/** or null */
+		final ConvergenceMonitor convergence;
+		final long startMillis = currentTimeMillis();
+
+		Training(int numberOfThreads, int syncInterval, PrintStream log) {
+			this.numberOfThreads = numberOfThreads;
+			this.syncInterval = syncInterval;
+			this.log = log;
+			executor = numberOfThreads > 1 ? Executors
+					.newFixedThreadPool(numberOfThreads) : null;
+			backgroundWriter = checkpointInterval > 0 || outputInterval > 0 ? Executors
+					.newSingleThreadExecutor() : null;
+			listeners = HDPGibbsSampler.this.listeners
+					.toArray(new TrainingListener[0]);
+			reporter = listeners.length > 0 ? Executors
+					.newSingleThreadExecutor() : null;
+			startTiming(reporter != null);
+			convergence = convergenceWindow > 0 ? new ConvergenceMonitor(3,
+					convergenceWindow, convergenceTolerance) : null;
+			log.println("time\titer\t#topics\t#tables"
+					+ (executor != null ? "\tspeedup/core" : "")
+					+ (resampleConcentrations ? "\talpha\tgamma" : ""));
+		}
+
+		/**
+		 * One sweep, the concentrations and a line of the log
+		 * 
+		 * @return the wall time of the sweep, in ns
+		 */
+		long sweep(int iter) {
+			long sweepStart = System.nanoTime();
+			long busy;
+			if (executor == null)
+				busy = gibbsSampling();
+			else
+				busy = gibbsSampling(executor, numberOfThreads, syncInterval);
+			long wall = System.nanoTime() - sweepStart;
+			if (resampleConcentrations && iter >= resamplingBurnIn)
+				resampleConcentrations();
+
+			int time = (int) ((currentTimeMillis() - startMillis) / 1000);
+			log.println(time + "\t" + iter + "\t" + getNumberOfTopics() + "\t"
+					+ totalNumberOfTables
+					+ (executor != null ? String.format("\t%.2f",
+							(double) busy / wall / numberOfThreads) : "")
+					+ (resampleConcentrations ? String.format("\t%.4f\t%.4f",
+							alpha, gamma) : ""));
+			return wall;
+		}
+
+		/**
+		 * Reports the metrics, writes what is due and checks for convergence
+		 * 
+		 * @return whether training converged
+		 */
+		boolean afterIteration(int iter, long wall) throws IOException {
+			double logLikelihood = Double.NaN;
+			if (reporter != null || convergence != null)
+				logLikelihood = logLikelihood();
+			if (reporter != null)
+				report(iter, wall, logLikelihood);
+			if (checkpointInterval > 0 && (iter + 1) % checkpointInterval == 0)
+				writeCheckpoint(iter + 1);
+			if (topTerms != null && (iter + 1) % topWordsInterval == 0)
+				refreshTopWords(executor, numberOfThreads);
+			if (outputInterval > 0 && (iter + 1) % outputInterval == 0)
+				writeOutput();
+			return convergence != null
+					&& convergence.add(logLikelihood, getNumberOfTopics(),
+							totalNumberOfTables);
+		}
+
+		/**
+		 * Hands the metrics, with a held-out evaluation when it is due, to the
+		 * listeners on the reporter thread
+		 */
+		private void report(int iter, long wall, double logLikelihood)
+				throws IOException {
+			final TrainingMetrics metrics = metrics(iter, wall, startMillis,
+					logLikelihood);
+			final int[][] heldOut = HDPGibbsSampler.this.heldOut;
+			final HDPModel model;
+			if (heldOut != null && (iter + 1) % heldOutInterval == 0) {
+				waitFor(heldOutEvaluated);
+				model = getModel();
+			} else
+				model = null;
+			final int heldOutIterations = HDPGibbsSampler.this.heldOutIterations;
+			Future<?> report = reporter.submit(new Callable<Void>() {
+				public Void call() {
+					if (model != null)
+						metrics.heldOutPerplexity = model.perplexity(heldOut,
+								heldOutIterations, new FastRandom(seed
+										+ metrics.iteration));
+					for (TrainingListener listener : listeners)
+						listener.iterationCompleted(metrics);
+					return null;
+				}
+			});
+			if (model != null)
+				heldOutEvaluated = report;
+			reports.add(report);
+			while (!reports.isEmpty() && reports.peek().isDone())
+				waitFor(reports.poll());
+		}
+
+		private void writeCheckpoint(int iteration) throws IOException {
+			waitFor(checkpointWritten);
+			if (isFragmented(0))
+				defragment(); // the free lists are not saved
+			final Checkpoint checkpoint = checkpoint(iteration);
+			final File file = checkpointFile;
+			checkpointWritten = backgroundWriter.submit(new Callable<Void>() {
+				public Void call() throws IOException {
+					checkpoint.write(file);
+					return null;
+				}
+			});
+		}
+
+		private void writeOutput() throws IOException {
+			waitFor(outputWritten);
+			if (isFragmented(0))
+				defragment(); // topic ids as after training
+			outputWritten = backgroundWriter.submit(output());
+		}
+
+		/** Waits for the background work and leaves the counts compacted */
+		void finish() throws IOException {
+			waitFor(checkpointWritten);
+			waitFor(outputWritten);
+			for (Future<?> report : reports)
+				waitFor(report);
+			if (isFragmented(0))
+				defragment(); // for the counts of the public API
+			else if (store != null)
+				saveState(null); // resume from where training ended
+			if (topTerms != null)
+				refreshTopWords(executor, numberOfThreads);
+		}
+
+		void shutdown() {
+			if (executor != null)
+				executor.shutdown();
+			if (backgroundWriter != null)
+				backgroundWriter.shutdown();
+			if (reporter != null)
+				reporter.shutdown();
+			startTiming(false);
+		}
+	}
+
+	private void refreshTopWords(ExecutorService executor, int numberOfThreads) {
+		topTerms.refresh(wordCountByTopicAndTerm, numberOfTopics,
+				topicGeneration, executor, executor != null ? numberOfThreads
+						: 1);
+		topWords = topTerms.publish();
+	}
+
+	/**
+	 * Collects the metrics of an iteration and restarts the timing
+	 * 
+	 * @param sweepNanos
+	 *            wall time of the sweep
+	 */
+	private TrainingMetrics metrics(int iteration, long sweepNanos,
+			long startMillis, double logLikelihood) {
+		TrainingMetrics metrics = new TrainingMetrics();
+		metrics.iteration = iteration;
+		metrics.elapsedMillis = currentTimeMillis() - startMillis;
+		metrics.numberOfWords = totalNumberOfWords;
+		metrics.sweepNanos = sweepNanos;
+		long timedNanos = 0, timedTopicNanos = 0, timedWords = 0;
+		for (Worker worker : workers) {
+			timedNanos += worker.timedNanos;
+			timedTopicNanos += worker.timedTopicNanos;
+			timedWords += worker.timedWords;
+		}
+		if (timedWords > 0) { // extrapolated to all words
+			metrics.sampleTableNanos = (double) (timedNanos - timedTopicNanos)
+					/ timedWords * totalNumberOfWords;
+			metrics.sampleTopicNanos = (double) timedTopicNanos / timedWords
+					* totalNumberOfWords;
+		}
+		metrics.defragmentNanos = endSweepNanos;
+		metrics.numberOfTopics = getNumberOfTopics();
+		metrics.numberOfTables = totalNumberOfTables;
+		metrics.alpha = alpha;
+		metrics.gamma = gamma;
+		metrics.logLikelihood = logLikelihood;
+		startTiming(true);
+		return metrics;
+	}
+
+	/** Resets the timing of the workers and of {@link #endSweep()} */
+	private void startTiming(boolean timing) {
+		for (Worker worker : workers) {
+			worker.timing = timing;
+			worker.timedNanos = worker.timedTopicNanos = 0;
+			worker.timedWords = 0;
+		}
+		endSweepNanos = 0;
+	}
+
+	/**
+	 * The joint log-likelihood of the words and their tables and topics
+	 * under the Chinese restaurant franchise, log p(w, t, k) (Teh et al.
+	 * 2006); rises during burn-in and then levels off. Takes time in
+	 * proportion to the non-zero counts where they are listed
+	 * ({@link SamplingMethod#SPARSE} or {@link CountStorage#SPARSE});
+	 * otherwise it reads all K x |V| topic-term counts.
+	 */
+	public double logLikelihood() {
+		int K = numberOfTopics;
+		double vb = sizeOfVocabulary * beta;
+		LogGamma ofCounts = logGammaOfCounts = LogGamma.of(logGammaOfCounts,
+				0.0, LOG_GAMMA_TABLE_SIZE);
+		LogGamma ofAlpha = logGammaOfAlpha = LogGamma.of(logGammaOfAlpha,
+				alpha, LOG_GAMMA_TABLE_SIZE);
+		LogGamma ofBeta = logGammaOfBeta = LogGamma.of(logGammaOfBeta, beta,
+				LOG_GAMMA_TABLE_SIZE);
+
+		// the topics' words
+		double words = 0.0, logGammaVb = LogGamma.logGamma(vb);
+		int activeTopics = 0;
+		for (int k = 0; k < K; k++)
+			if (wordCountByTopic[k] > 0) {
+				activeTopics++;
+				words += logGammaVb
+						- LogGamma.logGamma(wordCountByTopic[k] + vb);
+			}
+		double logGammaBeta = ofBeta.of(0);
+		if (wordCountByTopicAndTerm.isIndexed())
+			for (int v = 0; v < sizeOfVocabulary; v++)
+				for (int i = 0; i < wordCountByTopicAndTerm.size(v); i++)
+					words += ofBeta.of(wordCountByTopicAndTerm.countAt(v, i))
+							- logGammaBeta;
+		else {
+			int[] counts = new int[K];
+			for (int v = 0; v < sizeOfVocabulary; v++) {
+				wordCountByTopicAndTerm.getTerm(v, counts, K);
+				for (int k = 0; k < K; k++)
+					if (counts[k] > 0)
+						words += ofBeta.of(counts[k]) - logGammaBeta;
+			}
+		}
+
+		// the documents' tables
+		double tables = totalNumberOfTables * Math.log(alpha);
+		double logGammaAlpha = ofAlpha.of(0);
+		for (Doc doc : docs) {
+			tables += logGammaAlpha - ofAlpha.of(doc.documentLength);
+			for (int ti = 0; ti < doc.numberOfTables; ti++)
+				if (doc.wordCountByTable[ti] > 0)
+					tables += ofCounts.of(doc.wordCountByTable[ti]);
+		}
+
+		// the tables' topics
+		double topics = activeTopics * Math.log(gamma)
+				+ LogGamma.logGamma(gamma)
+				- LogGamma.logGamma(totalNumberOfTables + gamma);
+		for (int k = 0; k < K; k++)
+			if (numberOfTablesByTopic[k] > 0)
+				topics += ofCounts.of(numberOfTablesByTopic[k]);
+		return words + tables + topics;
+	}
+
+	/**
+	 * Resamples gamma given the number of topics and tables, and alpha given
+	 * the numbers of words and tables of the documents (Teh et al. 2006,
+	 * appendix A)
+	 */
+	private void resampleConcentrations() {
+		double rate = CONCENTRATION_RATE
+				- Math.log(RandomVariates.beta(random, gamma + 1.0,
+						totalNumberOfTables));
+		double shape = CONCENTRATION_SHAPE + getNumberOfTopics();
+		double odds = (shape - 1.0) / (totalNumberOfTables * rate);
+		if (random.nextDouble() * (1.0 + odds) >= odds)
+			shape -= 1.0;
+		gamma = RandomVariates.gamma(random, shape) / rate;
+
+		for (int round = 0; round < ALPHA_RESAMPLING_ROUNDS; round++) {
+			shape = CONCENTRATION_SHAPE + totalNumberOfTables;
+			rate = CONCENTRATION_RATE;
+			for (Doc doc : docs) {
+				if (doc.documentLength == 0)
+					continue;
+				rate -= Math.log(RandomVariates.beta(random, alpha + 1.0,
+						doc.documentLength));
+				double n = doc.documentLength;
+				if (random.nextDouble() * (n + alpha) < n)
+					shape -= 1.0;
+			}
+			alpha = RandomVariates.gamma(random, shape) / rate;
+		}
+	}
+
+	/**
+	 * Copies the state for a {@link Checkpoint}, between two sweeps
+	 * 
+	 * @param iteration
+	 *            number of completed iterations
+	 */
+	private Checkpoint checkpoint(int iteration) {
+		Checkpoint checkpoint = new Checkpoint();
+		checkpoint.iteration = iteration;
+		checkpoint.sizeOfVocabulary = sizeOfVocabulary;
+		checkpoint.numberOfTopics = numberOfTopics;
+		checkpoint.alpha = alpha;
+		checkpoint.beta = beta;
+		checkpoint.gamma = gamma;
+		checkpoint.numberOfTablesByTopic = Arrays.copyOf(numberOfTablesByTopic,
+				numberOfTopics);
+		checkpoint.wordCountByTopic = Arrays.copyOf(wordCountByTopic,
+				numberOfTopics);
+		copyWords(checkpoint);
+		checkpoint.randoms = new FastRandom[workers.length + 1];
+		checkpoint.randoms[0] = random.copy();
+		for (int w = 0; w < workers.length; w++)
+			checkpoint.randoms[w + 1] = workers[w].random.copy();
+		// a resumed run rebuilds the sparse index, with its topics in another
+		// order; rebuilding it here as well keeps the two runs identical
+		wordCountByTopicAndTerm.unindex();
+		return checkpoint;
+	}
+
+	/** Copies the documents' words and tables into a checkpoint */
+	private void copyWords(Checkpoint checkpoint) {
+		checkpoint.ids = new int[docs.length];
+		checkpoint.lengths = new int[docs.length];
+		checkpoint.tableToTopic = new int[docs.length][];
+		checkpoint.terms = new int[totalNumberOfWords];
+		checkpoint.tables = new int[totalNumberOfWords];
+		for (int di = 0, i = 0; di < docs.length; di++) {
+			Doc doc = docs[di];
+			checkpoint.ids[di] = doc.id;
+			checkpoint.lengths[di] = doc.documentLength;
+			checkpoint.tableToTopic[di] = Arrays.copyOf(doc.tableToTopic,
+					doc.numberOfTables);
+			for (int wi = 0; wi < doc.documentLength; wi++, i++) {
+				checkpoint.terms[i] = termIndices.get(doc.offset + wi);
+				checkpoint.tables[i] = tableAssignments.get(doc.offset + wi);
+			}
+		}
+	}
+
+	/**
+	 * Copies the counts and assignments for {@link #setOutput}, between two
+	 * sweeps
+	 * 
+	 * @return writes the copy
+	 */
+	private Callable<Void> output() {
+		final TopicsWriter topicsWriter = this.topicsWriter;
+		final WordAssignmentsWriter assignmentsWriter = this.assignmentsWriter;
+		final int K = numberOfTopics, V = sizeOfVocabulary;
+		final TopicTermCounts counts = topicsWriter != null ? wordCountByTopicAndTerm
+				.copy(null, K) : null;
+		final Checkpoint words = new Checkpoint();
+		if (assignmentsWriter != null)
+			copyWords(words);
+		return new Callable<Void>() {
+			public Void call() throws IOException {
+				if (topicsWriter != null)
+					writeTopics(counts, K, V, topicsWriter);
+				if (assignmentsWriter != null)
+					writeWordAssignments(words, assignmentsWriter);
+				return null;
+			}
+		};
+	}
+
+	/** Writes the word counts of the topics, see {@link TopicsWriter} */
+	public void writeTopics(TopicsWriter writer) throws IOException {
+		writeTopics(wordCountByTopicAndTerm, numberOfTopics, sizeOfVocabulary,
+				writer);
+	}
+
+	static void writeTopics(TopicTermCounts counts, int K, int V,
+			TopicsWriter writer) throws IOException {
+		int[] countsByTerm = new int[V];
+		writer.open(K, V);
+		for (int k = 0; k < K; k++) {
+			counts.getTopic(k, countsByTerm);
+			writer.writeTopic(countsByTerm);
+		}
+		writer.close();
+	}
+
+	/**
+	 * Writes the document id, term, topic and table of every word, see
+	 * {@link WordAssignmentsWriter}
+	 */
+	public void writeWordAssignments(WordAssignmentsWriter writer)
+			throws IOException {
+		writer.openForIteration();
+		for (Doc doc : docs)
+			for (int i = doc.offset; i < doc.offset + doc.documentLength; i++) {
+				int t = tableAssignments.get(i);
+				writer.writeAssignment(doc.id, termIndices.get(i),
+						doc.tableToTopic[t], t);
+			}
+		writer.closeIteration();
+	}
+
+	/** Writes the assignments copied by {@link #copyWords(Checkpoint)} */
+	private static void writeWordAssignments(Checkpoint words,
+			WordAssignmentsWriter writer) throws IOException {
+		writer.openForIteration();
+		for (int d = 0, i = 0; d < words.ids.length; d++)
+			for (int wi = 0; wi < words.lengths[d]; wi++, i++) {
+				int t = words.tables[i];
+				writer.writeAssignment(words.ids[d], words.terms[i],
+						words.tableToTopic[d][t], t);
+			}
+		writer.closeIteration();
+	}
+
+	/** Waits for a checkpoint to be written or a background task, if any */
+	private static void waitFor(Future<?> written) throws IOException {
+		if (written == null)
+			return;
+		try {
+			written.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * Gibbs sampling, then defragment
+	 * 
+	 * @return the time spent sampling, in ns
+	 */
+	long gibbsSampling() {
+		return gibbsSampling(0, docs.length);
+	}
+
+	/**
+	 * Gibbs sampling of the documents from (inclusive) to to (exclusive)
+	 * only, then defragment
+	 * 
+	 * @return the time it took, in ns
+	 */
+	private long gibbsSampling(int from, int to) {
+		long start = System.nanoTime();
+		Worker worker = workers[0];
+		worker.adopt();
+		worker.sampleDocuments(from, to);
+		worker.publish();
+		endSweep();
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * Parallel Gibbs sampling over contiguous partitions of the documents,
+	 * then defragment
+	 * 
+	 * @return the sum of the time the workers spent sampling and merging
+	 *         (excluding waiting on each other), in ns
+	 */
+	private long gibbsSampling(ExecutorService executor,
+			final int numberOfThreads, int syncInterval) {
+		final int partition = (docs.length + numberOfThreads - 1)
+				/ numberOfThreads;
+		final int chunk = syncInterval > 0 ? syncInterval : partition;
+		final int rounds = (partition + chunk - 1) / chunk;
+		if (topTerms != null)
+			topTerms.invalidate(); // the replicas do not offer their terms
+		final int[] firstTopicOfRound = new int[1];
+		final CyclicBarrier sampled = new CyclicBarrier(numberOfThreads,
+				new Runnable() {
+					public void run() {
+						reconcileTopics(numberOfThreads, firstTopicOfRound[0]);
+					}
+				});
+		final int[] round = new int[1], numberOfChangedTerms = new int[1];
+		final CyclicBarrier merged = new CyclicBarrier(numberOfThreads,
+				new Runnable() {
+					public void run() {
+						firstTopicOfRound[0] = numberOfTopics;
+						if (samplingMethod == SamplingMethod.SPARSE)
+							numberOfChangedTerms[0] = findChangedTerms(
+									numberOfThreads, partition, chunk,
+									round[0]);
+						round[0]++;
+					}
+				});
+		firstTopicOfRound[0] = numberOfTopics;
+
+		List<Future<Long>> results = new ArrayList<Future<Long>>();
+		for (int w = 0; w < numberOfThreads; w++) {
+			final Worker worker = workers[w];
+			final int from = Math.min(w * partition, docs.length);
+			final int to = Math.min(from + partition, docs.length);
+			final int slice = w;
+			results.add(executor.submit(new Callable<Long>() {
+				public Long call() throws InterruptedException,
+						BrokenBarrierException {
+					long busy = 0, t = System.nanoTime();
+					try {
+						worker.replicate();
+						for (int round = 0; round < rounds; round++) {
+							int di = Math.min(from + round * chunk, to);
+							worker.sampleDocuments(di, Math.min(di + chunk, to));
+							busy += System.nanoTime() - t;
+							sampled.await();
+							t = System.nanoTime();
+							mergeTopicCounts(numberOfThreads, slice);
+							busy += System.nanoTime() - t;
+							merged.await();
+							t = System.nanoTime();
+							worker.reindex(changedTerms,
+									numberOfChangedTerms[0]);
+						}
+					} catch (RuntimeException e) {
+						sampled.reset(); // release the other workers
+						merged.reset();
+						throw e;
+					}
+					return busy;
+				}
+			}));
+		}
+		long busy = 0;
+		try {
+			for (Future<Long> result : results)
+				busy += result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+		wordCountByTopicAndTerm.unindex(); // the merges changed the counts
+		long start = System.nanoTime();
+		findFreeTopics();
+		endSweep();
+		return busy + System.nanoTime() - start;
+	}
+
+	/**
+	 * Collects the distinct terms of the documents the workers sampled in a
+	 * round, the only terms whose counts the merge can have changed
+	 * 
+	 * @return the number of terms at the start of {@link #changedTerms}
+	 */
+	private int findChangedTerms(int numberOfThreads, int partition,
+			int chunk, int round) {
+		if (changedTerms == null || changedTerms.length != sizeOfVocabulary) {
+			changedTerms = new int[sizeOfVocabulary];
+			termChanged = new boolean[sizeOfVocabulary];
+		}
+		int n = 0;
+		for (int w = 0; w < numberOfThreads; w++) {
+			int from = Math.min(w * partition, docs.length);
+			int to = Math.min(from + partition, docs.length);
+			int first = Math.min(from + round * chunk, to);
+			for (int di = first; di < Math.min(first + chunk, to); di++)
+				for (int i = docs[di].offset; i < docs[di].offset
+						+ docs[di].documentLength; i++) {
+					int term = termIndices.get(i);
+					if (!termChanged[term]) {
+						termChanged[term] = true;
+						changedTerms[n++] = term;
+					}
+				}
+		}
+		for (int i = 0; i < n; i++)
+			termChanged[changedTerms[i]] = false;
+		return n;
+	}
+
+	/**
+	 * Gives the topics the workers created since the last merge distinct
+	 * global ids, grows the global counts accordingly and merges the per-topic
+	 * table and word counts. Runs on a single thread while all workers wait.
+	 * 
+	 * @param numberOfThreads
+	 *            number of active workers
+	 * @param firstNewTopic
+	 *            |K| at the last merge; worker topics at or above it are new
+	 */
+	private void reconcileTopics(int numberOfThreads, int firstNewTopic) {
+		int[][] newTopicIds = new int[numberOfThreads][];
+		for (int w = 0; w < numberOfThreads; w++) {
+			Worker worker = workers[w];
+			newTopicIds[w] = new int[worker.numberOfTopics - firstNewTopic];
+			for (int j = 0; j < newTopicIds[w].length; j++) {
+				newTopicIds[w][j] = numberOfTopics++;
+				numberOfTablesByTopic = ensureCapacity(numberOfTablesByTopic,
+						numberOfTopics);
+				wordCountByTopic = ensureCapacity(wordCountByTopic,
+						numberOfTopics);
+				wordCountByTopicAndTerm.addTopic(numberOfTopics);
+			}
+		}
+		int oldTotalNumberOfTables = totalNumberOfTables;
+		int[] oldNumberOfTablesByTopic = numberOfTablesByTopic.clone();
+		int[] oldWordCountByTopic = wordCountByTopic.clone();
+		for (int w = 0; w < numberOfThreads; w++) {
+			Worker worker = workers[w];
+			worker.relabelNewTopics(firstNewTopic, newTopicIds[w],
+					numberOfTopics);
+			totalNumberOfTables += worker.totalNumberOfTables
+					- oldTotalNumberOfTables;
+			for (int k = 0; k < numberOfTopics; k++) {
+				numberOfTablesByTopic[k] += worker.numberOfTablesByTopic[k]
+						- oldNumberOfTablesByTopic[k];
+				wordCountByTopic[k] += worker.wordCountByTopic[k]
+						- oldWordCountByTopic[k];
+			}
+		}
+		for (int w = 0; w < numberOfThreads; w++) {
+			Worker worker = workers[w];
+			worker.totalNumberOfTables = totalNumberOfTables;
+			System.arraycopy(numberOfTablesByTopic, 0,
+					worker.numberOfTablesByTopic, 0, numberOfTopics);
+			System.arraycopy(wordCountByTopic, 0, worker.wordCountByTopic, 0,
+					numberOfTopics);
+		}
+	}
+
+	/**
+	 * Merges the workers' deltas of wordCountByTopicAndTerm into the global
+	 * counts and copies the result back into every replica. Each worker
+	 * handles an interleaved slice of the topics or terms.
+	 */
+	private void mergeTopicCounts(int numberOfThreads, int slice) {
+		TopicTermCounts[] replicas = new TopicTermCounts[numberOfThreads];
+		for (int w = 0; w < numberOfThreads; w++)
+			replicas[w] = workers[w].wordCountByTopicAndTerm;
+		wordCountByTopicAndTerm.merge(replicas, numberOfThreads, slice,
+				numberOfThreads, numberOfTopics);
+	}
+
+	private Worker[] ensureWorkers(int numberOfThreads) {
+		if (workers.length < numberOfThreads) {
+			Worker[] workers2 = new Worker[numberOfThreads];
+			for (int w = 0; w < numberOfThreads; w++)
+				workers2[w] = w < workers.length ? workers[w] : new Worker(
+						random.split());
+			workers = workers2;
+		}
+		return workers;
+	}
+
+	/**
+	 * Samples tables and topics for a range of documents against its own view
+	 * of the topic counts. For sequential sampling that view is the global
+	 * bookkeeping itself ({@link #adopt()}), for parallel sampling it is a
+	 * replica ({@link #replicate()}).
+	 */
+	class Worker {
+
+		private final FastRandom random;
+		private double[] p = new double[20];
+		private double[] f = new double[20];
+
+		int numberOfTopics;
+		int totalNumberOfTables;
+		int[] numberOfTablesByTopic;
+		int[] wordCountByTopic;
+		TopicTermCounts wordCountByTopicAndTerm;
+		/** the documents of the last {@link #sampleDocuments(int, int)} */
+		int sampledFrom, sampledTo;
+
+		/**
+		 * for {@link SamplingMethod#SPARSE}, with the non-zero topics of the
+		 * terms in wordCountByTopicAndTerm
+		 */
+		private boolean sparse;
+		/** K; the counts of the current term, for the dense samplers */
+		private int[] termCounts = new int[20];
+		/**
+		 * for {@link HDPGibbsSampler#setGroupTerms}: the term f[] holds, or
+		 * -1 if it must be recomputed
+		 */
+		private int fTerm = -1;
+		/** fNew of fTerm, less the topics changed since */
+		private double fPartial;
+		/** topics whose counts changed since f[] was computed, or -1 */
+		private int changedTopic1 = -1, changedTopic2 = -1;
+		/** K; 1 / (wordCountByTopic[k] + |V| * beta) */
+		private double[] normalizer = new double[20];
+		/** sum over k of numberOfTablesByTopic[k] * beta * normalizer[k] */
+		private double smoothingMass;
+		/** mass of the topics with a non-zero count for the current term */
+		private double termMass;
+
+		/** |V|; non-null for {@link SamplingMethod#ALIAS}, built lazily */
+		private AliasTable[] aliasTables;
+		/** K + 1; weights for building an alias table */
+		private double[] q = new double[20];
+		/** changes whenever this worker's topics are renumbered */
+		private int generation;
+		private int seenTopicGeneration;
+		/** the topic chosen for a new table by {@link #sampleTableAlias} */
+		private int newTableTopic;
+		/**
+		 * whether emptied topics go to {@link HDPGibbsSampler#freeTopics}; not
+		 * for replicas, whose topic ids must stay distinct
+		 */
+		private boolean reuseTopics;
+
+		/** for {@link HDPGibbsSampler#setTopWords}, in adopted views only */
+		private TopTerms topTerms;
+
+		/**
+		 * for {@link #sampleTableTopics(int)}: the terms of a document grouped
+		 * by table, those of table t from tableStart[t] to tableStart[t + 1]
+		 */
+		private int[] tableTerms = new int[20], tableStart = new int[20];
+		/** |V|; the words of each term at the current table, else zeros */
+		private int[] termCountsOfTable = new int[0];
+		/** ln Gamma(n + beta) */
+		private LogGamma ofBeta;
+
+		/** whether to time every {@link #TIMING_INTERVAL}th word */
+		boolean timing;
+		private int untimedWords;
+		/** of the timed words: sampleWord, and the topic draws within it */
+		long timedNanos, timedTopicNanos;
+		int timedWords;
+
+		Worker(FastRandom random) {
+			this.random = random;
+		}
+
+		/** Samples against the global counts themselves */
+		void adopt() {
+			numberOfTopics = HDPGibbsSampler.this.numberOfTopics;
+			totalNumberOfTables = HDPGibbsSampler.this.totalNumberOfTables;
+			numberOfTablesByTopic = HDPGibbsSampler.this.numberOfTablesByTopic;
+			wordCountByTopic = HDPGibbsSampler.this.wordCountByTopic;
+			wordCountByTopicAndTerm = HDPGibbsSampler.this.wordCountByTopicAndTerm;
+			reuseTopics = true;
+			topTerms = HDPGibbsSampler.this.topTerms;
+			fTerm = -1; // the topics may have been renumbered since
+			sparse = samplingMethod == SamplingMethod.SPARSE;
+			if (sparse) {
+				if (!wordCountByTopicAndTerm.isIndexed())
+					wordCountByTopicAndTerm.index(numberOfTopics);
+				resetSmoothingMass();
+			} else
+				wordCountByTopicAndTerm.unindex();
+			prepareAliasTables();
+		}
+
+		/** Writes the counts of an adopted view back to the global ones */
+		void publish() {
+			HDPGibbsSampler.this.numberOfTopics = numberOfTopics;
+			HDPGibbsSampler.this.totalNumberOfTables = totalNumberOfTables;
+			HDPGibbsSampler.this.numberOfTablesByTopic = numberOfTablesByTopic;
+			HDPGibbsSampler.this.wordCountByTopic = wordCountByTopic;
+			HDPGibbsSampler.this.wordCountByTopicAndTerm = wordCountByTopicAndTerm;
+		}
+
+		/** Samples against a private copy of the global counts */
+		void replicate() {
+			numberOfTopics = HDPGibbsSampler.this.numberOfTopics;
+			totalNumberOfTables = HDPGibbsSampler.this.totalNumberOfTables;
+			numberOfTablesByTopic = HDPGibbsSampler.this.numberOfTablesByTopic
+					.clone();
+			wordCountByTopic = HDPGibbsSampler.this.wordCountByTopic.clone();
+			reuseTopics = false;
+			topTerms = null;
+			fTerm = -1;
+			wordCountByTopicAndTerm = HDPGibbsSampler.this.wordCountByTopicAndTerm
+					.copy(wordCountByTopicAndTerm, numberOfTopics);
+			sparse = samplingMethod == SamplingMethod.SPARSE;
+			reindex();
+			prepareAliasTables();
+		}
+
+		/** Keeps the alias tables until the topics are renumbered */
+		private void prepareAliasTables() {
+			if (samplingMethod != SamplingMethod.ALIAS)
+				aliasTables = null;
+			else if (aliasTables == null
+					|| aliasTables.length != sizeOfVocabulary)
+				aliasTables = new AliasTable[sizeOfVocabulary];
+			if (seenTopicGeneration != topicGeneration) {
+				seenTopicGeneration = topicGeneration;
+				generation++;
+			}
+		}
+
+		/** Rebuilds the sparse index of a replica after its counts changed */
+		void reindex() {
+			if (sparse)
+				wordCountByTopicAndTerm.index(numberOfTopics);
+		}
+
+		/** Updates the sparse index of a replica for the first n terms */
+		void reindex(int[] terms, int n) {
+			if (sparse)
+				wordCountByTopicAndTerm.reindex(terms, n, numberOfTopics);
+		}
+
+		/**
+		 * Moves the topics this worker created since the last merge to their
+		 * global ids, in the replica as well as in its documents.
+		 * 
+		 * @param firstNewTopic
+		 *            local topics at or above it are new
+		 * @param newTopicIds
+		 *            global id of each new topic
+		 * @param K
+		 *            global |K| after all workers' new topics were added
+		 */
+		void relabelNewTopics(int firstNewTopic, int[] newTopicIds, int K) {
+			int[] tablesByTopic = new int[K + 1];
+			int[] wordsByTopic = new int[K + 1];
+			int[] kOldToKNew = new int[firstNewTopic + newTopicIds.length];
+			System.arraycopy(numberOfTablesByTopic, 0, tablesByTopic, 0,
+					firstNewTopic);
+			System.arraycopy(wordCountByTopic, 0, wordsByTopic, 0,
+					firstNewTopic);
+			for (int k = 0; k < firstNewTopic; k++)
+				kOldToKNew[k] = k;
+			for (int j = 0; j < newTopicIds.length; j++) {
+				int k = newTopicIds[j];
+				tablesByTopic[k] = numberOfTablesByTopic[firstNewTopic + j];
+				wordsByTopic[k] = wordCountByTopic[firstNewTopic + j];
+				kOldToKNew[firstNewTopic + j] = k;
+			}
+			wordCountByTopicAndTerm.relabel(kOldToKNew, kOldToKNew.length, K);
+			numberOfTablesByTopic = tablesByTopic;
+			wordCountByTopic = wordsByTopic;
+			numberOfTopics = K;
 
-	/**
-	 * Initially randomly assign the words to tables and topics.
-	 * 
-	 * @param corpus
-	 *            {@link CLDACorpus#getDocuments()} on which to fit the model
-	 * @param V
-	 *            the size of the vocabulary
-	 */
-	public void addInstances(int[][] documentsInput, int V) {
-		sizeOfVocabulary = V;
-		totalNumberOfWords = 0;
-		docs = new Doc[documentsInput.length];
-		for (int d = 0; d < documentsInput.length; d++) {
-			docs[d] = new Doc(documentsInput[d], d);
-			totalNumberOfWords += documentsInput[d].length;
+			if (newTopicIds.length > 0)
+				generation++;
+			if (newTopicIds.length > 0)
+				for (int di = sampledFrom; di < sampledTo; di++) {
+					Doc doc = docs[di];
+					for (int ti = 0; ti < doc.numberOfTables; ti++)
+						if (doc.tableToTopic[ti] >= firstNewTopic)
+							doc.tableToTopic[ti] = newTopicIds[doc.tableToTopic[ti]
+									- firstNewTopic];
+				}
 		}
 
-		p = new double[20];
-		f = new double[20];
-		numberOfTablesByTopic = new int[numberOfTopics + 1];
-		wordCountByTopic = new int[numberOfTopics + 1];
-		wordCountByTopicAndTerm = new int[numberOfTopics + 1][];
-		for (int k = 0; k <= numberOfTopics; k++)
-			// variable initialization already done
-			wordCountByTopicAndTerm[k] = new int[sizeOfVocabulary];
-		for (int k = 0; k < numberOfTopics; k++) {
-			Doc doc = docs[k];
-			for (int wi = 0; wi < doc.documentLength; wi++)
-				updateWord(doc.id, wi, 0, k);
-		} // all topics have now one document
-		for (int di = numberOfTopics /* ! */; di < docs.length; di++) {
+		/** Samples the documents from (inclusive) to to (exclusive) */
+		void sampleDocuments(int from, int to) {
+			sampledFrom = from;
+			sampledTo = to;
+			if (sparse)
+				resetSmoothingMass();
+			if (resampleTableTopics) {
+				ofBeta = LogGamma.of(ofBeta, beta, LOG_GAMMA_TABLE_SIZE);
+				if (termCountsOfTable.length != sizeOfVocabulary)
+					termCountsOfTable = new int[sizeOfVocabulary];
+			}
+			for (int di = from; di < to; di++) {
+				fTerm = -1;
+				for (int wi = 0; wi < docs[di].documentLength; wi++)
+					sampleWord(di, wi);
+				if (resampleTableTopics)
+					sampleTableTopics(di);
+			}
+		}
+
+		/** Samples a new table, and topic if needed, for a word */
+		void sampleWord(int di, int wi) {
+			int ti;
+			boolean alias = aliasTables != null;
+			boolean timed = timing && --untimedWords < 0;
+			long start = timed ? System.nanoTime() : 0L;
+			int previousTable = tableAssignments.get(docs[di].offset + wi);
+			int previousTopic = docs[di].tableToTopic[previousTable];
+			removeWord(di, wi); // remove the word i from the doc
+			if (alias)
+				ti = sampleTableAlias(di, wi, previousTable, previousTopic);
+			else if (sparse)
+				ti = sampleTableSparse(di, wi);
+			else
+				ti = sampleTable(di, wi);
+			if (ti == docs[di].numberOfTables) { // new Table
+				// sample this word's Topic
+				int ki;
+				long drawn = timed ? System.nanoTime() : 0L;
+				if (alias)
+					ki = newTableTopic;
+				else if (sparse)
+					ki = sampleTopicSparse(termIndices.get(docs[di].offset + wi));
+				else
+					ki = sampleTopic();
+				if (timed)
+					timedTopicNanos += System.nanoTime() - drawn;
+				updateWord(di, wi, ti, ki);
+			} else { // existing Table
+				updateWord(di, wi, ti, docs[di].tableToTopic[ti]);
+			}
+			if (timed) {
+				timedNanos += System.nanoTime() - start;
+				timedWords++;
+				untimedWords = TIMING_INTERVAL - 1;
+			}
+		}
+
+		/**
+		 * Add a word to the bookkeeping
+		 * 
+		 * @param di
+		 *            the id of the document the word belongs to
+		 * @param wi
+		 *            the index of the word
+		 * @param ti
+		 *            the table to which the word is assigned to
+		 * @param ki
+		 *            the topic to which the word is assigned to
+		 */
+		void updateWord(int di, int wi, int ti, int ki) {
+			Doc d = docs[di];
+			if (ti == d.numberOfTables && d.numberOfFreeTables > 0)
+				ti = d.freeTables[--d.numberOfFreeTables];
+			if (ki == numberOfTopics && reuseTopics && numberOfFreeTopics > 0)
+				ki = freeTopics[--numberOfFreeTopics];
+			int term = termIndices.get(d.offset + wi);
+			changeTopic(ki);
+			tableAssignments.set(d.offset + wi, ti);
+			d.wordCountByTable[ti]++;
+			if (sparse)
+				uncacheTopic(ki);
+			wordCountByTopic[ki]++;
+			int count = wordCountByTopicAndTerm.increment(ki, term);
+			if (topTerms != null && count > topTerms.threshold(ki))
+				topTerms.offer(ki, term);
+			if (d.wordCountByTable[ti] == 1) { // a new table is created
+				d.tableToTopic[ti] = ki;
+				totalNumberOfTables++;
+				numberOfTablesByTopic[ki]++;
+				if (ti == d.numberOfTables) {
+					d.numberOfTables++;
+					d.tableToTopic = ensureCapacity(d.tableToTopic,
+							d.numberOfTables);
+					d.wordCountByTable = ensureCapacity(d.wordCountByTable,
+							d.numberOfTables);
+				}
+				if (ki == numberOfTopics) // a new topic is created
+					addTopic();
+			}
+			if (sparse)
+				cacheTopic(ki);
+		}
+
+		/** Makes room for the next new topic after one was created */
+		private void addTopic() {
+			numberOfTopics++;
+			numberOfTablesByTopic = ensureCapacity(numberOfTablesByTopic,
+					numberOfTopics);
+			wordCountByTopic = ensureCapacity(wordCountByTopic, numberOfTopics);
+			wordCountByTopicAndTerm.addTopic(numberOfTopics);
+			normalizer = ensureCapacity(normalizer, numberOfTopics);
+		}
+
+		/**
+		 * Resamples the topic of every table of a document that has two or
+		 * more words; a table of one word already moves with its word
+		 * 
+		 * @see HDPGibbsSampler#setResampleTableTopics(boolean)
+		 */
+		void sampleTableTopics(int di) {
 			Doc doc = docs[di];
-			int k = random.nextInt(numberOfTopics);
-			for (int wi = 0; wi < doc.documentLength; wi++)
-				updateWord(doc.id, wi, 0, k);
-		} // the words in the remaining documents are now assigned too, at rnd
-	}
+			int T = doc.numberOfTables;
+			tableStart = ensureCapacity(tableStart, T + 1);
+			tableTerms = ensureCapacity(tableTerms, doc.documentLength);
+			tableStart[0] = tableStart[1] = 0;
+			for (int ti = 0; ti < T; ti++) // tableStart[ti + 1] = start of ti
+				tableStart[ti + 2] = tableStart[ti + 1]
+						+ doc.wordCountByTable[ti];
+			for (int i = doc.offset; i < doc.offset + doc.documentLength; i++)
+				tableTerms[tableStart[tableAssignments.get(i) + 1]++] = termIndices
+						.get(i);
+			for (int ti = 0; ti < T; ti++)
+				if (doc.wordCountByTable[ti] > 1)
+					sampleTableTopic(doc, ti, tableStart[ti], tableStart[ti + 1]);
+		}
 
-	/**
-	 * Add a word to the bookkeeping
-	 * 
-	 * @param di
-	 *            the id of the document the word belongs to
-	 * @param wi
-	 *            the index of the word
-	 * @param ti
-	 *            the table to which the word is assigned to
-	 * @param ki
-	 *            the topic to which the word is assigned to
-	 */
-	private void updateWord(int di, int wi, int ti, int ki) {
-		Doc d = docs[di];
-		d.words[wi].tableAssignment = ti;
-		d.wordCountByTable[ti]++;
-		wordCountByTopic[ki]++;
-		wordCountByTopicAndTerm[ki][d.words[wi].termIndex]++;
-		if (d.wordCountByTable[ti] == 1) { // a new table is created
-			d.numberOfTables++;
-			d.tableToTopic[ti] = ki;
-			totalNumberOfTables++;
+		/**
+		 * Draws the topic of table ti from p(k) ~ m_k f_k(x), and gamma
+		 * f_new(x) for a new topic, where x are the table's words,
+		 * tableTerms[from] to tableTerms[to - 1]:
+		 * 
+		 * <pre>
+		 * f_k(x) = Gamma(n_k + V beta) / Gamma(n_k + n + V beta)
+		 *        * prod_w Gamma(n_kw + n_w + beta) / Gamma(n_kw + beta)
+		 * </pre>
+		 * 
+		 * with m_k the other tables of topic k and n_k, n_kw their words. The
+		 * factors of the terms with n_kw = 0 are the same for all topics, so
+		 * only the non-zero counts of the table's terms are visited.
+		 */
+		private void sampleTableTopic(Doc doc, int ti, int from, int to) {
+			int n = to - from, oldTopic = doc.tableToTopic[ti];
+			for (int i = from; i < to; i++)
+				termCountsOfTable[tableTerms[i]]++;
+
+			// ln p(k), without the factors common to all topics; the table
+			// stays in the counts of oldTopic, and is subtracted on the fly
+			p = ensureCapacity(p, numberOfTopics);
+			double vb = sizeOfVocabulary * beta;
+			for (int k = 0; k < numberOfTopics; k++) {
+				int own = k == oldTopic ? 1 : 0;
+				int tables = numberOfTablesByTopic[k] - own;
+				int words = wordCountByTopic[k] - own * n;
+				p[k] = tables > 0 ? logOverRising(tables, words + vb, n)
+						: Double.NEGATIVE_INFINITY;
+			}
+			p[numberOfTopics] = logOverRising(gamma, vb, n);
+			for (int i = from; i < to; i++) {
+				int term = tableTerms[i], c = termCountsOfTable[term];
+				if (c == 0)
+					continue; // an earlier word of the same term
+				termCountsOfTable[term] = 0;
+				double common = ofBeta.of(c) - ofBeta.of(0);
+				if (wordCountByTopicAndTerm.isIndexed()) {
+					int[] topics = wordCountByTopicAndTerm.topics(term);
+					for (int j = 0; j < wordCountByTopicAndTerm.size(term); j++) {
+						int k = topics[j];
+						int count = wordCountByTopicAndTerm.countAt(term, j)
+								- (k == oldTopic ? c : 0);
+						p[k] += ofBeta.of(count + c) - ofBeta.of(count)
+								- common;
+					}
+				} else {
+					termCounts = ensureCapacity(termCounts, numberOfTopics);
+					wordCountByTopicAndTerm.getTerm(term, termCounts,
+							numberOfTopics);
+					termCounts[oldTopic] -= c;
+					for (int k = 0; k < numberOfTopics; k++)
+						if (termCounts[k] > 0)
+							p[k] += ofBeta.of(termCounts[k] + c)
+									- ofBeta.of(termCounts[k]) - common;
+				}
+			}
+			double max = Double.NEGATIVE_INFINITY, pSum = 0.0;
+			for (int k = 0; k <= numberOfTopics; k++)
+				max = Math.max(max, p[k]);
+			for (int k = 0; k <= numberOfTopics; k++) {
+				pSum += Math.exp(p[k] - max);
+				p[k] = pSum;
+			}
+			double u = random.nextDouble() * pSum;
+			int ki;
+			for (ki = 0; ki < numberOfTopics; ki++)
+				if (u < p[ki])
+					break;
+			if (ki == numberOfTopics && wordCountByTopic[oldTopic] == n)
+				ki = oldTopic; // a new topic in place of the emptied one
+			if (ki == oldTopic)
+				return;
+
+			if (sparse)
+				uncacheTopic(oldTopic);
+			for (int i = from; i < to; i++)
+				wordCountByTopicAndTerm.decrement(oldTopic, tableTerms[i]);
+			wordCountByTopic[oldTopic] -= n;
+			numberOfTablesByTopic[oldTopic]--;
+			if (wordCountByTopic[oldTopic] == 0 && reuseTopics) {
+				freeTopics = ensureCapacity(freeTopics, numberOfFreeTopics);
+				freeTopics[numberOfFreeTopics++] = oldTopic;
+			}
+			if (sparse)
+				cacheTopic(oldTopic);
+
+			if (ki == numberOfTopics && reuseTopics && numberOfFreeTopics > 0)
+				ki = freeTopics[--numberOfFreeTopics];
+			if (sparse)
+				uncacheTopic(ki);
+			for (int i = from; i < to; i++) {
+				int count = wordCountByTopicAndTerm.increment(ki, tableTerms[i]);
+				if (topTerms != null && count > topTerms.threshold(ki))
+					topTerms.offer(ki, tableTerms[i]);
+			}
+			wordCountByTopic[ki] += n;
 			numberOfTablesByTopic[ki]++;
-			d.tableToTopic = ensureCapacity(d.tableToTopic, d.numberOfTables);
-			d.wordCountByTable = ensureCapacity(d.wordCountByTable,
-					d.numberOfTables);
-			if (ki == numberOfTopics) { // a new topic is created
-				numberOfTopics++;
-				numberOfTablesByTopic = ensureCapacity(numberOfTablesByTopic,
+			doc.tableToTopic[ti] = ki;
+			if (ki == numberOfTopics)
+				addTopic();
+			if (sparse)
+				cacheTopic(ki);
+		}
+
+		/**
+		 * Decide at which topic the table should be assigned to
+		 * 
+		 * @return the index of the topic
+		 */
+		int sampleTopic() {
+			double u, pSum = 0.0;
+			int k;
+			p = ensureCapacity(p, numberOfTopics);
+			for (k = 0; k < numberOfTopics; k++) {
+				pSum += numberOfTablesByTopic[k] * f[k];
+				p[k] = pSum;
+			}
+			pSum += gamma / sizeOfVocabulary;
+			p[numberOfTopics] = pSum;
+			u = random.nextDouble() * pSum;
+			for (k = 0; k <= numberOfTopics; k++)
+				if (u < p[k])
+					break;
+			return k;
+		}
+
+		/**
+		 * Decide at which table the word should be assigned to
+		 * 
+		 * @param di
+		 *            the index of the document (of the current word to sample)
+		 * @param wi
+		 *            the index of the current word
+		 * @return the index of the table
+		 */
+		int sampleTable(int di, int wi) {
+			int ti;
+			double vb = sizeOfVocabulary * beta, u;
+			Doc docState = docs[di];
+			f = ensureCapacity(f, numberOfTopics);
+			p = ensureCapacity(p, docState.numberOfTables);
+
+			double fNew = sampleTable1(docState, wi, vb);
+			double pSum = sampleTable2(docState);
+
+			// Probability for t = tNew
+			pSum += alpha * fNew / (totalNumberOfTables + gamma);
+			p[docState.numberOfTables] = pSum;
+			u = random.nextDouble() * pSum;
+			for (ti = 0; ti <= docState.numberOfTables; ti++)
+				if (u < p[ti])
+					break; // decided which table the word i is assigned to
+			return ti;
+		}
+
+		/**
+		 * @param doc
+		 * @param wi
+		 * @param vb
+		 *            sizeOfVoc * beta
+		 * @return fNew
+		 */
+		private double sampleTable1(Doc doc, int wi, double vb) {
+			int term = termIndices.get(doc.offset + wi);
+			if (term == fTerm) {
+				fPartial += updateF(changedTopic1, term, vb)
+						+ updateF(changedTopic2, term, vb);
+				changedTopic1 = changedTopic2 = -1;
+				return fPartial;
+			}
+			int[] counts;
+			int offset = 0;
+			if (wordCountByTopicAndTerm instanceof TermMajor) {
+				TermMajor termMajor = (TermMajor) wordCountByTopicAndTerm;
+				counts = termMajor.termMajorCounts();
+				offset = termMajor.termOffset(term);
+			} else {
+				counts = termCounts = ensureCapacity(termCounts,
 						numberOfTopics);
-				wordCountByTopic = ensureCapacity(wordCountByTopic,
+				wordCountByTopicAndTerm.getTerm(term, termCounts,
 						numberOfTopics);
-				wordCountByTopicAndTerm = add(wordCountByTopicAndTerm,
-						new int[sizeOfVocabulary], numberOfTopics);
 			}
+			double fNew = KERNEL.f(gamma / sizeOfVocabulary, counts, offset,
+					wordCountByTopic, numberOfTablesByTopic, beta, vb, f,
+					numberOfTopics);
+			if (groupTerms) {
+				fTerm = term;
+				fPartial = fNew;
+				changedTopic1 = changedTopic2 = -1;
+			}
+			return fNew;
 		}
-	}
 
-	/**
-	 * Trains (fits) the model by Gibbs sampling.
-	 * 
-	 * @param shuffleLag
-	 *            at which interval to shuffle the documents
-	 * @param maxIter
-	 *            number of iterations to run
-	 * @param saveLag
-	 *            save interval
-	 * @param log
-	 *            to write to
-	 */
-	public void train(int shuffleLag, int maxIter, PrintStream log)
-			throws IOException {
-		int start = (int) (currentTimeMillis() / 1000);// some stats
-		log.println("time\titer\t#topics\t#tables");
+		/**
+		 * Recomputes f[k] of a topic whose counts changed
+		 * 
+		 * @return its share of fNew, 0 for -1
+		 */
+		private double updateF(int k, int term, double vb) {
+			if (k < 0)
+				return 0;
+			f[k] = (wordCountByTopicAndTerm.get(k, term) + beta)
+					/ (wordCountByTopic[k] + vb);
+			return numberOfTablesByTopic[k] * f[k];
+		}
 
-		for (int iter = 0; iter < maxIter; iter++) {
+		/**
+		 * Takes the share of a topic out of {@link #fPartial} before its
+		 * counts change; after two topics, f[] is recomputed
+		 */
+		private void changeTopic(int k) {
+			if (fTerm < 0 || k == changedTopic1 || k == changedTopic2)
+				return;
+			if (k < numberOfTopics) // a new topic has no share yet
+				fPartial -= numberOfTablesByTopic[k] * f[k];
+			if (changedTopic1 < 0)
+				changedTopic1 = k;
+			else if (changedTopic2 < 0)
+				changedTopic2 = k;
+			else
+				fTerm = -1;
+		}
 
-			if ((shuffleLag > 0) && (iter > 0) && (iter % shuffleLag == 0))
-				shuffle();
-			gibbsSampling();
+		private double sampleTable2(Doc doc) {
+			double pSum = 0.0;
+			for (int ti = 0; ti < doc.numberOfTables; ti++) {
+				if (doc.wordCountByTable[ti] > 0)
+					pSum += doc.wordCountByTable[ti] * f[doc.tableToTopic[ti]];
+				p[ti] = pSum;
+			}
+			return pSum;
+		}
 
-			int time = (int) (System.currentTimeMillis() / 1000) - start;
-			log.println(time + "\t" + iter + "\t" + numberOfTopics + "\t"
-					+ totalNumberOfTables);
+		/**
+		 * Removes a word from the bookkeeping.
+		 * 
+		 * @param di
+		 *            the id of the document the word belongs to
+		 * @param wi
+		 *            the index of the word
+		 */
+		void removeWord(int di, int wi) {
+			Doc doc = docs[di];
+			int term = termIndices.get(doc.offset + wi);
+			int ti = tableAssignments.get(doc.offset + wi);
+			int ki = doc.tableToTopic[ti];
+			changeTopic(ki);
+			doc.wordCountByTable[ti]--;
+			if (sparse)
+				uncacheTopic(ki);
+			wordCountByTopic[ki]--;
+			wordCountByTopicAndTerm.decrement(ki, term);
+			if (doc.wordCountByTable[ti] == 0) { // table is removed
+				totalNumberOfTables--;
+				numberOfTablesByTopic[ki]--;
+				doc.tableToTopic[ti] = -1;
+				doc.freeTable(ti);
+			}
+			if (wordCountByTopic[ki] == 0 && reuseTopics) { // topic too
+				freeTopics = ensureCapacity(freeTopics, numberOfFreeTopics);
+				freeTopics[numberOfFreeTopics++] = ki;
+			}
+			if (sparse)
+				cacheTopic(ki);
 		}
-		log.println("training complete");
-	}
 
-	/** Gibbs sampling, then defragment */
-	private void gibbsSampling() {
-		int ti;
-		for (int di = 0; di < docs.length; di++) {
-			for (int wi = 0; wi < docs[di].documentLength; wi++) {
-				removeWord(di, wi); // remove the word i from the doc
-				ti = sampleTable(di, wi);
-				if (ti == docs[di].numberOfTables) { // new Table
-					int ki = sampleTopic(); // sample this word's Topic
-					updateWord(di, wi, ti, ki);
-				} else { // existing Table
-					updateWord(di, wi, ti, docs[di].tableToTopic[ti]);
+		/**
+		 * Decide at which table the word should be assigned to and, for a new
+		 * table, at which topic ({@link #newTableTopic}), by a short
+		 * Metropolis-Hastings chain over (table, topic) started at the word's
+		 * previous assignment. The proposal is exact for the document's
+		 * tables; new tables get their topic from the term's (possibly stale)
+		 * alias table, mixed with a few uniform proposals so that topics
+		 * created since the last build stay reachable.
+		 * 
+		 * @see #sampleTable(int, int)
+		 */
+		private int sampleTableAlias(int di, int wi, int previousTable,
+				int previousTopic) {
+			Doc docState = docs[di];
+			int term = termIndices.get(docState.offset + wi);
+			double vb = sizeOfVocabulary * beta;
+			p = ensureCapacity(p, docState.numberOfTables);
+
+			double pSum = 0.0;
+			for (int ti = 0; ti < docState.numberOfTables; ti++) {
+				int n = docState.wordCountByTable[ti];
+				if (n > 0) {
+					int k = docState.tableToTopic[ti];
+					pSum += n * (wordCountByTopicAndTerm.get(k, term) + beta)
+							/ (wordCountByTopic[k] + vb);
+				}
+				p[ti] = pSum;
+			}
+			AliasTable table = aliasTable(term);
+			double total = pSum + alpha / (totalNumberOfTables + gamma)
+					* table.totalMass;
+
+			// current state, and its target over proposal probability
+			int ti, ki = previousTopic;
+			double ratio;
+			if (previousTable < docState.numberOfTables
+					&& docState.wordCountByTable[previousTable] > 0) {
+				ti = previousTable;
+				ratio = 1.0;
+			} else {
+				ti = docState.numberOfTables;
+				if (numberOfTablesByTopic[ki] == 0) // the word emptied its topic
+					ki = numberOfTopics;
+				ratio = newTableRatio(table, term, ki);
+			}
+			for (int step = 0; step < metropolisHastingsSteps; step++) {
+				double u = random.nextDouble() * total, ratio2;
+				int ti2, ki2 = -1;
+				if (u < pSum) { // exact for the existing tables
+					for (ti2 = 0; ti2 < docState.numberOfTables; ti2++)
+						if (u < p[ti2])
+							break;
+					ratio2 = 1.0;
+				} else {
+					ti2 = docState.numberOfTables;
+					ki2 = proposeTopic(table);
+					ratio2 = newTableRatio(table, term, ki2);
+				}
+				// a topic without tables has target 0, it may be on the
+				// free list and must only be reached as a new topic
+				if (ratio2 > 0
+						&& (ratio2 >= ratio || random.nextDouble() * ratio < ratio2)) {
+					ti = ti2;
+					ki = ki2;
+					ratio = ratio2;
 				}
 			}
+			newTableTopic = ki;
+			return ti;
 		}
-		defragment();
-	}
 
-	/**
-	 * Decide at which topic the table should be assigned to
-	 * 
-	 * @return the index of the topic
-	 */
-	private int sampleTopic() {
-		double u, pSum = 0.0;
-		int k;
-		p = ensureCapacity(p, numberOfTopics);
-		for (k = 0; k < numberOfTopics; k++) {
-			pSum += numberOfTablesByTopic[k] * f[k];
-			p[k] = pSum;
+		/**
+		 * @return the term's alias table over the topics (and a new topic at
+		 *         its last entry), rebuilt if stale
+		 */
+		private AliasTable aliasTable(int term) {
+			AliasTable table = aliasTables[term];
+			if (table == null)
+				aliasTables[term] = table = new AliasTable();
+			else if (table.generation == generation
+					&& table.uses < (aliasRebuildLag > 0 ? aliasRebuildLag
+							: table.size))
+				return table;
+			double vb = sizeOfVocabulary * beta;
+			q = ensureCapacity(q, numberOfTopics);
+			termCounts = ensureCapacity(termCounts, numberOfTopics);
+			wordCountByTopicAndTerm.getTerm(term, termCounts, numberOfTopics);
+			for (int k = 0; k < numberOfTopics; k++)
+				q[k] = numberOfTablesByTopic[k] * (termCounts[k] + beta)
+						/ (wordCountByTopic[k] + vb);
+			q[numberOfTopics] = gamma / sizeOfVocabulary;
+			table.build(q, numberOfTopics + 1);
+			table.generation = generation;
+			return table;
 		}
-		pSum += GAMMA / sizeOfVocabulary;
-		p[numberOfTopics] = pSum;
-		u = random.nextDouble() * pSum;
-		for (k = 0; k <= numberOfTopics; k++)
-			if (u < p[k])
-				break;
-		return k;
-	}
 
-	/**
-	 * Decide at which table the word should be assigned to
-	 * 
-	 * @param di
-	 *            the index of the document (of the current word to sample)
-	 * @param wi
-	 *            the index of the current word
-	 * @return the index of the table
-	 */
-	private int sampleTable(int di, int wi) {
-		int ti;
-		double vb = sizeOfVocabulary * BETA, u;
-		Doc docState = docs[di];
-		f = ensureCapacity(f, numberOfTopics);
-		p = ensureCapacity(p, docState.numberOfTables);
-
-		double fNew = sampleTable1(docState, wi, vb);
-		double pSum = sampleTable2(docState);
-
-		// Probability for t = tNew
-		pSum += ALPHA * fNew / (totalNumberOfTables + GAMMA);
-		p[docState.numberOfTables] = pSum;
-		u = random.nextDouble() * pSum;
-		for (ti = 0; ti <= docState.numberOfTables; ti++)
-			if (u < p[ti])
-				break; // decided which table the word i is assigned to
-		return ti;
-	}
-
-	/**
-	 * @param doc
-	 * @param wi
-	 * @param vb
-	 *            sizeOfVoc * BETA
-	 * @return fNew
-	 */
-	private double sampleTable1(Doc doc, int wi, double vb) {
-		double fNew = GAMMA / sizeOfVocabulary;
-		for (int ki = 0; ki < numberOfTopics; ki++) {
-			f[ki] = (wordCountByTopicAndTerm[ki][doc.words[wi].termIndex] + BETA)
-					/ (wordCountByTopic[ki] + vb);
-			fNew += numberOfTablesByTopic[ki] * f[ki];
+		/** @return a topic, or numberOfTopics for a new one */
+		private int proposeTopic(AliasTable table) {
+			if (random.nextDouble() < ALIAS_UNIFORM_PROPOSALS)
+				return random.nextInt(numberOfTopics + 1);
+			int k = table.sample(random);
+			return k == table.size - 1 ? numberOfTopics : k;
+		}
+
+		/**
+		 * @return target over proposal probability of putting the word at a
+		 *         new table with topic k (up to the same constant factor)
+		 */
+		private double newTableRatio(AliasTable table, int term, int k) {
+			double target, proposal = ALIAS_UNIFORM_PROPOSALS
+					* table.totalMass / (numberOfTopics + 1);
+			if (k == numberOfTopics) {
+				target = gamma / sizeOfVocabulary;
+				proposal += (1 - ALIAS_UNIFORM_PROPOSALS)
+						* table.mass[table.size - 1];
+			} else {
+				target = numberOfTablesByTopic[k]
+						* (wordCountByTopicAndTerm.get(k, term) + beta)
+						/ (wordCountByTopic[k] + sizeOfVocabulary * beta);
+				if (k < table.size - 1)
+					proposal += (1 - ALIAS_UNIFORM_PROPOSALS) * table.mass[k];
+			}
+			return target / proposal;
+		}
+
+		/**
+		 * Samples the table and topic of a word that is not in the
+		 * bookkeeping, with the dense sampler
+		 */
+		void addWord(int di, int wi) {
+			int ti = sampleTable(di, wi);
+			if (ti == docs[di].numberOfTables)
+				updateWord(di, wi, ti, sampleTopic());
+			else
+				updateWord(di, wi, ti, docs[di].tableToTopic[ti]);
+		}
+
+		/** Recomputes the smoothing bucket of the sparse sampler */
+		private void resetSmoothingMass() {
+			double vb = sizeOfVocabulary * beta;
+			normalizer = ensureCapacity(normalizer, numberOfTopics);
+			smoothingMass = 0.0;
+			for (int k = 0; k < numberOfTopics; k++) {
+				normalizer[k] = 1.0 / (wordCountByTopic[k] + vb);
+				smoothingMass += numberOfTablesByTopic[k] * beta
+						* normalizer[k];
+			}
+		}
+
+		/** Takes topic k out of the smoothing bucket before its counts change */
+		private void uncacheTopic(int k) {
+			smoothingMass -= numberOfTablesByTopic[k] * beta * normalizer[k];
+		}
+
+		/** Puts topic k back into the smoothing bucket after its counts changed */
+		private void cacheTopic(int k) {
+			normalizer[k] = 1.0 / (wordCountByTopic[k] + sizeOfVocabulary
+					* beta);
+			smoothingMass += numberOfTablesByTopic[k] * beta * normalizer[k];
+		}
+
+		/**
+		 * Decide at which table the word should be assigned to, visiting only
+		 * the document's tables and the topics in which the word's term has a
+		 * non-zero count. Leaves that topics' mass in {@link #termMass} for
+		 * {@link #sampleTopicSparse(int)}.
+		 * 
+		 * @see #sampleTable(int, int)
+		 */
+		private int sampleTableSparse(int di, int wi) {
+			int ti;
+			Doc docState = docs[di];
+			int term = termIndices.get(docState.offset + wi);
+			p = ensureCapacity(p, docState.numberOfTables);
+
+			int[] topics = wordCountByTopicAndTerm.topics(term);
+			termMass = 0.0;
+			for (int i = 0; i < wordCountByTopicAndTerm.size(term); i++) {
+				int k = topics[i];
+				termMass += numberOfTablesByTopic[k]
+						* wordCountByTopicAndTerm.countAt(term, i)
+						* normalizer[k];
+			}
+			double fNew = smoothingMass + termMass + gamma / sizeOfVocabulary;
+
+			double pSum = 0.0;
+			for (ti = 0; ti < docState.numberOfTables; ti++) {
+				int n = docState.wordCountByTable[ti];
+				if (n > 0) {
+					int k = docState.tableToTopic[ti];
+					pSum += n * (wordCountByTopicAndTerm.get(k, term) + beta)
+							* normalizer[k];
+				}
+				p[ti] = pSum;
+			}
+
+			// Probability for t = tNew
+			pSum += alpha * fNew / (totalNumberOfTables + gamma);
+			p[docState.numberOfTables] = pSum;
+			double u = random.nextDouble() * pSum;
+			for (ti = 0; ti <= docState.numberOfTables; ti++)
+				if (u < p[ti])
+					break; // decided which table the word i is assigned to
+			return ti;
 		}
-		return fNew;
-	}
 
-	private double sampleTable2(Doc doc) {
-		double pSum = 0.0;
-		for (int ti = 0; ti < doc.numberOfTables; ti++) {
-			if (doc.wordCountByTable[ti] > 0)
-				pSum += doc.wordCountByTable[ti] * f[doc.tableToTopic[ti]];
-			p[ti] = pSum;
+		/**
+		 * Decide at which topic the table should be assigned to, first trying
+		 * the topics in which the term has a non-zero count, then the
+		 * smoothing bucket over all topics, then a new topic.
+		 * 
+		 * @see #sampleTopic()
+		 */
+		private int sampleTopicSparse(int term) {
+			double u = random.nextDouble()
+					* (termMass + smoothingMass + gamma / sizeOfVocabulary);
+			if (u < termMass) {
+				int[] topics = wordCountByTopicAndTerm.topics(term);
+				int k = 0;
+				for (int i = 0; i < wordCountByTopicAndTerm.size(term); i++) {
+					k = topics[i];
+					u -= numberOfTablesByTopic[k]
+							* wordCountByTopicAndTerm.countAt(term, i)
+							* normalizer[k];
+					if (u < 0)
+						break;
+				}
+				return k;
+			}
+			u -= termMass;
+			if (u < smoothingMass) {
+				for (int k = 0; k < numberOfTopics; k++) {
+					u -= numberOfTablesByTopic[k] * beta * normalizer[k];
+					if (u < 0)
+						return k;
+				}
+			}
+			return numberOfTopics;
 		}
-		return pSum;
 	}
 
 	/**
-	 * Removes a word from the bookkeeping.
-	 * 
-	 * @param di
-	 *            the id of the document the word belongs to
-	 * @param wi
-	 *            the index of the word
+	 * Ends a sweep: compacts the tables and topics if too many are free, and
+	 * saves the state to the store
 	 */
-	private void removeWord(int di, int wi) {
-		Doc doc = docs[di];
-		int ti = doc.words[wi].tableAssignment;
-		int ki = doc.tableToTopic[ti];
-		doc.wordCountByTable[ti]--;
-		wordCountByTopic[ki]--;
-		wordCountByTopicAndTerm[ki][doc.words[wi].termIndex]--;
-		if (doc.wordCountByTable[ti] == 0) { // table is removed
-			totalNumberOfTables--;
-			numberOfTablesByTopic[ki]--;
-			doc.tableToTopic[ti]--;
+	private void endSweep() {
+		long start = System.nanoTime();
+		if (isFragmented(compactionThreshold))
+			defragment(); // which saves the state of a MappedWordStore
+		endSweepNanos += System.nanoTime() - start;
+	}
+
+	/**
+	 * @return whether more than threshold of the tables (slots in the
+	 *         documents) or of the topics are free
+	 */
+	private boolean isFragmented(double threshold) {
+		if (numberOfFreeTopics > threshold * numberOfTopics)
+			return true;
+		long tables = 0, freeTables = 0;
+		for (Doc doc : docs) {
+			tables += doc.numberOfTables;
+			freeTables += doc.numberOfFreeTables;
 		}
+		return freeTables > threshold * tables;
+	}
+
+	/** Rebuilds the list of free topics from the counts */
+	private void findFreeTopics() {
+		numberOfFreeTopics = 0;
+		for (int k = numberOfTopics - 1; k >= 0; k--)
+			if (wordCountByTopic[k] == 0) {
+				freeTopics = ensureCapacity(freeTopics, numberOfFreeTopics);
+				freeTopics[numberOfFreeTopics++] = k;
+			}
 	}
 
 	/** Removes topics from the bookkeeping that have no words assigned to */
-	private void defragment() {
+	void defragment() {
 		int[] kOldToKNew = new int[numberOfTopics];
 		int newNumberOfTopics = 0;
 		for (int ki = 0; ki < numberOfTopics; ki++) {
@@ -289,24 +2469,250 @@ public class HDPGibbsSampler {
 				kOldToKNew[ki] = newNumberOfTopics;
 				swap(wordCountByTopic, newNumberOfTopics, ki);
 				swap(numberOfTablesByTopic, newNumberOfTopics, ki);
-				swap(wordCountByTopicAndTerm, newNumberOfTopics, ki);
 				newNumberOfTopics++;
-			}
+			} else
+				kOldToKNew[ki] = -1;
 		}
+		wordCountByTopicAndTerm.relabel(kOldToKNew, numberOfTopics,
+				newNumberOfTopics);
 		numberOfTopics = newNumberOfTopics;
+		numberOfFreeTopics = 0;
+		topicGeneration++;
+		if (store != null) {
+			saveState(kOldToKNew);
+			return;
+		}
 		for (int di = 0; di < docs.length; di++)
-			docs[di].defragment(kOldToKNew);
+			docs[di].renumberTables(docs[di].defragment(kOldToKNew));
 	}
 
-	/** Permute the ordering of documents and words in the bookkeeping */
-	private void shuffle() {
-		List<Doc> tmpDocs = asList(docs);
-		Collections.shuffle(tmpDocs);
-		docs = tmpDocs.toArray(new Doc[tmpDocs.size()]);
+	/**
+	 * Defragments the documents' tables and saves them to the
+	 * {@link MappedWordStore} before renumbering the words' assignments, so
+	 * that a killed job can always pick up a consistent state.
+	 * 
+	 * @param kOldToKNew
+	 *            or null to save the tables as they are
+	 */
+	private void saveState(int[] kOldToKNew) {
+		MappedWordStore.State state = new MappedWordStore.State();
+		state.generation = ++storeGeneration;
+		state.numberOfTopics = numberOfTopics;
+		state.ids = new int[docs.length];
+		state.tOldToTNew = new int[docs.length][];
+		state.numberOfTables = new int[docs.length];
+		state.tableToTopic = new int[docs.length][];
+		for (int di = 0; di < docs.length; di++) {
+			state.ids[di] = docs[di].id;
+			state.tOldToTNew[di] = kOldToKNew != null ? docs[di]
+					.defragment(kOldToKNew) : new int[0];
+			state.numberOfTables[di] = docs[di].numberOfTables;
+			state.tableToTopic[di] = docs[di].tableToTopic;
+		}
+		try {
+			store.save(state);
+		} catch (IOException e) {
+			throw new IllegalStateException("could not save state", e);
+		}
+		renumberStoredTables(state, 0);
+	}
+
+	/**
+	 * Renumbers the words' table assignments in the {@link MappedWordStore}
+	 * to a saved state, word by word in sweep order, recording the progress
+	 * after each word so that a killed job never renumbers a word twice
+	 * 
+	 * @param renumbered
+	 *            number of words already renumbered
+	 */
+	private void renumberStoredTables(MappedWordStore.State state,
+			int renumbered) {
+		int word = 0;
 		for (int di = 0; di < docs.length; di++) {
-			List<Word> tmpWords = asList(docs[di].words);
-			Collections.shuffle(tmpWords);
-			docs[di].words = tmpWords.toArray(new Word[tmpWords.size()]);
+			Doc doc = docs[di];
+			int[] tOldToTNew = state.tOldToTNew[di];
+			if (tOldToTNew.length == 0 || word + doc.documentLength <= renumbered) {
+				word += doc.documentLength;
+				continue;
+			}
+			for (int wi = 0; wi < doc.documentLength; wi++, word++)
+				if (word >= renumbered) {
+					int i = doc.offset + wi;
+					tableAssignments.set(i, tOldToTNew[tableAssignments.get(i)]);
+					store.setProgress(state.generation, word + 1);
+				}
+		}
+		store.setProgress(state.generation, totalNumberOfWords);
+	}
+
+	/** Permute the ordering of documents and words in the bookkeeping */
+	void shuffle() {
+		shuffle(null, 1);
+	}
+
+	/**
+	 * Permutes the documents in place, then the words of every document in
+	 * chunks of documents spread over the threads. Every chunk is seeded from
+	 * {@link #random}, so the result does not depend on the number of
+	 * threads.
+	 * 
+	 * @param executor
+	 *            to run numberOfThreads tasks on, or null
+	 */
+	void shuffle(ExecutorService executor, int numberOfThreads) {
+		final int chunk;
+		if (shuffleBlockSize > 0) {
+			shuffleBlocks(shuffleBlockSize);
+			chunk = shuffleBlockSize;
+		} else {
+			for (int di = docs.length - 1; di > 0; di--)
+				swap(docs, di, random.nextInt(di + 1));
+			if (store != null)
+				return;
+			chunk = SHUFFLE_CHUNK;
+		}
+		final long[] seeds = new long[(docs.length + chunk - 1) / chunk];
+		for (int c = 0; c < seeds.length; c++)
+			seeds[c] = random.nextLong();
+		if (executor == null) {
+			shuffleChunks(seeds, 0, seeds.length, chunk);
+			return;
+		}
+		List<Future<?>> results = new ArrayList<Future<?>>();
+		for (int t = 0; t < numberOfThreads; t++) {
+			final int from = seeds.length * t / numberOfThreads;
+			final int to = seeds.length * (t + 1) / numberOfThreads;
+			results.add(executor.submit(new Runnable() {
+				public void run() {
+					shuffleChunks(seeds, from, to, chunk);
+				}
+			}));
+		}
+		try {
+			for (Future<?> result : results)
+				result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * Moves whole blocks of blockSize documents, leaving a last, shorter
+	 * block where it is so that the blocks stay the same
+	 */
+	private void shuffleBlocks(int blockSize) {
+		Doc[] block = new Doc[blockSize];
+		for (int b = docs.length / blockSize - 1; b > 0; b--) {
+			int c = random.nextInt(b + 1);
+			if (c == b)
+				continue;
+			System.arraycopy(docs, b * blockSize, block, 0, blockSize);
+			System.arraycopy(docs, c * blockSize, docs, b * blockSize,
+					blockSize);
+			System.arraycopy(block, 0, docs, c * blockSize, blockSize);
+		}
+	}
+
+	/**
+	 * Shuffles the chunks from (inclusive) to to (exclusive) of the
+	 * documents: the documents within the chunk if they are blocks, and the
+	 * words of every document
+	 */
+	private void shuffleChunks(long[] seeds, int from, int to, int chunk) {
+		Random chunkRandom = new FastRandom(0);
+		int[] terms = new int[0], tables = new int[0], runs = new int[0];
+		for (int c = from; c < to; c++) {
+			chunkRandom.setSeed(seeds[c]);
+			int first = c * chunk, end = Math.min(first + chunk, docs.length);
+			if (shuffleBlockSize > 0)
+				for (int di = end - 1; di > first; di--)
+					swap(docs, di, first + chunkRandom.nextInt(di - first + 1));
+			if (store != null)
+				continue; // a torn swap would corrupt the mapped corpus
+			for (int di = first; di < end; di++) {
+				Doc doc = docs[di];
+				if (groupTerms) {
+					if (terms.length < doc.documentLength) {
+						terms = new int[doc.documentLength];
+						tables = new int[doc.documentLength];
+						runs = new int[doc.documentLength];
+					}
+					shuffleRuns(doc, chunkRandom, terms, tables, runs);
+					continue;
+				}
+				for (int wi = doc.documentLength - 1; wi > 0; wi--) {
+					int wj = chunkRandom.nextInt(wi + 1);
+					swap(termIndices, doc.offset + wi, doc.offset + wj);
+					swap(tableAssignments, doc.offset + wi, doc.offset + wj);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Permutes the runs of equal terms of a document, each run staying
+	 * whole; terms, tables and runs are scratch of at least its length
+	 */
+	private void shuffleRuns(Doc doc, Random random, int[] terms,
+			int[] tables, int[] runs) {
+		int n = doc.documentLength, numberOfRuns = 0;
+		for (int wi = 0; wi < n; wi++) {
+			terms[wi] = termIndices.get(doc.offset + wi);
+			tables[wi] = tableAssignments.get(doc.offset + wi);
+			if (wi == 0 || terms[wi] != terms[wi - 1])
+				runs[numberOfRuns++] = wi;
+		}
+		for (int r = numberOfRuns - 1; r > 0; r--)
+			swap(runs, r, random.nextInt(r + 1));
+		int i = doc.offset;
+		for (int r = 0; r < numberOfRuns; r++) {
+			int term = terms[runs[r]];
+			for (int wi = runs[r]; wi < n && terms[wi] == term; wi++, i++) {
+				termIndices.set(i, term);
+				tableAssignments.set(i, tables[wi]);
+			}
+		}
+	}
+
+	/**
+	 * Makes the equal terms of every document adjacent, in the order of their
+	 * first occurrence, so that documents already grouped stay as they are.
+	 * Leaves the words of a memory-mapped corpus alone, like {@link #shuffle}.
+	 */
+	private void groupWordsByTerm() {
+		if (store != null)
+			return;
+		int[] count = new int[sizeOfVocabulary];
+		int[] terms = new int[0], tables = new int[0], order = new int[0];
+		for (Doc doc : docs) {
+			int n = doc.documentLength, distinct = 0;
+			if (terms.length < n) {
+				terms = new int[n];
+				tables = new int[n];
+				order = new int[n];
+			}
+			for (int wi = 0; wi < n; wi++) {
+				terms[wi] = termIndices.get(doc.offset + wi);
+				tables[wi] = tableAssignments.get(doc.offset + wi);
+				if (count[terms[wi]]++ == 0)
+					order[distinct++] = terms[wi];
+			}
+			// count becomes where the group of each term starts
+			for (int j = 0, start = 0; j < distinct; j++) {
+				int c = count[order[j]];
+				count[order[j]] = start;
+				start += c;
+			}
+			for (int wi = 0; wi < n; wi++) {
+				int i = doc.offset + count[terms[wi]]++;
+				termIndices.set(i, terms[wi]);
+				tableAssignments.set(i, tables[wi]);
+			}
+			for (int j = 0; j < distinct; j++)
+				count[order[j]] = 0;
 		}
 	}
 
@@ -316,12 +2722,35 @@ public class HDPGibbsSampler {
 		arr[arg2] = t;
 	}
 
-	private static void swap(int[][] arr, int arg1, int arg2) {
-		int[] t = arr[arg1];
+	private static void swap(Doc[] arr, int arg1, int arg2) {
+		Doc t = arr[arg1];
 		arr[arg1] = arr[arg2];
 		arr[arg2] = t;
 	}
 
+	private static void swap(IntArray arr, int arg1, int arg2) {
+		int t = arr.get(arg1);
+		arr.set(arg1, arr.get(arg2));
+		arr.set(arg2, t);
+	}
+
+	/**
+	 * @return ln (m / (x (x + 1) ... (x + n - 1))) = ln m + ln Gamma(x) - ln
+	 *         Gamma(x + n), by products of a few factors each, cheaper than
+	 *         ln Gamma for the word counts of tables
+	 */
+	private static double logOverRising(double m, double x, int n) {
+		double log = 0.0, ratio = m;
+		for (int i = 0; i < n; i += RISING_PRODUCT_LENGTH) {
+			double rising = 1.0;
+			for (int j = i; j < n && j < i + RISING_PRODUCT_LENGTH; j++)
+				rising *= x + j;
+			log += Math.log(ratio / rising);
+			ratio = 1.0;
+		}
+		return log;
+	}
+
 	private static int[] ensureCapacity(int[] arr, int min) {
 		int length = arr.length;
 		if (min < length)
@@ -342,45 +2771,51 @@ public class HDPGibbsSampler {
 		return arr2;
 	}
 
-	private static int[][] add(int[][] arr, int[] newElement, int index) {
-		int length = arr.length;
-		if (length <= index) {
-			int[][] arr2 = new int[index * 2][];
-			for (int i = 0; i < length; i++)
-				arr2[i] = arr[i];
-			arr = arr2;
-		}
-		arr[index] = newElement;
-		return arr;
-	}
-
-	/** A text document */
-	private class Doc {
+	/**
+	 * A text document: a view of its words in {@link #termIndices} and
+	 * {@link #tableAssignments}, and the state of its tables
+	 */
+	class Doc {
 
-		int id, documentLength, numberOfTables;
+		/** numberOfTables includes the free ones */
+		int id, offset, documentLength, numberOfTables;
 		int[] tableToTopic;
 		int[] wordCountByTable;
-		Word[] words;
+		/** empty tables, reused before new ones are added */
+		int[] freeTables;
+		int numberOfFreeTables;
 
 		/**
-		 * @param words
-		 *            the {@link Word}s in that document
 		 * @param id
 		 *            document id. so far assigned within
 		 *            {@link HDPGibbsSampler#addInstances()}
+		 * @param offset
+		 *            of the document's first word
+		 * @param documentLength
+		 *            number of words
 		 */
-		Doc(int[] words, int id) {
+		Doc(int id, int offset, int documentLength) {
 			this.id = id;
+			this.offset = offset;
+			this.documentLength = documentLength;
 			numberOfTables = 0;
-			documentLength = words.length;
-			this.words = new Word[documentLength];
 			tableToTopic = new int[2];
 			wordCountByTable = new int[2];
-			for (int wi = 0; wi < documentLength; wi++)
-				this.words[wi] = new Word(words[wi], -1);
+			freeTables = new int[2];
+		}
+
+		void freeTable(int ti) {
+			freeTables = ensureCapacity(freeTables, numberOfFreeTables);
+			freeTables[numberOfFreeTables++] = ti;
 		}
 
-		public void defragment(int[] kOldToKNew) {
+		/**
+		 * Removes empty tables and renames the topics
+		 * 
+		 * @return the new index of every old table, for
+		 *         {@link #renumberTables(int[])}
+		 */
+		int[] defragment(int[] kOldToKNew) {
 			int[] tOldToTNew = new int[numberOfTables];
 			int t, newNumberOfTables = 0;
 			for (t = 0; t < numberOfTables; t++) {
@@ -393,28 +2828,23 @@ public class HDPGibbsSampler {
 					tableToTopic[t] = -1;
 			}
 			numberOfTables = newNumberOfTables;
-			for (int i = 0; i < documentLength; i++)
-				words[i].tableAssignment = tOldToTNew[words[i].tableAssignment];
+			numberOfFreeTables = 0;
+			return tOldToTNew;
 		}
 
-	}
-
-	/** The state of a word within a {@link Doc} */
-	private class Word {
-
-		int termIndex;
-		int tableAssignment;
-
 		/**
-		 * @param wordIndex
-		 *            index in the vocabulary
-		 * @param tableAssignment
-		 *            or -1 for no assignment
+		 * Updates the words' table assignments after defragmentation
+		 * 
+		 * @param tOldToTNew
+		 *            empty if the tables were not renumbered
 		 */
-		Word(int wordIndex, int tableAssignment) {
-			this.termIndex = wordIndex;
-			this.tableAssignment = tableAssignment;
+		void renumberTables(int[] tOldToTNew) {
+			if (tOldToTNew.length == 0)
+				return;
+			for (int i = offset; i < offset + documentLength; i++)
+				tableAssignments.set(i, tOldToTNew[tableAssignments.get(i)]);
 		}
+
 	}
 
 	public static void main(String[] args) throws IOException {
@@ -427,12 +2857,16 @@ public class HDPGibbsSampler {
 		// String corpusFile =
 		// "/Volumes/HDD2/ren_data/dev_hdd/bluebrain/9_lda/topic_models_datasets/pubmed_abstracts_100k.ldac-txtbag";
 		String outFile = "topics.dat";
-		String outFile2 = "topics2.dat";// TODO
+		String outFile2 = "topics2.dat";
 
 		CLDACorpus corpus = new CLDACorpus(new FileInputStream(corpusFile));
+		CLDAParser.reportMalformedLines(System.err,
+				corpus.getNumberOfMalformedLines(),
+				corpus.getFirstMalformedLine());
 		HDPGibbsSampler hdp = new HDPGibbsSampler();
 		hdp.addInstances(corpus.getDocuments(), corpus.getVocabularySize());
 
+		System.out.println("seed = " + hdp.getSeed());
 		System.out.println("sizeOfVocabulary = " + hdp.sizeOfVocabulary);
 		System.out.println("totalNumberOfWords = " + hdp.totalNumberOfWords);
 		System.out.println("NumberOfDocs = " + hdp.docs.length);
@@ -440,26 +2874,7 @@ public class HDPGibbsSampler {
 		hdp.train(0, 50, System.out);
 
 		// print
-		PrintStream file = new PrintStream(outFile);
-		for (int k = 0; k < hdp.numberOfTopics; k++) {
-			for (int w = 0; w < hdp.sizeOfVocabulary; w++)
-				file.format("%05d ", hdp.wordCountByTopicAndTerm[k][w]);
-			file.println();
-		}
-		file.close();
-
-		file = new PrintStream(outFile2);
-		file.println("d w z t");
-		int t, docID;
-		for (int d = 0; d < hdp.docs.length; d++) {
-			Doc doc = hdp.docs[d];
-			docID = doc.id;
-			for (int i = 0; i < doc.documentLength; i++) {
-				t = doc.words[i].tableAssignment;
-				file.println(docID + " " + doc.words[i].termIndex + " "
-						+ doc.tableToTopic[t] + " " + t);
-			}
-		}
-		file.close();
+		hdp.writeTopics(new TopicsWriter(outFile));
+		hdp.writeWordAssignments(new WordAssignmentsWriter(outFile2));
 	}
 }
\ No newline at end of file
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2011 Arnim Bleier, Andreas Niekler and Patrick Jaehnichen
+ * Licensed under the GNU Lesser General Public License.
+ * http://www.gnu.org/licenses/lgpl.html
+ */
+package de.uni_leipzig.informatik.asv.hdp;
+
+import java.util.Random;
+
+/**
+ * A trained model, frozen by {@link HDPGibbsSampler#getModel()}, for folding
+ * in held-out documents: their words are Gibbs sampled to tables of their own
+ * while the topics stay fixed. The model is immutable and every
+ * {@link #infer} keeps its state on its own stack, so any number of threads
+ * can share one model without locking.
+ */
+public class HDPModel {
+
+	private final int numberOfTopics;
+	private final int sizeOfVocabulary;
+	private final int totalNumberOfTables;
+	private final double alpha, beta, gamma;
+	/**
+	 * a copy in the layout of the sampler's counts, from which f is computed
+	 * term by term
+	 */
+	private final TopicTermCounts wordCountByTopicAndTerm;
+	/** K; 1 / (wordCountByTopic[k] + |V| * beta) */
+	private final double[] normalizer;
+	/** sum over k of numberOfTablesByTopic[k] * beta * normalizer[k] */
+	private final double smoothingMass;
+	/** K */
+	private final int[] numberOfTablesByTopic;
+
+	/** Copies the counts of the topics 0..numberOfTopics - 1 */
+	HDPModel(int numberOfTopics, int sizeOfVocabulary,
+			int[] numberOfTablesByTopic, int[] wordCountByTopic,
+			TopicTermCounts wordCountByTopicAndTerm, double alpha, double beta,
+			double gamma) {
+		this.numberOfTopics = numberOfTopics;
+		this.sizeOfVocabulary = sizeOfVocabulary;
+		this.alpha = alpha;
+		this.beta = beta;
+		this.gamma = gamma;
+		this.numberOfTablesByTopic = new int[numberOfTopics];
+		System.arraycopy(numberOfTablesByTopic, 0, this.numberOfTablesByTopic,
+				0, numberOfTopics);
+		int m = 0;
+		for (int k = 0; k < numberOfTopics; k++)
+			m += numberOfTablesByTopic[k];
+		totalNumberOfTables = m;
+		this.wordCountByTopicAndTerm = wordCountByTopicAndTerm.copy(null,
+				numberOfTopics);
+		double vb = sizeOfVocabulary * beta, mass = 0.0;
+		normalizer = new double[numberOfTopics];
+		for (int k = 0; k < numberOfTopics; k++) {
+			normalizer[k] = 1.0 / (wordCountByTopic[k] + vb);
+			mass += numberOfTablesByTopic[k] * beta * normalizer[k];
+		}
+		smoothingMass = mass;
+	}
+
+	/**
+	 * Computes f[k] = (wordCountByTopicAndTerm[k][term] + beta) /
+	 * (wordCountByTopic[k] + |V| beta)
+	 * 
+	 * @param counts
+	 *            K; scratch space
+	 * @return the mass of a new table, sum over k of
+	 *         numberOfTablesByTopic[k] * f[k]
+	 */
+	private double f(int term, int[] counts, double[] f) {
+		wordCountByTopicAndTerm.getTerm(term, counts, numberOfTopics);
+		double newTableMass = smoothingMass;
+		for (int k = 0; k < numberOfTopics; k++) {
+			f[k] = (counts[k] + beta) * normalizer[k];
+			newTableMass += numberOfTablesByTopic[k] * counts[k]
+					* normalizer[k];
+		}
+		return newTableMass;
+	}
+
+	/** @return |K| */
+	public int getNumberOfTopics() {
+		return numberOfTopics;
+	}
+
+	/** @return |V| */
+	public int getVocabularySize() {
+		return sizeOfVocabulary;
+	}
+
+	/**
+	 * @param document
+	 *            the terms of a held-out document; terms outside the model's
+	 *            vocabulary are ignored
+	 * @param iterations
+	 *            number of sweeps over the document, the first half of which
+	 *            is burn-in
+	 * @param random
+	 *            not shared with other threads
+	 * @return K; the document's distribution over the topics, averaged over
+	 *         the sweeps after burn-in
+	 */
+	public double[] infer(int[] document, int iterations, Random random) {
+		int[] tableOfWord = new int[document.length];
+		int[] tableToTopic = new int[8];
+		int[] wordCountByTable = new int[8];
+		int numberOfTables = 0;
+		double[] p = new double[9];
+		int[] wordCountByTopic = new int[numberOfTopics];
+		double[] theta = new double[numberOfTopics];
+		int[] counts = new int[numberOfTopics];
+		double[] fTerm = new double[numberOfTopics];
+		double tableWeight = alpha / (totalNumberOfTables + gamma);
+
+		for (int iter = 0; iter < iterations; iter++) {
+			for (int wi = 0; wi < document.length; wi++) {
+				int term = document[wi];
+				if (term < 0 || term >= sizeOfVocabulary)
+					continue;
+				if (iter > 0) { // remove the word
+					int ti = tableOfWord[wi];
+					wordCountByTable[ti]--;
+					wordCountByTopic[tableToTopic[ti]]--;
+				}
+				double newTableMass = f(term, counts, fTerm);
+				double pSum = 0.0;
+				int ti, emptyTable = -1;
+				for (ti = 0; ti < numberOfTables; ti++) {
+					if (wordCountByTable[ti] > 0)
+						pSum += wordCountByTable[ti] * fTerm[tableToTopic[ti]];
+					else if (emptyTable < 0)
+						emptyTable = ti;
+					p[ti] = pSum;
+				}
+				pSum += tableWeight * newTableMass;
+				double u = random.nextDouble() * pSum;
+				for (ti = 0; ti < numberOfTables; ti++)
+					if (u < p[ti])
+						break;
+				if (ti == numberOfTables) { // new table, with a trained topic
+					if (emptyTable >= 0)
+						ti = emptyTable;
+					else if (++numberOfTables == tableToTopic.length) {
+						tableToTopic = grow(tableToTopic);
+						wordCountByTable = grow(wordCountByTable);
+						p = new double[tableToTopic.length + 1];
+					}
+					u = random.nextDouble() * newTableMass;
+					int k;
+					for (k = 0; k < numberOfTopics - 1; k++) {
+						u -= numberOfTablesByTopic[k] * fTerm[k];
+						if (u < 0)
+							break;
+					}
+					tableToTopic[ti] = k;
+				}
+				tableOfWord[wi] = ti;
+				wordCountByTable[ti]++;
+				wordCountByTopic[tableToTopic[ti]]++;
+			}
+			if (iter >= iterations / 2)
+				for (int k = 0; k < numberOfTopics; k++)
+					theta[k] += wordCountByTopic[k] + alpha
+							* numberOfTablesByTopic[k] / totalNumberOfTables;
+		}
+		if (iterations == 0)
+			for (int k = 0; k < numberOfTopics; k++)
+				theta[k] = numberOfTablesByTopic[k];
+		double sum = 0.0;
+		for (int k = 0; k < numberOfTopics; k++)
+			sum += theta[k];
+		for (int k = 0; k < numberOfTopics; k++)
+			theta[k] /= sum;
+		return theta;
+	}
+
+	/**
+	 * @return |D| x K; the topic distributions of several documents, see
+	 *         {@link #infer(int[], int, Random)}
+	 */
+	public double[][] infer(int[][] documents, int iterations, Random random) {
+		double[][] theta = new double[documents.length][];
+		for (int d = 0; d < documents.length; d++)
+			theta[d] = infer(documents[d], iterations, random);
+		return theta;
+	}
+
+	/**
+	 * Document completion: the topics of every document are inferred from
+	 * its even-numbered words, which then predict the odd-numbered ones.
+	 *
+	 * @param iterations
+	 *            see {@link #infer(int[], int, Random)}
+	 * @return exp(- log p(odd-numbered words) / their number); NaN if there
+	 *         are none
+	 */
+	public double perplexity(int[][] documents, int iterations, Random random) {
+		double logLikelihood = 0.0;
+		long words = 0;
+		int[] counts = new int[numberOfTopics];
+		double[] f = new double[numberOfTopics];
+		for (int[] document : documents) {
+			int[] observed = new int[(document.length + 1) / 2];
+			for (int i = 0; i < observed.length; i++)
+				observed[i] = document[2 * i];
+			double[] theta = infer(observed, iterations, random);
+			for (int i = 1; i < document.length; i += 2) {
+				int term = document[i];
+				if (term < 0 || term >= sizeOfVocabulary)
+					continue;
+				f(term, counts, f);
+				double p = 0.0;
+				for (int k = 0; k < numberOfTopics; k++)
+					p += theta[k] * f[k];
+				logLikelihood += Math.log(p);
+				words++;
+			}
+		}
+		return words > 0 ? Math.exp(-logLikelihood / words) : Double.NaN;
+	}
+
+	private static int[] grow(int[] arr) {
+		int[] arr2 = new int[arr.length * 2];
+		System.arraycopy(arr, 0, arr2, 0, arr.length);
+		return arr2;
+	}
+}
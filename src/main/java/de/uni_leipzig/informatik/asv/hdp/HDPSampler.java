@@ -0,0 +1,79 @@
+/*
+ * Copyright 2011 Arnim Bleier, Andreas Niekler and Patrick Jaehnichen
+ * Licensed under the GNU Lesser General Public License.
+ * http://www.gnu.org/licenses/lgpl.html
+ */
+package de.uni_leipzig.informatik.asv.hdp;
+
+import java.io.IOException;
+import java.io.PrintStream;
+
+import de.uni_leipzig.informatik.asv.utils.TopicsWriter;
+import de.uni_leipzig.informatik.asv.utils.WordAssignmentsWriter;
+
+/**
+ * What the HDP samplers have in common, so that a job can pick its engine:
+ * {@link HDPGibbsSampler}, the Chinese restaurant franchise with all its
+ * options, or {@link DirectAssignmentSampler}, with less state and work per
+ * word.
+ */
+public interface HDPSampler {
+
+	/** @return the seed this sampler was created with */
+	long getSeed();
+
+	/** @param alpha concentration of the documents' tables */
+	void setAlpha(double alpha);
+
+	/** @param beta Dirichlet prior of the topics' term distributions */
+	void setBeta(double beta);
+
+	/** @param gamma concentration of the topics */
+	void setGamma(double gamma);
+
+	/**
+	 * Initially assigns the words to topics
+	 *
+	 * @param documents
+	 *            the terms of every document
+	 * @param V
+	 *            the size of the vocabulary
+	 */
+	void addInstances(int[][] documents, int V);
+
+	/**
+	 * Trains (fits) the model
+	 *
+	 * @param shuffleLag
+	 *            at which interval to shuffle the documents
+	 * @param maxIter
+	 *            number of iterations to run
+	 * @param log
+	 *            to write to
+	 * @return whether all iterations ran, and how many
+	 */
+	TrainingResult train(int shuffleLag, int maxIter, PrintStream log)
+			throws IOException;
+
+	/** @return the number of topics with words */
+	int getNumberOfTopics();
+
+	/** @return the number of occupied tables in all documents */
+	int getTotalNumberOfTables();
+
+	/**
+	 * @return a read-only copy of the trained topics, for inferring the topics
+	 *         of held-out documents
+	 */
+	HDPModel getModel();
+
+	/** Writes the word counts of every topic, see {@link TopicsWriter} */
+	void writeTopics(TopicsWriter writer) throws IOException;
+
+	/**
+	 * Writes the document id, term, topic and table of every word, see
+	 * {@link WordAssignmentsWriter}; -1 for the table if the engine does not
+	 * keep them
+	 */
+	void writeWordAssignments(WordAssignmentsWriter writer) throws IOException;
+}
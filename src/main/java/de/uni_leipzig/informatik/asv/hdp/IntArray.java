@@ -0,0 +1,117 @@
+/*
+ * Copyright 2011 Arnim Bleier, Andreas Niekler and Patrick Jaehnichen
+ * Licensed under the GNU Lesser General Public License.
+ * http://www.gnu.org/licenses/lgpl.html
+ */
+package de.uni_leipzig.informatik.asv.hdp;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * A fixed-size array of ints, either on the heap or in a memory-mapped file
+ */
+abstract class IntArray {
+
+	abstract int get(int i);
+
+	abstract void set(int i, int value);
+
+	abstract int length();
+
+	/** Writes changes through to the underlying storage, if any */
+	void force() {
+	}
+
+	/** @return an array backed by the given one */
+	static IntArray wrap(int[] array) {
+		return new Heap(array);
+	}
+
+	/**
+	 * Maps a file of length * 4 bytes (big-endian ints), growing it if needed
+	 *
+	 * @param file
+	 *            opened read-write
+	 */
+	static IntArray map(RandomAccessFile file, int length) throws IOException {
+		return new Mapped(file, length);
+	}
+
+	private static final class Heap extends IntArray {
+
+		private final int[] array;
+
+		Heap(int[] array) {
+			this.array = array;
+		}
+
+		@Override
+		int get(int i) {
+			return array[i];
+		}
+
+		@Override
+		void set(int i, int value) {
+			array[i] = value;
+		}
+
+		@Override
+		int length() {
+			return array.length;
+		}
+	}
+
+	/** Split into segments since a single mapping is limited to 2GB */
+	private static final class Mapped extends IntArray {
+
+		private static final int SEGMENT_SHIFT = 28; // 1GB
+		private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+		private final MappedByteBuffer[] buffers;
+		private final IntBuffer[] segments;
+		private final int length;
+
+		Mapped(RandomAccessFile file, int length) throws IOException {
+			this.length = length;
+			if (file.length() < length * 4L)
+				file.setLength(length * 4L);
+			FileChannel channel = file.getChannel();
+			int n = (int) ((length + (long) SEGMENT_MASK) >>> SEGMENT_SHIFT);
+			buffers = new MappedByteBuffer[n];
+			segments = new IntBuffer[n];
+			for (int s = 0; s < n; s++) {
+				long start = (long) s << SEGMENT_SHIFT;
+				long size = Math.min(SEGMENT_MASK + 1L, length - start);
+				buffers[s] = channel.map(MapMode.READ_WRITE, start * 4,
+						size * 4);
+				segments[s] = buffers[s].asIntBuffer();
+			}
+		}
+
+		@Override
+		int get(int i) {
+			return segments[i >>> SEGMENT_SHIFT].get(i & SEGMENT_MASK);
+		}
+
+		@Override
+		void set(int i, int value) {
+			segments[i >>> SEGMENT_SHIFT].put(i & SEGMENT_MASK, value);
+		}
+
+		@Override
+		int length() {
+			return length;
+		}
+
+		@Override
+		void force() {
+			for (MappedByteBuffer buffer : buffers)
+				buffer.force();
+		}
+	}
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2011 Arnim Bleier, Andreas Niekler and Patrick Jaehnichen
+ * Licensed under the GNU Lesser General Public License.
+ * http://www.gnu.org/licenses/lgpl.html
+ */
+package de.uni_leipzig.informatik.asv.hdp;
+
+/**
+ * ln Gamma(n + offset) for counts n, from a table for the small counts that
+ * make up most of a log-likelihood
+ */
+final class LogGamma {
+
+	/** Lanczos coefficients for g = 7, n = 9 */
+	private static final double[] LANCZOS = { 0.99999999999980993,
+			676.5203681218851, -1259.1392167224028, 771.32342877765313,
+			-176.61502916214059, 12.507343278686905, -0.13857109526572012,
+			9.9843695780195716e-6, 1.5056327351493116e-7 };
+	private static final double HALF_LOG_TWO_PI = 0.5 * Math.log(2 * Math.PI);
+
+	final double offset;
+	private final double[] cache;
+
+	LogGamma(double offset, int size) {
+		this.offset = offset;
+		cache = new double[size];
+		for (int n = 0; n < size; n++)
+			cache[n] = n + offset > 0 ? logGamma(n + offset)
+					: Double.POSITIVE_INFINITY;
+	}
+
+	/** @return ln Gamma(n + offset) */
+	double of(int n) {
+		return n < cache.length ? cache[n] : logGamma(n + offset);
+	}
+
+	/** @return cached if it is for offset, else a new table */
+	static LogGamma of(LogGamma cached, double offset, int size) {
+		return cached != null && cached.offset == offset ? cached
+				: new LogGamma(offset, size);
+	}
+
+	/**
+	 * Lanczos approximation, about 15 significant digits
+	 *
+	 * @return ln Gamma(x) for x &gt; 0
+	 */
+	static double logGamma(double x) {
+		if (x < 0.5) // reflection
+			return Math.log(Math.PI / Math.sin(Math.PI * x))
+					- logGamma(1.0 - x);
+		x -= 1.0;
+		double a = LANCZOS[0];
+		for (int i = 1; i < LANCZOS.length; i++)
+			a += LANCZOS[i] / (x + i);
+		double t = x + 7.5;
+		return HALF_LOG_TWO_PI + (x + 0.5) * Math.log(t) - t + Math.log(a);
+	}
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2011 Arnim Bleier, Andreas Niekler and Patrick Jaehnichen
+ * Licensed under the GNU Lesser General Public License.
+ * http://www.gnu.org/licenses/lgpl.html
+ */
+package de.uni_leipzig.informatik.asv.hdp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel.MapMode;
+
+import de.uni_leipzig.informatik.asv.utils.CLDACorpus;
+import de.uni_leipzig.informatik.asv.utils.CLDAParser;
+
+/**
+ * A corpus and its table assignments in memory-mapped files, so that
+ * {@link HDPGibbsSampler} can sweep corpora larger than the heap, with the OS
+ * page cache deciding what stays in memory. A store directory holds:
+ * <ul>
+ * <li>documents: |V|, |D|, |W|, then the length of every document</li>
+ * <li>words: the term of every word</li>
+ * <li>tables: the table every word is assigned to</li>
+ * <li>tables.state: every document's table to topic map, saved whenever the
+ * tables are compacted and at the end of training</li>
+ * <li>progress: how many words, in the saved sweep order, have been
+ * renumbered to the saved state</li>
+ * </ul>
+ * All ints are big-endian. Since the assignments are already on disk, a killed
+ * job can be continued with {@link HDPGibbsSampler#resumeInstances}.
+ */
+public class MappedWordStore implements Closeable {
+
+	static final String DOCUMENTS = "documents", WORDS = "words",
+			TABLES = "tables", STATE = "tables.state", PROGRESS = "progress";
+
+	private final File directory;
+	private final RandomAccessFile wordsFile, tablesFile, progressFile;
+	private final MappedByteBuffer progress;
+
+	/** |V| */
+	final int sizeOfVocabulary;
+	/** |D| */
+	final int[] documentLengths;
+	/** |W| */
+	final IntArray words;
+	/** |W| */
+	final IntArray tables;
+
+	private MappedWordStore(File directory) throws IOException {
+		this.directory = directory;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(new File(directory, DOCUMENTS))));
+		try {
+			sizeOfVocabulary = in.readInt();
+			documentLengths = new int[in.readInt()];
+			in.readInt(); // |W|, recomputed below
+			for (int d = 0; d < documentLengths.length; d++)
+				documentLengths[d] = in.readInt();
+		} finally {
+			in.close();
+		}
+		int totalNumberOfWords = 0;
+		for (int length : documentLengths)
+			totalNumberOfWords += length;
+		wordsFile = new RandomAccessFile(new File(directory, WORDS), "rw");
+		tablesFile = new RandomAccessFile(new File(directory, TABLES), "rw");
+		progressFile = new RandomAccessFile(new File(directory, PROGRESS),
+				"rw");
+		words = IntArray.map(wordsFile, totalNumberOfWords);
+		tables = IntArray.map(tablesFile, totalNumberOfWords);
+		progress = progressFile.getChannel().map(MapMode.READ_WRITE, 0, 8);
+	}
+
+	/** Opens an existing store */
+	public static MappedWordStore open(File directory) throws IOException {
+		return new MappedWordStore(directory);
+	}
+
+	/**
+	 * Creates a store from a corpus in LDA-C format (see {@link CLDACorpus}),
+	 * streaming the words to disk. Malformed lines are skipped.
+	 */
+	public static MappedWordStore create(InputStream is, File directory)
+			throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("could not create " + directory);
+		int[] lengths = new int[1024];
+		int numberOfDocuments = 0, sizeOfVocabulary = 0;
+		long totalNumberOfWords = 0;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(new File(directory, WORDS)), 1 << 16));
+		try {
+			CLDAParser parser = new CLDAParser(Channels.newChannel(is));
+			while (parser.next()) {
+				int[] terms = parser.getTerms(), counts = parser.getCounts();
+				for (int i = 0; i < parser.getNumberOfTerms(); i++) {
+					for (int c = 0; c < counts[i]; c++)
+						out.writeInt(terms[i]);
+					if (terms[i] >= sizeOfVocabulary)
+						sizeOfVocabulary = terms[i] + 1;
+				}
+				int length = parser.getLength();
+				if (numberOfDocuments == lengths.length) {
+					int[] lengths2 = new int[lengths.length * 2];
+					System.arraycopy(lengths, 0, lengths2, 0, lengths.length);
+					lengths = lengths2;
+				}
+				lengths[numberOfDocuments++] = length;
+				totalNumberOfWords += length;
+			}
+		} finally {
+			out.close();
+		}
+		if (totalNumberOfWords > Integer.MAX_VALUE)
+			throw new IOException("more than " + Integer.MAX_VALUE + " words");
+
+		out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(new File(directory, DOCUMENTS))));
+		try {
+			out.writeInt(sizeOfVocabulary);
+			out.writeInt(numberOfDocuments);
+			out.writeInt((int) totalNumberOfWords);
+			for (int d = 0; d < numberOfDocuments; d++)
+				out.writeInt(lengths[d]);
+		} finally {
+			out.close();
+		}
+		new File(directory, STATE).delete();
+		new File(directory, PROGRESS).delete();
+		return new MappedWordStore(directory);
+	}
+
+	/** @return |V| */
+	public int getVocabularySize() {
+		return sizeOfVocabulary;
+	}
+
+	/** @return |D| */
+	public int getNumberOfDocuments() {
+		return documentLengths.length;
+	}
+
+	/** The table to topic maps of all documents, in sweep order */
+	static class State {
+		int generation;
+		int numberOfTopics;
+		/** |D|; document ids */
+		int[] ids;
+		/**
+		 * |D| x old number of tables; the renumbering of the tables, empty if
+		 * they are kept as they are
+		 */
+		int[][] tOldToTNew;
+		/** |D| */
+		int[] numberOfTables;
+		/** |D| x numberOfTables */
+		int[][] tableToTopic;
+	}
+
+	/**
+	 * Saves a new state. The words' table assignments are then renumbered
+	 * with {@link State#tOldToTNew}, word by word, while recording the
+	 * progress with {@link #setProgress(int, int)}.
+	 */
+	void save(State state) throws IOException {
+		tables.force();
+		File tmp = new File(directory, STATE + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp), 1 << 16));
+		try {
+			out.writeInt(state.generation);
+			out.writeInt(state.numberOfTopics);
+			out.writeInt(state.ids.length);
+			for (int i = 0; i < state.ids.length; i++) {
+				out.writeInt(state.ids[i]);
+				out.writeInt(state.tOldToTNew[i].length);
+				for (int t : state.tOldToTNew[i])
+					out.writeInt(t);
+				out.writeInt(state.numberOfTables[i]);
+				for (int t = 0; t < state.numberOfTables[i]; t++)
+					out.writeInt(state.tableToTopic[i][t]);
+			}
+		} finally {
+			out.close();
+		}
+		File file = new File(directory, STATE);
+		if (!tmp.renameTo(file)) { // not atomic on all platforms
+			file.delete();
+			if (!tmp.renameTo(file))
+				throw new IOException("could not write " + file);
+		}
+	}
+
+	/** @return the last saved state, or null */
+	State readState() throws IOException {
+		File file = new File(directory, STATE);
+		if (!file.exists())
+			return null;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file), 1 << 16));
+		try {
+			State state = new State();
+			state.generation = in.readInt();
+			state.numberOfTopics = in.readInt();
+			int numberOfDocuments = in.readInt();
+			state.ids = new int[numberOfDocuments];
+			state.tOldToTNew = new int[numberOfDocuments][];
+			state.numberOfTables = new int[numberOfDocuments];
+			state.tableToTopic = new int[numberOfDocuments][];
+			for (int i = 0; i < numberOfDocuments; i++) {
+				state.ids[i] = in.readInt();
+				state.tOldToTNew[i] = new int[in.readInt()];
+				for (int t = 0; t < state.tOldToTNew[i].length; t++)
+					state.tOldToTNew[i][t] = in.readInt();
+				state.numberOfTables[i] = in.readInt();
+				state.tableToTopic[i] = new int[state.numberOfTables[i]];
+				for (int t = 0; t < state.numberOfTables[i]; t++)
+					state.tableToTopic[i][t] = in.readInt();
+			}
+			return state;
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Atomically records how many words were renumbered to a state */
+	void setProgress(int generation, int renumbered) {
+		progress.putLong(0, ((long) generation << 32) | renumbered);
+	}
+
+	int getProgressGeneration() {
+		return (int) (progress.getLong(0) >>> 32);
+	}
+
+	int getProgressRenumbered() {
+		return (int) progress.getLong(0);
+	}
+
+	public void close() throws IOException {
+		words.force();
+		tables.force();
+		progress.force();
+		wordsFile.close();
+		tablesFile.close();
+		progressFile.close();
+	}
+}
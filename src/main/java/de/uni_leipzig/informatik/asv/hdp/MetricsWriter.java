@@ -0,0 +1,78 @@
+/*
+ * Copyright 2011 Arnim Bleier, Andreas Niekler and Patrick Jaehnichen
+ * Licensed under the GNU Lesser General Public License.
+ * http://www.gnu.org/licenses/lgpl.html
+ */
+package de.uni_leipzig.informatik.asv.hdp;
+
+import java.io.PrintStream;
+import java.util.Locale;
+
+/**
+ * A {@link TrainingListener} that writes one line per iteration, as CSV with
+ * a header line or as JSON objects (JSON Lines)
+ */
+public class MetricsWriter implements TrainingListener {
+
+	public enum Format {
+		CSV, JSON
+	}
+
+	private static final String[] COLUMNS = { "iteration", "elapsedMillis",
+			"wordsPerSecond", "sampleTableNanosPerWord",
+			"sampleTopicNanosPerWord", "defragmentNanosPerWord",
+			"numberOfTopics", "numberOfTables", "alpha", "gamma",
+			"logLikelihood", "heldOutPerplexity" };
+
+	private final PrintStream out;
+	private final Format format;
+	private boolean headerWritten;
+
+	public MetricsWriter(PrintStream out, Format format) {
+		this.out = out;
+		this.format = format;
+	}
+
+	public void iterationCompleted(TrainingMetrics metrics) {
+		String[] values = {
+				Integer.toString(metrics.getIteration()),
+				Long.toString(metrics.getElapsedMillis()),
+				format("%.1f", metrics.getWordsPerSecond()),
+				format("%.2f", metrics.getSampleTableNanosPerWord()),
+				format("%.2f", metrics.getSampleTopicNanosPerWord()),
+				format("%.2f", metrics.getDefragmentNanosPerWord()),
+				Integer.toString(metrics.getNumberOfTopics()),
+				Integer.toString(metrics.getNumberOfTables()),
+				format("%.6g", metrics.getAlpha()),
+				format("%.6g", metrics.getGamma()),
+				format("%.6f", metrics.getLogLikelihood()),
+				format("%.4f", metrics.getHeldOutPerplexity()) };
+		StringBuilder line = new StringBuilder();
+		if (format == Format.CSV) {
+			if (!headerWritten) {
+				for (int i = 0; i < COLUMNS.length; i++)
+					line.append(i > 0 ? "," : "").append(COLUMNS[i]);
+				out.println(line);
+				line.setLength(0);
+				headerWritten = true;
+			}
+			for (int i = 0; i < values.length; i++)
+				line.append(i > 0 ? "," : "").append(values[i]);
+		} else {
+			line.append('{');
+			for (int i = 0; i < values.length; i++)
+				line.append(i > 0 ? "," : "").append('"').append(COLUMNS[i])
+						.append("\":").append(values[i]);
+			line.append('}');
+		}
+		out.println(line);
+		out.flush();
+	}
+
+	/** @return value, or empty (CSV) or null (JSON) if it is not a number */
+	private String format(String pattern, double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value))
+			return format == Format.CSV ? "" : "null";
+		return String.format(Locale.ROOT, pattern, value);
+	}
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2011 Arnim Bleier, Andreas Niekler and Patrick Jaehnichen
+ * Licensed under the GNU Lesser General Public License.
+ * http://www.gnu.org/licenses/lgpl.html
+ */
+package de.uni_leipzig.informatik.asv.hdp;
+
+import java.util.Random;
+
+/** Draws from the distributions that {@link java.util.Random} lacks */
+final class RandomVariates {
+
+	private RandomVariates() {
+	}
+
+	/**
+	 * Marsaglia and Tsang's method, boosted for shape &lt; 1
+	 * 
+	 * @return a draw from Gamma(shape, 1)
+	 */
+	static double gamma(Random random, double shape) {
+		if (shape < 1.0)
+			return gamma(random, shape + 1.0)
+					* Math.pow(random.nextDouble(), 1.0 / shape);
+		double d = shape - 1.0 / 3.0, c = 1.0 / Math.sqrt(9.0 * d);
+		while (true) {
+			double x, v;
+			do {
+				x = random.nextGaussian();
+				v = 1.0 + c * x;
+			} while (v <= 0.0);
+			v = v * v * v;
+			double u = random.nextDouble();
+			if (u < 1.0 - 0.0331 * x * x * x * x
+					|| Math.log(u) < 0.5 * x * x + d * (1.0 - v + Math.log(v)))
+				return d * v;
+		}
+	}
+
+	/** @return a draw from Beta(a, b) */
+	static double beta(Random random, double a, double b) {
+		double x = gamma(random, a);
+		return x / (x + gamma(random, b));
+	}
+}
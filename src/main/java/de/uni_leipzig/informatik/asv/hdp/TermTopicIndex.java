@@ -0,0 +1,89 @@
+/*
+ * Copyright 2011 Arnim Bleier, Andreas Niekler and Patrick Jaehnichen
+ * Licensed under the GNU Lesser General Public License.
+ * http://www.gnu.org/licenses/lgpl.html
+ */
+package de.uni_leipzig.informatik.asv.hdp;
+
+/**
+ * For every term, the (unordered) list of topics in which that term has a
+ * non-zero count. Lets the sparse sampler visit only those topics instead of
+ * all |K|.
+ */
+class TermTopicIndex {
+
+	/** |V| x topics with a non-zero count, the first size[v] are valid */
+	final int[][] topics;
+	/** |V| */
+	final int[] size;
+
+	TermTopicIndex(int sizeOfVocabulary) {
+		topics = new int[sizeOfVocabulary][];
+		size = new int[sizeOfVocabulary];
+	}
+
+	/**
+	 * Rebuilds the index from scratch
+	 *
+	 * @param numberOfTopics
+	 *            K
+	 */
+	TermTopicIndex rebuild(TopicTermCounts wordCountByTopicAndTerm,
+			int numberOfTopics) {
+		int[] counts = new int[numberOfTopics];
+		for (int v = 0; v < size.length; v++)
+			rebuild(wordCountByTopicAndTerm, v, counts, numberOfTopics);
+		return this;
+	}
+
+	/** Rebuilds the topics of the first n terms only */
+	void rebuild(TopicTermCounts wordCountByTopicAndTerm, int[] terms, int n,
+			int numberOfTopics) {
+		int[] counts = new int[numberOfTopics];
+		for (int i = 0; i < n; i++)
+			rebuild(wordCountByTopicAndTerm, terms[i], counts, numberOfTopics);
+	}
+
+	/** @param counts K; scratch space */
+	private void rebuild(TopicTermCounts wordCountByTopicAndTerm, int term,
+			int[] counts, int numberOfTopics) {
+		wordCountByTopicAndTerm.getTerm(term, counts, numberOfTopics);
+		size[term] = 0;
+		for (int k = 0; k < numberOfTopics; k++)
+			if (counts[k] > 0)
+				add(term, k);
+	}
+
+	/** To be called when the count of term in topic goes from 0 to 1 */
+	void add(int term, int topic) {
+		int[] t = topics[term];
+		if (t == null)
+			topics[term] = t = new int[2];
+		else if (size[term] == t.length) {
+			int[] t2 = new int[t.length * 2];
+			System.arraycopy(t, 0, t2, 0, t.length);
+			topics[term] = t = t2;
+		}
+		t[size[term]++] = topic;
+	}
+
+	/** To be called when the count of term in topic goes from 1 to 0 */
+	void remove(int term, int topic) {
+		int[] t = topics[term];
+		int last = --size[term];
+		for (int i = 0; i < last; i++)
+			if (t[i] == topic) {
+				t[i] = t[last];
+				return;
+			}
+	}
+
+	/** Renames the topics after defragmentation */
+	void relabel(int[] kOldToKNew) {
+		for (int v = 0; v < size.length; v++) {
+			int[] t = topics[v];
+			for (int i = 0; i < size[v]; i++)
+				t[i] = kOldToKNew[t[i]];
+		}
+	}
+}
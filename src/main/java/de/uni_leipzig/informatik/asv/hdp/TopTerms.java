@@ -0,0 +1,265 @@
+/*
+ * Copyright 2011 Arnim Bleier, Andreas Niekler and Patrick Jaehnichen
+ * Licensed under the GNU Lesser General Public License.
+ * http://www.gnu.org/licenses/lgpl.html
+ */
+package de.uni_leipzig.informatik.asv.hdp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Maintains the n most frequent terms of every topic between sweeps. The
+ * sampler {@link #offer}s every term whose count in a topic rises above the
+ * count of that topic's n-th term at the last refresh. A refresh then only
+ * re-ranks the old top terms and these candidates at their current counts;
+ * if the new n-th count is still above the old one, no other term can beat
+ * it, else the topic is rescanned. Rescans fill bounded heaps, in
+ * parallel across topics.
+ */
+class TopTerms {
+
+	/** candidates per topic beyond which it is rescanned */
+	private static final int MAX_CANDIDATES = 4;
+
+	private final int n;
+	/** K; count of the n-th term at the last refresh, 0 if fewer terms */
+	private int[] threshold = new int[0];
+	private int[][] candidates = new int[0][];
+	/** K; -1 if there were too many */
+	private int[] numberOfCandidates = new int[0];
+	/** K x at most n; of the last refresh, by descending count */
+	private int[][] terms = new int[0][], counts = new int[0][];
+	/** of the counts the last refresh was over */
+	private int generation = -1;
+
+	TopTerms(int n) {
+		this.n = n;
+	}
+
+	/** @return the count above which a term of topic is {@link #offer}ed */
+	int threshold(int topic) {
+		return topic < threshold.length ? threshold[topic] : Integer.MAX_VALUE;
+	}
+
+	/** The count of term in topic rose above its {@link #threshold} */
+	void offer(int topic, int term) {
+		int c = numberOfCandidates[topic];
+		if (c < 0)
+			return;
+		if (c == candidates[topic].length) {
+			if (c >= MAX_CANDIDATES * n) {
+				numberOfCandidates[topic] = -1;
+				return;
+			}
+			candidates[topic] = Arrays.copyOf(candidates[topic],
+					Math.max(4, 2 * c));
+		}
+		candidates[topic][numberOfCandidates[topic]++] = term;
+	}
+
+	/** The next {@link #refresh} rescans all topics */
+	void invalidate() {
+		generation = -1;
+	}
+
+	/**
+	 * Brings the top terms up to date
+	 *
+	 * @param generation
+	 *            changes whenever topics are renumbered, which rescans all
+	 * @param executor
+	 *            to rescan on numberOfThreads threads, or null
+	 */
+	void refresh(final TopicTermCounts store, final int K, int generation,
+			ExecutorService executor, final int numberOfThreads) {
+		final boolean[] rescan = new boolean[K];
+		final int[][] newTerms = new int[K][], newCounts = new int[K][];
+		final int[] size = new int[K];
+		for (int k = 0; k < K; k++) {
+			newTerms[k] = new int[n];
+			newCounts[k] = new int[n];
+			rescan[k] = generation != this.generation || k >= terms.length
+					|| numberOfCandidates[k] < 0
+					|| !rerank(store, k, newTerms[k], newCounts[k], size);
+			if (rescan[k])
+				size[k] = 0;
+		}
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int t = 0; t < numberOfThreads; t++) {
+			final int slice = t;
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					rescan(store, K, rescan, slice, numberOfThreads, newTerms,
+							newCounts, size);
+					return null;
+				}
+			});
+		}
+		if (executor == null)
+			for (Callable<Void> task : tasks)
+				call(task);
+		else
+			try {
+				for (Future<Void> result : executor.invokeAll(tasks))
+					result.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(e);
+			} catch (ExecutionException e) {
+				throw new IllegalStateException(e.getCause());
+			}
+
+		threshold = new int[K];
+		candidates = new int[K][];
+		numberOfCandidates = new int[K];
+		terms = new int[K][];
+		counts = new int[K][];
+		for (int k = 0; k < K; k++) {
+			sort(newTerms[k], newCounts[k], size[k]);
+			terms[k] = Arrays.copyOf(newTerms[k], size[k]);
+			counts[k] = Arrays.copyOf(newCounts[k], size[k]);
+			threshold[k] = size[k] == n ? counts[k][n - 1] : 0;
+			candidates[k] = new int[4];
+		}
+		this.generation = generation;
+	}
+
+	private static void call(Callable<Void> task) {
+		try {
+			task.call();
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Ranks the old top terms and the candidates of topic k by their
+	 * current counts
+	 *
+	 * @return whether that is exact
+	 */
+	private boolean rerank(TopicTermCounts store, int k, int[] heapTerms,
+			int[] heapCounts, int[] size) {
+		int oldSize = terms[k].length;
+		int[] union = Arrays.copyOf(terms[k], oldSize + numberOfCandidates[k]);
+		System.arraycopy(candidates[k], 0, union, oldSize,
+				numberOfCandidates[k]);
+		Arrays.sort(union);
+		for (int i = 0; i < union.length; i++)
+			if (i == 0 || union[i] != union[i - 1]) {
+				int count = store.get(k, union[i]);
+				if (count > 0)
+					size[k] = push(heapTerms, heapCounts, size[k], union[i],
+							count);
+			}
+		if (oldSize < n) // all terms with words were offered
+			return true;
+		// the others have at most the threshold, and would win ties
+		return size[k] == n && heapCounts[0] > threshold[k];
+	}
+
+	/** Rescans the topics of a slice (k % numberOfSlices == slice) */
+	private void rescan(TopicTermCounts store, int K, boolean[] rescan,
+			int slice, int numberOfSlices, int[][] heapTerms,
+			int[][] heapCounts, int[] size) {
+		int V = store.sizeOfVocabulary;
+		if (store.isIndexed())
+			for (int v = 0; v < V; v++) {
+				int[] topics = store.topics(v);
+				for (int i = 0; i < store.size(v); i++) {
+					int k = topics[i];
+					if (k < K && k % numberOfSlices == slice && rescan[k])
+						size[k] = push(heapTerms[k], heapCounts[k], size[k],
+								v, store.countAt(v, i));
+				}
+			}
+		else {
+			int[] row = new int[V];
+			for (int k = slice; k < K; k += numberOfSlices)
+				if (rescan[k]) {
+					store.getTopic(k, row);
+					for (int v = 0; v < V; v++)
+						if (row[v] > 0)
+							size[k] = push(heapTerms[k], heapCounts[k],
+									size[k], v, row[v]);
+				}
+		}
+	}
+
+	/** @return the top terms of the last refresh, as an immutable copy */
+	TopWords publish() {
+		int[][] t = new int[terms.length][], c = new int[terms.length][];
+		for (int k = 0; k < terms.length; k++) {
+			t[k] = terms[k].clone();
+			c[k] = counts[k].clone();
+		}
+		return new TopWords(t, c);
+	}
+
+	/** @return whether (term a, count a) ranks below (term b, count b) */
+	private static boolean below(int termA, int countA, int termB, int countB) {
+		return countA < countB || (countA == countB && termA > termB);
+	}
+
+	/**
+	 * Offers a term to a bounded min-heap of the n top terms, its lowest at
+	 * the root
+	 *
+	 * @return the new size
+	 */
+	private int push(int[] terms, int[] counts, int size, int term, int count) {
+		if (size < n) { // sift up
+			int i = size++;
+			while (i > 0) {
+				int parent = (i - 1) / 2;
+				if (!below(term, count, terms[parent], counts[parent]))
+					break;
+				terms[i] = terms[parent];
+				counts[i] = counts[parent];
+				i = parent;
+			}
+			terms[i] = term;
+			counts[i] = count;
+		} else if (below(terms[0], counts[0], term, count))
+			siftDown(terms, counts, size, term, count);
+		return size;
+	}
+
+	/** Replaces the root and restores the heap */
+	private static void siftDown(int[] terms, int[] counts, int size,
+			int term, int count) {
+		int i = 0;
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size)
+				break;
+			if (child + 1 < size
+					&& below(terms[child + 1], counts[child + 1],
+							terms[child], counts[child]))
+				child++;
+			if (!below(terms[child], counts[child], term, count))
+				break;
+			terms[i] = terms[child];
+			counts[i] = counts[child];
+			i = child;
+		}
+		terms[i] = term;
+		counts[i] = count;
+	}
+
+	/** Sorts a heap by descending rank, in place */
+	private static void sort(int[] terms, int[] counts, int size) {
+		for (int last = size - 1; last > 0; last--) {
+			int term = terms[last], count = counts[last];
+			terms[last] = terms[0];
+			counts[last] = counts[0];
+			siftDown(terms, counts, last, term, count);
+		}
+	}
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2011 Arnim Bleier, Andreas Niekler and Patrick Jaehnichen
+ * Licensed under the GNU Lesser General Public License.
+ * http://www.gnu.org/licenses/lgpl.html
+ */
+package de.uni_leipzig.informatik.asv.hdp;
+
+import de.uni_leipzig.informatik.asv.utils.CLDACorpusVocabulary;
+
+/**
+ * The most frequent terms of every topic, by descending count (ties by
+ * ascending term). Immutable, see {@link HDPGibbsSampler#getTopWords()}.
+ */
+public class TopWords {
+
+	private final int[][] terms, counts;
+
+	TopWords(int[][] terms, int[][] counts) {
+		this.terms = terms;
+		this.counts = counts;
+	}
+
+	/** @return |K| */
+	public int getNumberOfTopics() {
+		return terms.length;
+	}
+
+	/** @return at most n terms; fewer if the topic has fewer */
+	public int[] getTerms(int topic) {
+		return terms[topic].clone();
+	}
+
+	/** @return the counts of the terms in the topic */
+	public int[] getCounts(int topic) {
+		return counts[topic].clone();
+	}
+
+	/** @return the words of {@link #getTerms(int)} */
+	public String[] getWords(int topic, CLDACorpusVocabulary vocabulary) {
+		String[] words = new String[terms[topic].length];
+		for (int i = 0; i < words.length; i++)
+			words[i] = vocabulary.getWord(terms[topic][i]);
+		return words;
+	}
+}
@@ -0,0 +1,950 @@
+/*
+ * Copyright 2011 Arnim Bleier, Andreas Niekler and Patrick Jaehnichen
+ * Licensed under the GNU Lesser General Public License.
+ * http://www.gnu.org/licenses/lgpl.html
+ */
+package de.uni_leipzig.informatik.asv.hdp;
+
+import java.util.Arrays;
+
+/**
+ * How often each term is assigned to each topic, either as a dense K x |V|
+ * matrix of ints or of chars, as a dense |V| x K matrix of ints in one array,
+ * or, for large vocabularies where most of that matrix is zero, as sorted
+ * topic/count pairs per term.
+ *
+ * Both keep, for every term, the list of topics with a non-zero count for
+ * {@link HDPGibbsSampler.SamplingMethod#SPARSE}: the sparse counts are that
+ * list, the matrices maintain it only after {@link #index(int)}.
+ */
+abstract class TopicTermCounts {
+
+	/** |V| */
+	final int sizeOfVocabulary;
+
+	TopicTermCounts(int sizeOfVocabulary) {
+		this.sizeOfVocabulary = sizeOfVocabulary;
+	}
+
+	/** @return counts for the topics 0..numberOfTopics, all zero */
+	static TopicTermCounts dense(int sizeOfVocabulary, int numberOfTopics) {
+		return new Dense(sizeOfVocabulary, numberOfTopics);
+	}
+
+	/**
+	 * @return counts for the topics 0..numberOfTopics, all zero, in 16 bits
+	 *         each
+	 */
+	static TopicTermCounts compact(int sizeOfVocabulary, int numberOfTopics) {
+		return new Compact(sizeOfVocabulary, numberOfTopics);
+	}
+
+	/**
+	 * @return counts for the topics 0..numberOfTopics, all zero, those of
+	 *         each term contiguous
+	 */
+	static TopicTermCounts termMajor(int sizeOfVocabulary, int numberOfTopics) {
+		return new TermMajor(sizeOfVocabulary, numberOfTopics);
+	}
+
+	/** @return counts for any number of topics, all zero */
+	static TopicTermCounts sparse(int sizeOfVocabulary) {
+		return new Sparse(sizeOfVocabulary);
+	}
+
+	abstract int get(int topic, int term);
+
+	/** @return the count after incrementing it */
+	abstract int increment(int topic, int term);
+
+	/** @return the count after decrementing it */
+	abstract int decrement(int topic, int term);
+
+	/** Sets counts[k] to the count of term in topic k, for k < numberOfTopics */
+	abstract void getTerm(int term, int[] counts, int numberOfTopics);
+
+	/** Sets counts[v] to the count of term v in topic, for all terms */
+	void getTopic(int topic, int[] counts) {
+		for (int v = 0; v < sizeOfVocabulary; v++)
+			counts[v] = get(topic, v);
+	}
+
+	/** Makes room for a new topic, with all counts zero */
+	abstract void addTopic(int topic);
+
+	/**
+	 * Renames the topics
+	 *
+	 * @param kOldToKNew
+	 *            the new id of every old topic, increasing; -1 for topics
+	 *            without words
+	 * @param numberOfTopics
+	 *            the old K
+	 * @param newNumberOfTopics
+	 *            the new K, counts are kept for 0..newNumberOfTopics
+	 */
+	abstract void relabel(int[] kOldToKNew, int numberOfTopics,
+			int newNumberOfTopics);
+
+	/**
+	 * @return the counts over a vocabulary of sizeOfVocabulary terms, at least
+	 *         |V|, the new terms with all counts zero. Shares the storage of
+	 *         these, which must not be used afterwards, and is not indexed.
+	 */
+	abstract TopicTermCounts withVocabulary(int sizeOfVocabulary);
+
+	/**
+	 * Copies the counts of the topics 0..numberOfTopics
+	 *
+	 * @param replica
+	 *            to copy to if it is not this and was created like this over
+	 *            the same vocabulary, or null
+	 * @return the copy
+	 */
+	abstract TopicTermCounts copy(TopicTermCounts replica, int numberOfTopics);
+
+	/**
+	 * Adds the replicas' changes since their {@link #copy} to these counts
+	 * and copies the result back into every replica. The work is split into
+	 * numberOfSlices slices that may be merged in parallel. Afterwards the
+	 * indexes of all of them must be rebuilt.
+	 */
+	abstract void merge(TopicTermCounts[] replicas, int numberOfReplicas,
+			int slice, int numberOfSlices, int numberOfTopics);
+
+	/** (Re)builds the lists of non-zero topics and maintains them from now on */
+	abstract void index(int numberOfTopics);
+
+	/** Stops maintaining the lists of non-zero topics, where that is optional */
+	abstract void unindex();
+
+	/**
+	 * Brings the lists of non-zero topics up to date for the first n terms,
+	 * whose counts changed behind their back, as in a {@link #merge}
+	 */
+	abstract void reindex(int[] terms, int n, int numberOfTopics);
+
+	abstract boolean isIndexed();
+
+	/**
+	 * @return the topics with a non-zero count of term, the first
+	 *         {@link #size(int)} are valid
+	 */
+	abstract int[] topics(int term);
+
+	/** @return the number of topics with a non-zero count of term */
+	abstract int size(int term);
+
+	/** @return the count of term in topic {@link #topics(int)}[i] */
+	abstract int countAt(int term, int i);
+
+	/** K x |V| ints */
+	private static final class Dense extends TopicTermCounts {
+
+		private int[][] counts;
+		private TermTopicIndex index;
+		private boolean indexed;
+
+		Dense(int sizeOfVocabulary, int numberOfTopics) {
+			super(sizeOfVocabulary);
+			counts = new int[numberOfTopics + 1][];
+			for (int k = 0; k <= numberOfTopics; k++)
+				// variable initialization already done
+				counts[k] = new int[sizeOfVocabulary];
+		}
+
+		@Override
+		int get(int topic, int term) {
+			return counts[topic][term];
+		}
+
+		@Override
+		int increment(int topic, int term) {
+			int n = ++counts[topic][term];
+			if (n == 1 && indexed)
+				index.add(term, topic);
+			return n;
+		}
+
+		@Override
+		int decrement(int topic, int term) {
+			int n = --counts[topic][term];
+			if (n == 0 && indexed)
+				index.remove(term, topic);
+			return n;
+		}
+
+		@Override
+		void getTerm(int term, int[] counts, int numberOfTopics) {
+			for (int k = 0; k < numberOfTopics; k++)
+				counts[k] = this.counts[k][term];
+		}
+
+		@Override
+		void getTopic(int topic, int[] counts) {
+			System.arraycopy(this.counts[topic], 0, counts, 0, sizeOfVocabulary);
+		}
+
+		@Override
+		void addTopic(int topic) {
+			if (counts.length <= topic)
+				counts = Arrays.copyOf(counts, topic * 2);
+			counts[topic] = new int[sizeOfVocabulary];
+		}
+
+		@Override
+		TopicTermCounts withVocabulary(int sizeOfVocabulary) {
+			Dense grown = new Dense(sizeOfVocabulary, -1);
+			grown.counts = new int[counts.length][];
+			for (int k = 0; k < counts.length; k++)
+				if (counts[k] != null)
+					grown.counts[k] = Arrays.copyOf(counts[k], sizeOfVocabulary);
+			return grown;
+		}
+
+		@Override
+		void relabel(int[] kOldToKNew, int numberOfTopics,
+				int newNumberOfTopics) {
+			int[][] relabeled = new int[Math.max(counts.length,
+					newNumberOfTopics + 1)][];
+			for (int k = 0; k < numberOfTopics; k++)
+				if (kOldToKNew[k] >= 0)
+					relabeled[kOldToKNew[k]] = counts[k];
+			// the rows of the removed topics are all zero, reuse them
+			int spare = 0;
+			for (int k = 0; k <= newNumberOfTopics; k++)
+				if (relabeled[k] == null) {
+					while (spare < numberOfTopics && kOldToKNew[spare] >= 0)
+						spare++;
+					relabeled[k] = spare < numberOfTopics ? counts[spare++]
+							: new int[sizeOfVocabulary];
+				}
+			counts = relabeled;
+			if (indexed)
+				index.relabel(kOldToKNew);
+		}
+
+		@Override
+		TopicTermCounts copy(TopicTermCounts replica, int numberOfTopics) {
+			Dense copy = replica instanceof Dense && replica != this
+					&& replica.sizeOfVocabulary == sizeOfVocabulary ? (Dense) replica
+					: new Dense(sizeOfVocabulary, -1);
+			if (copy.counts.length <= numberOfTopics)
+				copy.counts = Arrays.copyOf(copy.counts, counts.length);
+			for (int k = 0; k <= numberOfTopics; k++) {
+				if (copy.counts[k] == null)
+					copy.counts[k] = new int[sizeOfVocabulary];
+				System.arraycopy(counts[k], 0, copy.counts[k], 0,
+						sizeOfVocabulary);
+			}
+			copy.indexed = false;
+			return copy;
+		}
+
+		/** Each slice is an interleaved set of topics */
+		@Override
+		void merge(TopicTermCounts[] replicas, int numberOfReplicas,
+				int slice, int numberOfSlices, int numberOfTopics) {
+			int[][] rows = new int[numberOfReplicas][];
+			for (int k = slice; k < numberOfTopics; k += numberOfSlices) {
+				int[] global = counts[k];
+				for (int w = 0; w < numberOfReplicas; w++)
+					rows[w] = ((Dense) replicas[w]).counts[k];
+				for (int v = 0; v < sizeOfVocabulary; v++) {
+					int old = global[v], n = old;
+					for (int w = 0; w < numberOfReplicas; w++)
+						n += rows[w][v] - old;
+					global[v] = n;
+					for (int w = 0; w < numberOfReplicas; w++)
+						rows[w][v] = n;
+				}
+			}
+		}
+
+		@Override
+		void index(int numberOfTopics) {
+			if (index == null)
+				index = new TermTopicIndex(sizeOfVocabulary);
+			index.rebuild(this, numberOfTopics);
+			indexed = true;
+		}
+
+		@Override
+		void unindex() {
+			indexed = false;
+		}
+
+		@Override
+		void reindex(int[] terms, int n, int numberOfTopics) {
+			if (indexed)
+				index.rebuild(this, terms, n, numberOfTopics);
+		}
+
+		@Override
+		boolean isIndexed() {
+			return indexed;
+		}
+
+		@Override
+		int[] topics(int term) {
+			return index.topics[term];
+		}
+
+		@Override
+		int size(int term) {
+			return index.size[term];
+		}
+
+		@Override
+		int countAt(int term, int i) {
+			return counts[index.topics[term][i]][term];
+		}
+	}
+
+	/**
+	 * |V| x K ints in a single array, so that the counts of one term over
+	 * all topics can be read as a contiguous run. Adding topics beyond the
+	 * capacity (stride) of a row re-lays out the whole array.
+	 */
+	static final class TermMajor extends TopicTermCounts {
+
+		/** term v, topic k at v * stride + k */
+		private int[] counts;
+		/** topics per term there is room for */
+		private int stride;
+		private TermTopicIndex index;
+		private boolean indexed;
+
+		TermMajor(int sizeOfVocabulary, int numberOfTopics) {
+			super(sizeOfVocabulary);
+			stride = numberOfTopics + 1;
+			counts = allocate(sizeOfVocabulary, stride);
+		}
+
+		private static int[] allocate(int sizeOfVocabulary, int stride) {
+			if ((long) sizeOfVocabulary * stride > Integer.MAX_VALUE)
+				throw new IllegalStateException("|V| " + sizeOfVocabulary
+						+ " x " + stride + " topics exceed a term-major array");
+			return new int[sizeOfVocabulary * stride];
+		}
+
+		/** Copies the counts into rows of newStride topics */
+		private void resize(int newStride) {
+			int[] resized = allocate(sizeOfVocabulary, newStride);
+			int length = Math.min(stride, newStride);
+			for (int v = 0; v < sizeOfVocabulary; v++)
+				System.arraycopy(counts, v * stride, resized, v * newStride,
+						length);
+			counts = resized;
+			stride = newStride;
+		}
+
+		@Override
+		int get(int topic, int term) {
+			return counts[term * stride + topic];
+		}
+
+		@Override
+		int increment(int topic, int term) {
+			int n = ++counts[term * stride + topic];
+			if (n == 1 && indexed)
+				index.add(term, topic);
+			return n;
+		}
+
+		@Override
+		int decrement(int topic, int term) {
+			int n = --counts[term * stride + topic];
+			if (n == 0 && indexed)
+				index.remove(term, topic);
+			return n;
+		}
+
+		@Override
+		void getTerm(int term, int[] counts, int numberOfTopics) {
+			System.arraycopy(this.counts, term * stride, counts, 0,
+					numberOfTopics);
+		}
+
+		/**
+		 * @return the array in which the counts of each term are contiguous,
+		 *         from {@link #termOffset(int)} on. Valid until the next
+		 *         {@link #addTopic} or {@link #relabel}.
+		 */
+		int[] termMajorCounts() {
+			return counts;
+		}
+
+		/** @return where the counts of term start in termMajorCounts() */
+		int termOffset(int term) {
+			return term * stride;
+		}
+
+		@Override
+		void addTopic(int topic) {
+			if (stride <= topic)
+				resize(Math.max(2 * stride, topic + 1));
+			else
+				for (int v = 0; v < sizeOfVocabulary; v++)
+					counts[v * stride + topic] = 0;
+		}
+
+		/** The rows of the new terms go after the old ones */
+		@Override
+		TopicTermCounts withVocabulary(int sizeOfVocabulary) {
+			TermMajor grown = new TermMajor(sizeOfVocabulary, -1);
+			grown.counts = allocate(sizeOfVocabulary, stride);
+			System.arraycopy(counts, 0, grown.counts, 0, counts.length);
+			grown.stride = stride;
+			return grown;
+		}
+
+		@Override
+		void relabel(int[] kOldToKNew, int numberOfTopics,
+				int newNumberOfTopics) {
+			if (stride <= newNumberOfTopics)
+				resize(newNumberOfTopics + 1);
+			int[] row = new int[numberOfTopics];
+			for (int v = 0, offset = 0; v < sizeOfVocabulary; v++, offset += stride) {
+				System.arraycopy(counts, offset, row, 0, numberOfTopics);
+				Arrays.fill(counts, offset, offset + stride, 0);
+				for (int k = 0; k < numberOfTopics; k++)
+					if (kOldToKNew[k] >= 0)
+						counts[offset + kOldToKNew[k]] = row[k];
+			}
+			if (indexed)
+				index.relabel(kOldToKNew);
+		}
+
+		/** Copies all rows whole, the topics above numberOfTopics are zero */
+		@Override
+		TopicTermCounts copy(TopicTermCounts replica, int numberOfTopics) {
+			TermMajor copy = replica instanceof TermMajor && replica != this
+					&& replica.sizeOfVocabulary == sizeOfVocabulary ? (TermMajor) replica
+					: new TermMajor(sizeOfVocabulary, -1);
+			if (copy.counts.length != counts.length)
+				copy.counts = new int[counts.length];
+			System.arraycopy(counts, 0, copy.counts, 0, counts.length);
+			copy.stride = stride;
+			copy.indexed = false;
+			return copy;
+		}
+
+		/**
+		 * Each slice is an interleaved set of terms; the replicas may have
+		 * grown their rows independently
+		 */
+		@Override
+		void merge(TopicTermCounts[] replicas, int numberOfReplicas,
+				int slice, int numberOfSlices, int numberOfTopics) {
+			for (int v = slice; v < sizeOfVocabulary; v += numberOfSlices) {
+				int offset = v * stride;
+				for (int k = 0; k < numberOfTopics; k++) {
+					int old = counts[offset + k], n = old;
+					for (int w = 0; w < numberOfReplicas; w++) {
+						TermMajor replica = (TermMajor) replicas[w];
+						n += replica.counts[v * replica.stride + k] - old;
+					}
+					counts[offset + k] = n;
+					for (int w = 0; w < numberOfReplicas; w++) {
+						TermMajor replica = (TermMajor) replicas[w];
+						replica.counts[v * replica.stride + k] = n;
+					}
+				}
+			}
+		}
+
+		@Override
+		void index(int numberOfTopics) {
+			if (index == null)
+				index = new TermTopicIndex(sizeOfVocabulary);
+			index.rebuild(this, numberOfTopics);
+			indexed = true;
+		}
+
+		@Override
+		void unindex() {
+			indexed = false;
+		}
+
+		@Override
+		void reindex(int[] terms, int n, int numberOfTopics) {
+			if (indexed)
+				index.rebuild(this, terms, n, numberOfTopics);
+		}
+
+		@Override
+		boolean isIndexed() {
+			return indexed;
+		}
+
+		@Override
+		int[] topics(int term) {
+			return index.topics[term];
+		}
+
+		@Override
+		int size(int term) {
+			return index.size[term];
+		}
+
+		@Override
+		int countAt(int term, int i) {
+			return counts[term * stride + index.topics[term][i]];
+		}
+	}
+
+	/**
+	 * K x |V| chars, half the size of {@link Dense}. Counts of
+	 * {@link #ESCAPE} and more are kept in a map per topic.
+	 */
+	private static final class Compact extends TopicTermCounts {
+
+		private static final char ESCAPE = Character.MAX_VALUE;
+
+		private char[][] counts;
+		/** K; the counts that do not fit into a char, or null */
+		private Overflow[] overflow;
+		private TermTopicIndex index;
+		private boolean indexed;
+
+		Compact(int sizeOfVocabulary, int numberOfTopics) {
+			super(sizeOfVocabulary);
+			counts = new char[numberOfTopics + 1][];
+			overflow = new Overflow[numberOfTopics + 1];
+			for (int k = 0; k <= numberOfTopics; k++)
+				counts[k] = new char[sizeOfVocabulary];
+		}
+
+		@Override
+		int get(int topic, int term) {
+			char c = counts[topic][term];
+			return c != ESCAPE ? c : overflow[topic].get(term);
+		}
+
+		/** Sets a count, escaping it if needed */
+		private void set(int topic, int term, int n) {
+			if (n < ESCAPE) {
+				if (counts[topic][term] == ESCAPE)
+					overflow[topic].remove(term);
+				counts[topic][term] = (char) n;
+			} else {
+				if (overflow[topic] == null)
+					overflow[topic] = new Overflow();
+				overflow[topic].put(term, n);
+				counts[topic][term] = ESCAPE;
+			}
+		}
+
+		@Override
+		int increment(int topic, int term) {
+			char c = counts[topic][term];
+			int n;
+			if (c < ESCAPE - 1)
+				counts[topic][term] = (char) (n = c + 1);
+			else
+				set(topic, term, n = get(topic, term) + 1);
+			if (n == 1 && indexed)
+				index.add(term, topic);
+			return n;
+		}
+
+		@Override
+		int decrement(int topic, int term) {
+			char c = counts[topic][term];
+			int n;
+			if (c != ESCAPE)
+				counts[topic][term] = (char) (n = c - 1);
+			else
+				set(topic, term, n = overflow[topic].get(term) - 1);
+			if (n == 0 && indexed)
+				index.remove(term, topic);
+			return n;
+		}
+
+		@Override
+		void getTerm(int term, int[] counts, int numberOfTopics) {
+			for (int k = 0; k < numberOfTopics; k++) {
+				char c = this.counts[k][term];
+				counts[k] = c != ESCAPE ? c : overflow[k].get(term);
+			}
+		}
+
+		@Override
+		void addTopic(int topic) {
+			if (counts.length <= topic) {
+				counts = Arrays.copyOf(counts, topic * 2);
+				overflow = Arrays.copyOf(overflow, topic * 2);
+			}
+			counts[topic] = new char[sizeOfVocabulary];
+			overflow[topic] = null;
+		}
+
+		@Override
+		TopicTermCounts withVocabulary(int sizeOfVocabulary) {
+			Compact grown = new Compact(sizeOfVocabulary, -1);
+			grown.counts = new char[counts.length][];
+			grown.overflow = overflow;
+			for (int k = 0; k < counts.length; k++)
+				if (counts[k] != null)
+					grown.counts[k] = Arrays.copyOf(counts[k], sizeOfVocabulary);
+			return grown;
+		}
+
+		@Override
+		void relabel(int[] kOldToKNew, int numberOfTopics,
+				int newNumberOfTopics) {
+			int length = Math.max(counts.length, newNumberOfTopics + 1);
+			char[][] relabeled = new char[length][];
+			Overflow[] relabeledOverflow = new Overflow[length];
+			for (int k = 0; k < numberOfTopics; k++)
+				if (kOldToKNew[k] >= 0) {
+					relabeled[kOldToKNew[k]] = counts[k];
+					relabeledOverflow[kOldToKNew[k]] = overflow[k];
+				}
+			// the rows of the removed topics are all zero, reuse them
+			int spare = 0;
+			for (int k = 0; k <= newNumberOfTopics; k++)
+				if (relabeled[k] == null) {
+					while (spare < numberOfTopics && kOldToKNew[spare] >= 0)
+						spare++;
+					relabeled[k] = spare < numberOfTopics ? counts[spare++]
+							: new char[sizeOfVocabulary];
+				}
+			counts = relabeled;
+			overflow = relabeledOverflow;
+			if (indexed)
+				index.relabel(kOldToKNew);
+		}
+
+		@Override
+		TopicTermCounts copy(TopicTermCounts replica, int numberOfTopics) {
+			Compact copy = replica instanceof Compact && replica != this
+					&& replica.sizeOfVocabulary == sizeOfVocabulary ? (Compact) replica
+					: new Compact(sizeOfVocabulary, -1);
+			if (copy.counts.length <= numberOfTopics) {
+				copy.counts = Arrays.copyOf(copy.counts, counts.length);
+				copy.overflow = Arrays.copyOf(copy.overflow, counts.length);
+			}
+			for (int k = 0; k <= numberOfTopics; k++) {
+				if (copy.counts[k] == null)
+					copy.counts[k] = new char[sizeOfVocabulary];
+				System.arraycopy(counts[k], 0, copy.counts[k], 0,
+						sizeOfVocabulary);
+				copy.overflow[k] = overflow[k] != null ? overflow[k].copy()
+						: null;
+			}
+			copy.indexed = false;
+			return copy;
+		}
+
+		/** Each slice is an interleaved set of topics */
+		@Override
+		void merge(TopicTermCounts[] replicas, int numberOfReplicas,
+				int slice, int numberOfSlices, int numberOfTopics) {
+			for (int k = slice; k < numberOfTopics; k += numberOfSlices)
+				for (int v = 0; v < sizeOfVocabulary; v++) {
+					int old = get(k, v), n = old;
+					for (int w = 0; w < numberOfReplicas; w++)
+						n += replicas[w].get(k, v) - old;
+					set(k, v, n);
+					for (int w = 0; w < numberOfReplicas; w++)
+						((Compact) replicas[w]).set(k, v, n);
+				}
+		}
+
+		@Override
+		void index(int numberOfTopics) {
+			if (index == null)
+				index = new TermTopicIndex(sizeOfVocabulary);
+			index.rebuild(this, numberOfTopics);
+			indexed = true;
+		}
+
+		@Override
+		void unindex() {
+			indexed = false;
+		}
+
+		@Override
+		void reindex(int[] terms, int n, int numberOfTopics) {
+			if (indexed)
+				index.rebuild(this, terms, n, numberOfTopics);
+		}
+
+		@Override
+		boolean isIndexed() {
+			return indexed;
+		}
+
+		@Override
+		int[] topics(int term) {
+			return index.topics[term];
+		}
+
+		@Override
+		int size(int term) {
+			return index.size[term];
+		}
+
+		@Override
+		int countAt(int term, int i) {
+			return get(index.topics[term][i], term);
+		}
+	}
+
+	/** Open addressing map from terms to counts */
+	private static final class Overflow {
+
+		private int[] terms = new int[8], counts = new int[8];
+		private int size;
+
+		Overflow() {
+			Arrays.fill(terms, -1);
+		}
+
+		private int slot(int term) {
+			int mask = terms.length - 1, i = (term * 0x9E3779B9) >>> 16 & mask;
+			while (terms[i] != term && terms[i] >= 0)
+				i = (i + 1) & mask;
+			return i;
+		}
+
+		int get(int term) {
+			return counts[slot(term)];
+		}
+
+		void put(int term, int count) {
+			int i = slot(term);
+			if (terms[i] < 0) {
+				if (2 * (size + 1) > terms.length) {
+					grow();
+					i = slot(term);
+				}
+				terms[i] = term;
+				size++;
+			}
+			counts[i] = count;
+		}
+
+		void remove(int term) {
+			int mask = terms.length - 1, i = slot(term);
+			terms[i] = -1;
+			size--;
+			// move back the entries that probed past the removed one
+			for (int j = (i + 1) & mask; terms[j] >= 0; j = (j + 1) & mask) {
+				int t = terms[j], c = counts[j];
+				terms[j] = -1;
+				int k = slot(t);
+				terms[k] = t;
+				counts[k] = c;
+			}
+		}
+
+		private void grow() {
+			int[] oldTerms = terms, oldCounts = counts;
+			terms = new int[oldTerms.length * 2];
+			counts = new int[oldTerms.length * 2];
+			Arrays.fill(terms, -1);
+			for (int i = 0; i < oldTerms.length; i++)
+				if (oldTerms[i] >= 0) {
+					int j = slot(oldTerms[i]);
+					terms[j] = oldTerms[i];
+					counts[j] = oldCounts[i];
+				}
+		}
+
+		Overflow copy() {
+			Overflow copy = new Overflow();
+			copy.terms = terms.clone();
+			copy.counts = counts.clone();
+			copy.size = size;
+			return copy;
+		}
+	}
+
+	/** For every term, its non-zero counts as pairs sorted by topic */
+	private static final class Sparse extends TopicTermCounts {
+
+		private static final int[] EMPTY = new int[0];
+
+		/** |V| x non-zero topics of the term, the first size[v] are valid */
+		private final int[][] topics;
+		/** |V| x the counts of those topics */
+		private final int[][] counts;
+		/** |V| */
+		private final int[] size;
+
+		Sparse(int sizeOfVocabulary) {
+			super(sizeOfVocabulary);
+			topics = new int[sizeOfVocabulary][];
+			counts = new int[sizeOfVocabulary][];
+			size = new int[sizeOfVocabulary];
+			Arrays.fill(topics, EMPTY);
+			Arrays.fill(counts, EMPTY);
+		}
+
+		@Override
+		int get(int topic, int term) {
+			int i = Arrays.binarySearch(topics[term], 0, size[term], topic);
+			return i >= 0 ? counts[term][i] : 0;
+		}
+
+		@Override
+		int increment(int topic, int term) {
+			int i = Arrays.binarySearch(topics[term], 0, size[term], topic);
+			if (i >= 0)
+				return ++counts[term][i];
+			i = -i - 1;
+			int n = size[term]++;
+			if (n == topics[term].length) {
+				topics[term] = Arrays.copyOf(topics[term], Math.max(2, n * 2));
+				counts[term] = Arrays.copyOf(counts[term], Math.max(2, n * 2));
+			}
+			System.arraycopy(topics[term], i, topics[term], i + 1, n - i);
+			System.arraycopy(counts[term], i, counts[term], i + 1, n - i);
+			topics[term][i] = topic;
+			return counts[term][i] = 1;
+		}
+
+		@Override
+		int decrement(int topic, int term) {
+			int i = Arrays.binarySearch(topics[term], 0, size[term], topic);
+			int c = --counts[term][i];
+			if (c == 0) {
+				int n = --size[term];
+				System.arraycopy(topics[term], i + 1, topics[term], i, n - i);
+				System.arraycopy(counts[term], i + 1, counts[term], i, n - i);
+			}
+			return c;
+		}
+
+		@Override
+		void getTerm(int term, int[] counts, int numberOfTopics) {
+			Arrays.fill(counts, 0, numberOfTopics, 0);
+			int[] t = topics[term], c = this.counts[term];
+			for (int i = 0; i < size[term]; i++)
+				counts[t[i]] = c[i];
+		}
+
+		@Override
+		void addTopic(int topic) {
+		}
+
+		@Override
+		TopicTermCounts withVocabulary(int sizeOfVocabulary) {
+			Sparse grown = new Sparse(sizeOfVocabulary);
+			System.arraycopy(topics, 0, grown.topics, 0, this.sizeOfVocabulary);
+			System.arraycopy(counts, 0, grown.counts, 0, this.sizeOfVocabulary);
+			System.arraycopy(size, 0, grown.size, 0, this.sizeOfVocabulary);
+			return grown;
+		}
+
+		@Override
+		void relabel(int[] kOldToKNew, int numberOfTopics,
+				int newNumberOfTopics) {
+			for (int v = 0; v < sizeOfVocabulary; v++) {
+				int[] t = topics[v];
+				for (int i = 0; i < size[v]; i++)
+					t[i] = kOldToKNew[t[i]];
+			}
+		}
+
+		@Override
+		TopicTermCounts copy(TopicTermCounts replica, int numberOfTopics) {
+			Sparse copy = replica instanceof Sparse && replica != this
+					&& replica.sizeOfVocabulary == sizeOfVocabulary ? (Sparse) replica
+					: new Sparse(sizeOfVocabulary);
+			for (int v = 0; v < sizeOfVocabulary; v++)
+				copy.set(v, topics[v], counts[v], size[v]);
+			return copy;
+		}
+
+		private void set(int term, int[] t, int[] c, int n) {
+			if (topics[term].length < n) {
+				topics[term] = new int[n];
+				counts[term] = new int[n];
+			}
+			System.arraycopy(t, 0, topics[term], 0, n);
+			System.arraycopy(c, 0, counts[term], 0, n);
+			size[term] = n;
+		}
+
+		/** Each slice is an interleaved set of terms */
+		@Override
+		void merge(TopicTermCounts[] replicas, int numberOfReplicas,
+				int slice, int numberOfSlices, int numberOfTopics) {
+			int[] merged = new int[numberOfTopics];
+			int[] touched = new int[numberOfTopics];
+			int[] t = new int[numberOfTopics], c = new int[numberOfTopics];
+			boolean[] seen = new boolean[numberOfTopics];
+			for (int v = slice; v < sizeOfVocabulary; v += numberOfSlices) {
+				// sum of the replicas, minus all but one copy of the old counts
+				int n = 0;
+				for (int i = 0; i < size[v]; i++) {
+					int k = topics[v][i];
+					merged[k] -= (numberOfReplicas - 1) * counts[v][i];
+					seen[k] = true;
+					touched[n++] = k;
+				}
+				for (int w = 0; w < numberOfReplicas; w++) {
+					Sparse replica = (Sparse) replicas[w];
+					for (int i = 0; i < replica.size[v]; i++) {
+						int k = replica.topics[v][i];
+						merged[k] += replica.counts[v][i];
+						if (!seen[k]) {
+							seen[k] = true;
+							touched[n++] = k;
+						}
+					}
+				}
+				Arrays.sort(touched, 0, n);
+				int nonZero = 0;
+				for (int i = 0; i < n; i++) {
+					int k = touched[i];
+					if (merged[k] != 0) {
+						t[nonZero] = k;
+						c[nonZero++] = merged[k];
+					}
+					merged[k] = 0;
+					seen[k] = false;
+				}
+				set(v, t, c, nonZero);
+				for (int w = 0; w < numberOfReplicas; w++)
+					((Sparse) replicas[w]).set(v, t, c, nonZero);
+			}
+		}
+
+		@Override
+		void index(int numberOfTopics) {
+		}
+
+		@Override
+		void unindex() {
+		}
+
+		@Override
+		void reindex(int[] terms, int n, int numberOfTopics) {
+		}
+
+		@Override
+		boolean isIndexed() {
+			return true;
+		}
+
+		@Override
+		int[] topics(int term) {
+			return topics[term];
+		}
+
+		@Override
+		int size(int term) {
+			return size[term];
+		}
+
+		@Override
+		int countAt(int term, int i) {
+			return counts[term][i];
+		}
+	}
+}
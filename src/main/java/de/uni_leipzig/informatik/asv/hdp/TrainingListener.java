@@ -0,0 +1,20 @@
+/*
+ * Copyright 2011 Arnim Bleier, Andreas Niekler and Patrick Jaehnichen
+ * Licensed under the GNU Lesser General Public License.
+ * http://www.gnu.org/licenses/lgpl.html
+ */
+package de.uni_leipzig.informatik.asv.hdp;
+
+/**
+ * Receives the {@link TrainingMetrics} of every iteration of
+ * {@link HDPGibbsSampler#train}, see
+ * {@link HDPGibbsSampler#addTrainingListener(TrainingListener)}
+ */
+public interface TrainingListener {
+
+	/**
+	 * Called on a background thread, once per iteration and in order of the
+	 * iterations; all calls have returned when train() returns.
+	 */
+	void iterationCompleted(TrainingMetrics metrics);
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2011 Arnim Bleier, Andreas Niekler and Patrick Jaehnichen
+ * Licensed under the GNU Lesser General Public License.
+ * http://www.gnu.org/licenses/lgpl.html
+ */
+package de.uni_leipzig.informatik.asv.hdp;
+
+/**
+ * What a {@link TrainingListener} learns about one iteration of
+ * {@link HDPGibbsSampler#train}. The times per word are CPU time summed over
+ * the threads; the split between sampleTable and sampleTopic is estimated
+ * from a sample of the words.
+ */
+public class TrainingMetrics {
+
+	int iteration;
+	long elapsedMillis;
+	int numberOfWords;
+	long sweepNanos;
+	double sampleTableNanos, sampleTopicNanos, defragmentNanos;
+	int numberOfTopics, numberOfTables;
+	double alpha, gamma;
+	double logLikelihood;
+	double heldOutPerplexity = Double.NaN;
+
+	/** @return the iteration, counted from 0 */
+	public int getIteration() {
+		return iteration;
+	}
+
+	/** @return since train() started */
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	/** @return words sampled per second of the sweep, wall time */
+	public double getWordsPerSecond() {
+		return numberOfWords * 1e9 / sweepNanos;
+	}
+
+	/** @return ns per word spent removing it and drawing its table */
+	public double getSampleTableNanosPerWord() {
+		return sampleTableNanos / numberOfWords;
+	}
+
+	/** @return ns per word spent drawing the topics of new tables */
+	public double getSampleTopicNanosPerWord() {
+		return sampleTopicNanos / numberOfWords;
+	}
+
+	/**
+	 * @return ns per word spent compacting the free tables and topics after
+	 *         the sweep (and saving to a {@link MappedWordStore})
+	 */
+	public double getDefragmentNanosPerWord() {
+		return defragmentNanos / numberOfWords;
+	}
+
+	/** @return |K| after the iteration */
+	public int getNumberOfTopics() {
+		return numberOfTopics;
+	}
+
+	/** @return the number of occupied tables after the iteration */
+	public int getNumberOfTables() {
+		return numberOfTables;
+	}
+
+	public double getAlpha() {
+		return alpha;
+	}
+
+	public double getGamma() {
+		return gamma;
+	}
+
+	/** @return see {@link HDPGibbsSampler#logLikelihood()} */
+	public double getLogLikelihood() {
+		return logLikelihood;
+	}
+
+	/**
+	 * @return see {@link HDPModel#perplexity(int[][], int, java.util.Random)};
+	 *         NaN in the iterations without an evaluation
+	 */
+	public double getHeldOutPerplexity() {
+		return heldOutPerplexity;
+	}
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2011 Arnim Bleier, Andreas Niekler and Patrick Jaehnichen
+ * Licensed under the GNU Lesser General Public License.
+ * http://www.gnu.org/licenses/lgpl.html
+ */
+package de.uni_leipzig.informatik.asv.hdp;
+
+/** How and where a {@link HDPGibbsSampler#train} ended */
+public class TrainingResult {
+
+	public enum StopReason {
+		/** ran all maxIter iterations */
+		MAX_ITERATIONS,
+		/** stopped early, see {@link HDPGibbsSampler#setConvergence} */
+		CONVERGED
+	}
+
+	private final StopReason stopReason;
+	private final int iterations;
+
+	TrainingResult(StopReason stopReason, int iterations) {
+		this.stopReason = stopReason;
+		this.iterations = iterations;
+	}
+
+	public StopReason getStopReason() {
+		return stopReason;
+	}
+
+	/**
+	 * @return the number of completed iterations, counting those before a
+	 *         resume
+	 */
+	public int getIterations() {
+		return iterations;
+	}
+
+	@Override
+	public String toString() {
+		return stopReason + " after " + iterations + " iterations";
+	}
+}
@@ -0,0 +1,344 @@
+package de.uni_leipzig.informatik.asv.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads and writes corpora in a compact binary format, so that the text of an
+ * LDA-C corpus (see {@link CLDACorpus}) only has to be parsed once:
+ *
+ * <pre>
+ *  header:  magic "HDPC", version, flags, |D|, |V| (ints), |W|, tables (longs)
+ *  words:   the term ids of all documents, one after the other
+ *  tables:  the length of every document (|D| ints), and the offset of
+ *           every document in words (|D| + 1 longs, in bytes)
+ * </pre>
+ *
+ * Words are either plain ints or, with {@link #COMPRESSED}, the zig-zag
+ * encoded difference to the previous term of the document as a varint. All
+ * ints and longs are big-endian. The word order of the documents is kept.
+ */
+public class BinaryCorpus {
+
+	static final int MAGIC = 0x48445043; // HDPC
+	static final int VERSION = 1;
+	/** flag for varint/delta coded words */
+	public static final int COMPRESSED = 1;
+	static final int HEADER_SIZE = 4 * 5 + 8 * 2;
+
+	private int[][] documents;
+	private int vocabularySize;
+	private long numberOfWords;
+
+	/**
+	 * Loads a corpus in a single sequential pass over the file. The words are
+	 * copied into the documents with large reads, which is faster than
+	 * faulting in the pages of a mapping; for corpora larger than the heap use
+	 * a MappedWordStore instead.
+	 */
+	public BinaryCorpus(File file) throws IOException {
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			FileChannel channel = fis.getChannel();
+			Input in = new Input(channel);
+			if (in.readInt() != MAGIC)
+				throw new IOException(file + " is not a binary corpus");
+			if (in.readInt() != VERSION)
+				throw new IOException(file + " has an unsupported version");
+			int flags = in.readInt();
+			documents = new int[in.readInt()][];
+			vocabularySize = in.readInt();
+			numberOfWords = in.readLong();
+			long tables = in.readLong();
+
+			// the tables are at the end, read them first
+			ByteBuffer lengths = ByteBuffer.allocate(documents.length * 4);
+			while (lengths.hasRemaining())
+				if (channel.read(lengths, tables + lengths.position()) < 0)
+					throw new IOException(file + " is truncated");
+			lengths.flip();
+			for (int d = 0; d < documents.length; d++)
+				documents[d] = new int[lengths.getInt()];
+
+			for (int d = 0; d < documents.length; d++) {
+				int[] doc = documents[d];
+				if ((flags & COMPRESSED) == 0)
+					in.readInts(doc);
+				else
+					for (int i = 0, term = 0; i < doc.length; i++) {
+						int zigzag = in.readVarint();
+						term += (zigzag >>> 1) ^ -(zigzag & 1);
+						doc[i] = term;
+					}
+			}
+		} finally {
+			fis.close();
+		}
+	}
+
+	/** @return |D| x |V| matrix of the documents */
+	public int[][] getDocuments() {
+		return documents;
+	}
+
+	/** @return |V| */
+	public int getVocabularySize() {
+		return vocabularySize;
+	}
+
+	/** @return |W| */
+	public long getNumberOfWords() {
+		return numberOfWords;
+	}
+
+	/**
+	 * Writes a corpus
+	 *
+	 * @param flags
+	 *            0 or {@link #COMPRESSED}
+	 */
+	public static void write(int[][] documents, int vocabularySize,
+			File file, int flags) throws IOException {
+		Writer writer = new Writer(file, flags);
+		boolean complete = false;
+		try {
+			for (int[] doc : documents)
+				writer.add(doc, doc.length);
+			writer.close(vocabularySize);
+			complete = true;
+		} finally {
+			if (!complete)
+				writer.discard();
+		}
+	}
+
+	/** Writes a corpus read with {@link CLDACorpus} */
+	public static void write(CLDACorpus corpus, File file, int flags)
+			throws IOException {
+		write(corpus.getDocuments(), corpus.getVocabularySize(), file, flags);
+	}
+
+	/**
+	 * Converts a corpus in LDA-C format, streaming it without holding all
+	 * documents in memory
+	 * 
+	 * @return the parser, with the number of malformed lines it skipped
+	 */
+	public static CLDAParser convert(InputStream is, File file, int flags)
+			throws IOException {
+		CLDAParser parser = new CLDAParser(Channels.newChannel(is));
+		Writer writer = new Writer(file, flags);
+		int vocabularySize = 0;
+		int[] words = new int[16];
+		boolean complete = false;
+		try {
+			while (parser.next()) {
+				if (words.length < parser.getLength())
+					words = new int[parser.getLength()];
+				int[] terms = parser.getTerms(), counts = parser.getCounts();
+				for (int n = 0, i = 0; n < parser.getNumberOfTerms(); n++) {
+					Arrays.fill(words, i, i + counts[n], terms[n]);
+					i += counts[n];
+					if (terms[n] >= vocabularySize)
+						vocabularySize = terms[n] + 1;
+				}
+				writer.add(words, parser.getLength());
+			}
+			writer.close(vocabularySize);
+			complete = true;
+		} finally {
+			if (!complete)
+				writer.discard();
+		}
+		return parser;
+	}
+
+	/** Converts an LDA-C corpus: input.lda-c output [compressed] */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("usage: BinaryCorpus input.lda-c output "
+					+ "[compressed]");
+			System.exit(1);
+		}
+		long start = System.currentTimeMillis();
+		FileInputStream is = new FileInputStream(args[0]);
+		try {
+			CLDAParser parser = convert(is, new File(args[1]),
+					args.length > 2 && args[2].equals("compressed") ? COMPRESSED
+							: 0);
+			CLDAParser.reportMalformedLines(System.err,
+					parser.getNumberOfMalformedLines(),
+					parser.getFirstMalformedLine());
+		} finally {
+			is.close();
+		}
+		System.out.println("converted in "
+				+ (System.currentTimeMillis() - start) + "ms");
+	}
+
+	/**
+	 * Writes the words, collects the tables, then patches the header. All of
+	 * it goes to a temporary file, which is only moved in place once complete.
+	 */
+	private static class Writer {
+
+		private final File file, tmp;
+		private final int flags;
+		private final DataOutputStream out;
+		private long position = 0, numberOfWords = 0;
+		private int numberOfDocuments = 0;
+		private int[] lengths = new int[1024];
+		private long[] offsets = new long[1025];
+
+		Writer(File file, int flags) throws IOException {
+			this.file = file;
+			this.flags = flags;
+			tmp = new File(file.getPath() + ".tmp");
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tmp), 1 << 16));
+			out.write(new byte[HEADER_SIZE]);
+		}
+
+		void add(int[] words, int length) throws IOException {
+			if (numberOfDocuments == lengths.length) {
+				lengths = Arrays.copyOf(lengths, lengths.length * 2);
+				offsets = Arrays.copyOf(offsets, lengths.length + 1);
+			}
+			lengths[numberOfDocuments] = length;
+			if ((flags & COMPRESSED) == 0) {
+				for (int i = 0; i < length; i++)
+					out.writeInt(words[i]);
+				position += 4L * length;
+			} else
+				for (int i = 0, term = 0; i < length; i++) {
+					int delta = words[i] - term;
+					writeVarint((delta << 1) ^ (delta >> 31));
+					term = words[i];
+				}
+			numberOfWords += length;
+			offsets[++numberOfDocuments] = position;
+		}
+
+		private void writeVarint(int value) throws IOException {
+			while ((value & ~0x7f) != 0) {
+				out.write((value & 0x7f) | 0x80);
+				value >>>= 7;
+				position++;
+			}
+			out.write(value);
+			position++;
+		}
+
+		/** Closes the file without moving it in place, after an error */
+		void discard() throws IOException {
+			try {
+				out.close();
+			} finally {
+				tmp.delete();
+			}
+		}
+
+		/** Writes the tables and the header and moves the file in place */
+		void close(int vocabularySize) throws IOException {
+			long tables = HEADER_SIZE + position;
+			try {
+				for (int d = 0; d < numberOfDocuments; d++)
+					out.writeInt(lengths[d]);
+				for (int d = 0; d <= numberOfDocuments; d++)
+					out.writeLong(offsets[d]);
+			} finally {
+				out.close();
+			}
+			RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+			try {
+				raf.writeInt(MAGIC);
+				raf.writeInt(VERSION);
+				raf.writeInt(flags);
+				raf.writeInt(numberOfDocuments);
+				raf.writeInt(vocabularySize);
+				raf.writeLong(numberOfWords);
+				raf.writeLong(tables);
+			} finally {
+				raf.close();
+			}
+			if (!tmp.renameTo(file)) { // not atomic on all platforms
+				file.delete();
+				if (!tmp.renameTo(file))
+					throw new IOException("could not write " + file);
+			}
+		}
+	}
+
+	/** Sequential, buffered reads from a channel */
+	private static class Input {
+
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+		private long position;
+
+		Input(FileChannel channel) {
+			this.channel = channel;
+			buffer.flip();
+		}
+
+		/** Makes at least n bytes available */
+		private void require(int n) throws IOException {
+			if (buffer.remaining() >= n)
+				return;
+			buffer.compact();
+			while (buffer.position() < n) {
+				int read = channel.read(buffer, position);
+				if (read < 0)
+					throw new IOException("unexpected end of file");
+				position += read;
+			}
+			buffer.flip();
+		}
+
+		int readInt() throws IOException {
+			require(4);
+			return buffer.getInt();
+		}
+
+		long readLong() throws IOException {
+			require(8);
+			return buffer.getLong();
+		}
+
+		void readInts(int[] values) throws IOException {
+			for (int i = 0; i < values.length;) {
+				require(4);
+				IntBuffer ints = buffer.asIntBuffer();
+				int n = Math.min(ints.remaining(), values.length - i);
+				ints.get(values, i, n);
+				buffer.position(buffer.position() + 4 * n);
+				i += n;
+			}
+		}
+
+		/** Reads at most 5 bytes, the most an int can take */
+		int readVarint() throws IOException {
+			int value = 0;
+			for (int shift = 0; shift < 35; shift += 7) {
+				require(1);
+				byte b = buffer.get();
+				value |= (b & 0x7f) << shift;
+				if (b >= 0)
+					return value;
+			}
+			throw new IOException("corrupt varint at " + (position
+					- buffer.remaining()));
+		}
+	}
+}
@@ -1,27 +1,39 @@
 package de.uni_leipzig.informatik.asv.utils;
 
-import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Reads a corpus in LDA-C format:
- * 
+ *
  * <pre>
  *  [M] [term_1]:[count] [term_2]:[count] ...  [term_N]:[count]
  * </pre>
- * 
+ *
  * where [M] is the number of unique terms in the document, and the [count]
  * associated with each term is how many times that term appeared in the
  * document.
+ *
+ * Malformed lines are skipped and counted.
  */
 public class CLDACorpus {
 
 	private int[][] documents;
 	private int vocabularySize = 0;
+	private int numberOfMalformedLines = 0, firstMalformedLine = 0;
 
 	/**
 	 * Reads all documents from a corpus
@@ -32,43 +44,66 @@ public class CLDACorpus {
 
 	/**
 	 * Reads up to
-	 * 
+	 *
 	 * @param nrDocs
 	 *            documents.
 	 */
 	public CLDACorpus(InputStream is, int nrDocs) throws IOException {
-		int length, word, counts;
-		List<List<Integer>> docList = new ArrayList<List<Integer>>();
-		List<Integer> doc;
-		BufferedReader br = new BufferedReader(new InputStreamReader(is,
-				"UTF-8"));
-		String line = null;
-		while ((line = br.readLine()) != null && docList.size() < nrDocs) {
-			try {
-				doc = new ArrayList<Integer>();
-				String[] fields = line.split(" ");
-				length = Integer.parseInt(fields[0]);
-				for (int n = 0; n < length; n++) {
-					String[] wordCounts = fields[n + 1].split(":");
-					word = Integer.parseInt(wordCounts[0]);
-					counts = Integer.parseInt(wordCounts[1]);
-					for (int i = 0; i < counts; i++)
-						doc.add(word);
-					if (word >= vocabularySize)
-						vocabularySize = word + 1;
-				}
-				docList.add(doc);
-			} catch (Exception e) {
-				System.err.println(e.getMessage() + "\n");
+		CLDAParser parser = new CLDAParser(Channels.newChannel(is));
+		Documents docs = new Documents();
+		while (docs.size < nrDocs && parser.next())
+			docs.add(parser);
+		documents = docs.toArray();
+		vocabularySize = docs.vocabularySize;
+		numberOfMalformedLines = parser.getNumberOfMalformedLines();
+		firstMalformedLine = parser.getFirstMalformedLine();
+	}
+
+	/**
+	 * Reads all documents from a corpus file, parsing it in parallel: the file
+	 * is split at line boundaries into one range per thread.
+	 */
+	public CLDACorpus(File file, int numberOfThreads) throws IOException {
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			final FileChannel channel = fis.getChannel();
+			final long[] bounds = split(channel, numberOfThreads);
+			ExecutorService executor = Executors
+					.newFixedThreadPool(numberOfThreads);
+			List<Future<Documents>> results = new ArrayList<Future<Documents>>();
+			for (int i = 0; i < numberOfThreads; i++) {
+				final int range = i;
+				results.add(executor.submit(new Callable<Documents>() {
+					public Documents call() throws IOException {
+						CLDAParser parser = new CLDAParser(channel,
+								bounds[range], bounds[range + 1]);
+						Documents docs = new Documents();
+						while (parser.next())
+							docs.add(parser);
+						docs.parser = parser;
+						return docs;
+					}
+				}));
 			}
-		}
-		documents = new int[docList.size()][];
-		for (int j = 0; j < docList.size(); j++) {
-			doc = docList.get(j);
-			documents[j] = new int[doc.size()];
-			for (int i = 0; i < doc.size(); i++) {
-				documents[j][i] = doc.get(i);
+			executor.shutdown();
+
+			List<int[]> all = new ArrayList<int[]>();
+			int lines = 0;
+			for (Future<Documents> result : results) {
+				Documents docs = get(result);
+				all.addAll(Arrays.asList(docs.toArray()));
+				vocabularySize = Math.max(vocabularySize, docs.vocabularySize);
+				numberOfMalformedLines += docs.parser
+						.getNumberOfMalformedLines();
+				if (firstMalformedLine == 0
+						&& docs.parser.getFirstMalformedLine() > 0)
+					firstMalformedLine = lines
+							+ docs.parser.getFirstMalformedLine();
+				lines += docs.parser.getLineNumber();
 			}
+			documents = all.toArray(new int[all.size()][]);
+		} finally {
+			fis.close();
 		}
 	}
 
@@ -81,4 +116,87 @@ public class CLDACorpus {
 	public int getVocabularySize() {
 		return vocabularySize;
 	}
+
+	/** @return the number of lines that were skipped */
+	public int getNumberOfMalformedLines() {
+		return numberOfMalformedLines;
+	}
+
+	/** @return the number of the first line that was skipped, or 0 */
+	public int getFirstMalformedLine() {
+		return firstMalformedLine;
+	}
+
+	/** @return numberOfThreads + 1 offsets, each at the start of a line */
+	private static long[] split(FileChannel channel, int numberOfThreads)
+			throws IOException {
+		long size = channel.size();
+		long[] bounds = new long[numberOfThreads + 1];
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		for (int i = 1; i < numberOfThreads; i++) {
+			long position = Math.max(bounds[i - 1], size * i / numberOfThreads);
+			bounds[i] = size;
+			search: while (position < size) {
+				buffer.clear();
+				int n = channel.read(buffer, position);
+				if (n <= 0)
+					break;
+				for (int j = 0; j < n; j++)
+					if (buffer.get(j) == '\n') {
+						bounds[i] = position + j + 1;
+						break search;
+					}
+				position += n;
+			}
+		}
+		bounds[numberOfThreads] = size;
+		return bounds;
+	}
+
+	private static Documents get(Future<Documents> result) throws IOException {
+		try {
+			return result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/** Words of all documents appended to one growable array */
+	private static class Documents {
+
+		int[] words = new int[1 << 12];
+		int[] offsets = new int[1 << 8];
+		int size, vocabularySize;
+		CLDAParser parser;
+
+		void add(CLDAParser parser) {
+			int offset = offsets[size];
+			if (words.length - offset < parser.getLength())
+				words = Arrays.copyOf(words, Math.max(words.length * 2, offset
+						+ parser.getLength()));
+			int[] terms = parser.getTerms(), counts = parser.getCounts();
+			for (int n = 0; n < parser.getNumberOfTerms(); n++) {
+				Arrays.fill(words, offset, offset + counts[n], terms[n]);
+				offset += counts[n];
+				if (terms[n] >= vocabularySize)
+					vocabularySize = terms[n] + 1;
+			}
+			if (++size == offsets.length)
+				offsets = Arrays.copyOf(offsets, offsets.length * 2);
+			offsets[size] = offset;
+		}
+
+		int[][] toArray() {
+			int[][] documents = new int[size][];
+			for (int d = 0; d < size; d++)
+				documents[d] = Arrays.copyOfRange(words, offsets[d],
+						offsets[d + 1]);
+			return documents;
+		}
+	}
 }
@@ -0,0 +1,212 @@
+package de.uni_leipzig.informatik.asv.utils;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Streaming parser for corpora in LDA-C format (see {@link CLDACorpus}). Reads
+ * bytes from a channel and parses the integers directly, without creating a
+ * String per line or per field. Malformed lines are skipped and counted.
+ *
+ * <pre>
+ * CLDAParser parser = new CLDAParser(channel);
+ * while (parser.next())
+ * 	for (int i = 0; i &lt; parser.getNumberOfTerms(); i++)
+ * 		use(parser.getTerms()[i], parser.getCounts()[i]);
+ * </pre>
+ */
+public class CLDAParser {
+
+	private final ReadableByteChannel channel;
+	/** for reading a range of a file, else null */
+	private final FileChannel fileChannel;
+	private long position, end;
+	private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+	/** the current byte, or -1 at the end of the input */
+	private int c;
+
+	private int[] terms = new int[16], counts = new int[16];
+	private int numberOfTerms, length;
+	private int lineNumber, numberOfMalformedLines, firstMalformedLine;
+
+	/** Parses everything the channel provides */
+	public CLDAParser(ReadableByteChannel channel) throws IOException {
+		this.channel = channel;
+		this.fileChannel = null;
+		buffer.flip();
+		c = read();
+	}
+
+	/**
+	 * Parses the lines of a file from byte start (inclusive) to end
+	 * (exclusive); both should be at the beginning of a line.
+	 */
+	public CLDAParser(FileChannel channel, long start, long end)
+			throws IOException {
+		this.channel = channel;
+		this.fileChannel = channel;
+		this.position = start;
+		this.end = end;
+		buffer.flip();
+		c = read();
+	}
+
+	/**
+	 * Parses the next well-formed document, skipping malformed lines
+	 *
+	 * @return false at the end of the input
+	 */
+	public boolean next() throws IOException {
+		while (c != -1) {
+			lineNumber++;
+			if (parseLine())
+				return true;
+			numberOfMalformedLines++;
+			if (firstMalformedLine == 0)
+				firstMalformedLine = lineNumber;
+			while (c != '\n' && c != -1)
+				c = read();
+			if (c == '\n')
+				c = read();
+		}
+		return false;
+	}
+
+	/** @return the distinct terms of the document */
+	public int[] getTerms() {
+		return terms;
+	}
+
+	/** @return how often each of {@link #getTerms()} occurs */
+	public int[] getCounts() {
+		return counts;
+	}
+
+	/** @return [M], the number of valid entries in getTerms() and getCounts() */
+	public int getNumberOfTerms() {
+		return numberOfTerms;
+	}
+
+	/** @return the number of words in the document, the sum of the counts */
+	public int getLength() {
+		return length;
+	}
+
+	/** @return the number of lines read so far */
+	public int getLineNumber() {
+		return lineNumber;
+	}
+
+	/** @return the number of lines skipped because they were malformed */
+	public int getNumberOfMalformedLines() {
+		return numberOfMalformedLines;
+	}
+
+	/**
+	 * Reports skipped lines, for the command-line tools; the library only
+	 * counts them
+	 */
+	public static void reportMalformedLines(PrintStream out,
+			int numberOfMalformedLines, int firstMalformedLine) {
+		if (numberOfMalformedLines > 0)
+			out.println("skipped " + numberOfMalformedLines
+					+ " malformed line(s), the first is line "
+					+ firstMalformedLine);
+	}
+
+	/** @return the number of the first malformed line, or 0 */
+	public int getFirstMalformedLine() {
+		return firstMalformedLine;
+	}
+
+	/**
+	 * Parses [M] [term_1]:[count] ... [term_M]:[count]; further entries are
+	 * ignored.
+	 *
+	 * @return false if the line is malformed, with c somewhere in it
+	 */
+	private boolean parseLine() throws IOException {
+		skipBlanks();
+		int m = parseInt();
+		if (m < 0)
+			return false;
+		length = 0;
+		for (int i = 0; i < m; i++) {
+			ensureCapacity(i);
+			skipBlanks();
+			terms[i] = parseInt();
+			if (terms[i] < 0 || c != ':')
+				return false;
+			c = read();
+			counts[i] = parseInt();
+			if (counts[i] < 0)
+				return false;
+			length += counts[i];
+			if (length < 0) // overflow
+				return false;
+		}
+		numberOfTerms = m;
+		while (c != '\n' && c != -1)
+			c = read();
+		if (c == '\n')
+			c = read();
+		return true;
+	}
+
+	/**
+	 * Grows the arrays as entries are parsed, not to the [M] of the line, which
+	 * may be wrong
+	 */
+	private void ensureCapacity(int i) {
+		if (i == terms.length) {
+			int capacity = Math.max(terms.length * 2, 16);
+			terms = Arrays.copyOf(terms, capacity);
+			counts = Arrays.copyOf(counts, capacity);
+		}
+	}
+
+	private void skipBlanks() throws IOException {
+		while (c == ' ' || c == '\t' || c == '\r')
+			c = read();
+	}
+
+	/** @return the non-negative integer at c, or -1 if there is none */
+	private int parseInt() throws IOException {
+		if (c < '0' || c > '9')
+			return -1;
+		long value = 0;
+		do {
+			value = value * 10 + (c - '0');
+			if (value > Integer.MAX_VALUE)
+				return -1;
+			c = read();
+		} while (c >= '0' && c <= '9');
+		return (int) value;
+	}
+
+	private int read() throws IOException {
+		if (!buffer.hasRemaining()) {
+			buffer.clear();
+			int n;
+			if (fileChannel == null)
+				n = channel.read(buffer);
+			else {
+				if (position >= end)
+					return -1;
+				if (end - position < buffer.capacity())
+					buffer.limit((int) (end - position));
+				n = fileChannel.read(buffer, position);
+				if (n > 0)
+					position += n;
+			}
+			buffer.flip();
+			if (n <= 0)
+				return -1;
+		}
+		return buffer.get() & 0xff;
+	}
+}
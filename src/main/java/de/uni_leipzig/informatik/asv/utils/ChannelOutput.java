@@ -0,0 +1,122 @@
+package de.uni_leipzig.informatik.asv.utils;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Buffered writes to a file through a {@link FileChannel}, of big-endian ints
+ * and of ASCII text. Numbers are formatted straight into the buffer, without
+ * the strings of {@link java.io.PrintStream#format}. The file is written
+ * under a temporary name and only replaces an older one once closed.
+ */
+class ChannelOutput {
+
+	/** ends the lines, like {@link java.io.PrintStream#println()} */
+	private static final String LINE_SEPARATOR = System
+			.getProperty("line.separator");
+
+	private final File file, tmp;
+	private final FileOutputStream stream;
+	private final FileChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+	private final byte[] digits = new byte[20];
+
+	ChannelOutput(File file) throws FileNotFoundException {
+		this.file = file;
+		tmp = new File(file.getPath() + ".tmp");
+		stream = new FileOutputStream(tmp);
+		channel = stream.getChannel();
+	}
+
+	/** Makes room for n bytes */
+	private void require(int n) throws IOException {
+		if (buffer.remaining() < n)
+			flush();
+	}
+
+	private void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	void writeInt(int value) throws IOException {
+		require(4);
+		buffer.putInt(value);
+	}
+
+	/** Writes an ASCII character */
+	void write(char c) throws IOException {
+		require(1);
+		buffer.put((byte) c);
+	}
+
+	/** Writes an ASCII string */
+	void write(String s) throws IOException {
+		for (int i = 0; i < s.length(); i++)
+			write(s.charAt(i));
+	}
+
+	/** Ends a line with the platform's line separator */
+	void newLine() throws IOException {
+		write(LINE_SEPARATOR);
+	}
+
+	/**
+	 * Writes a number in decimal
+	 *
+	 * @param width
+	 *            minimum number of digits, padded with zeros
+	 */
+	void writeDecimal(long value, int width) throws IOException {
+		if (value < 0) {
+			write('-');
+			value = -value;
+		}
+		int n = 0;
+		do {
+			digits[n++] = (byte) ('0' + value % 10);
+			value /= 10;
+		} while (value != 0);
+		require(Math.max(n, width));
+		for (int i = n; i < width; i++)
+			buffer.put((byte) '0');
+		while (n > 0)
+			buffer.put(digits[--n]);
+	}
+
+	/** Closes the file without moving it in place, after an error */
+	void discard() throws IOException {
+		stream.close();
+		tmp.delete();
+	}
+
+	/**
+	 * Writes the rest of the buffer and moves the file in place; if either
+	 * fails, the temporary file is deleted
+	 */
+	void close() throws IOException {
+		boolean complete = false;
+		try {
+			try {
+				flush();
+			} finally {
+				stream.close();
+			}
+			if (!tmp.renameTo(file)) { // not atomic on all platforms
+				file.delete();
+				if (!tmp.renameTo(file))
+					throw new IOException("could not write " + file);
+			}
+			complete = true;
+		} finally {
+			if (!complete)
+				tmp.delete();
+		}
+	}
+}
@@ -6,28 +6,139 @@
 
 package de.uni_leipzig.informatik.asv.utils;
 
+import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.PrintStream;
+import java.io.IOException;
 
 /**
+ * Writes the word counts of the topics, one topic after the other:
+ *
+ * <pre>
+ * TopicsWriter writer = new TopicsWriter(file, Format.SPARSE);
+ * writer.open(K, V);
+ * for (int k = 0; k &lt; K; k++)
+ * 	writer.writeTopic(countsByTerm[k]);
+ * writer.close();
+ * </pre>
+ *
  * @author <a href="mailto:arnim.bleier+hdp@gmail.com">Arnim Bleier</a>
  */
 public class TopicsWriter {
 
+	public enum Format {
+		/** a line of |V| counts per topic, zero-padded to five digits */
+		TEXT,
+		/** a line per topic of term:count pairs, for the non-zero counts */
+		SPARSE,
+		/**
+		 * magic "HDPT", version, K, |V|, then per topic the number of
+		 * non-zero counts and their term, count pairs; big-endian ints
+		 */
+		BINARY
+	}
+
+	static final int MAGIC = 0x48445054; // HDPT
+	static final int VERSION = 1;
+
 	private String outFileStr;
+	private final Format format;
+	private ChannelOutput out;
+	private int sizeOfVocabulary;
 
+	/** @param workingDir the file to write, in {@link Format#TEXT} */
 	public TopicsWriter(String workingDir) {
-		this.outFileStr = workingDir;
+		this(workingDir, Format.TEXT);
 	}
 
+	public TopicsWriter(String file, Format format) {
+		this.outFileStr = file;
+		this.format = format;
+	}
+
+	/**
+	 * Writes all topics at once
+	 * 
+	 * @throws FileNotFoundException
+	 *             if the file cannot be created
+	 * @throws IllegalStateException
+	 *             if it cannot be written
+	 */
 	public void writeWordCountByTopicAndTerm(int[][] wordCountByTopicAndTerm,
 			int K, int V) throws FileNotFoundException {
-		PrintStream file = new PrintStream(outFileStr);
-		for (int k = 0; k < K; k++) {
+		try {
+			open(K, V);
+			for (int k = 0; k < K; k++)
+				writeTopic(wordCountByTopicAndTerm[k]);
+			close();
+		} catch (FileNotFoundException e) {
+			throw e;
+		} catch (IOException e) {
+			// null if close() failed, which has cleaned up already
+			ChannelOutput out = this.out;
+			this.out = null;
+			if (out != null)
+				try {
+					out.discard();
+				} catch (IOException ignored) {
+				}
+			throw new IllegalStateException("could not write " + outFileStr, e);
+		}
+	}
+
+	/** Starts a file of K topics over a vocabulary of size V */
+	public void open(int K, int V) throws IOException {
+		if (out != null)
+			throw new IllegalStateException("close() the previous file first");
+		out = new ChannelOutput(new File(outFileStr));
+		sizeOfVocabulary = V;
+		if (format == Format.BINARY) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(K);
+			out.writeInt(V);
+		}
+	}
+
+	/** @param countsByTerm |V|; of the next topic */
+	public void writeTopic(int[] countsByTerm) throws IOException {
+		int V = sizeOfVocabulary;
+		switch (format) {
+		case TEXT:
+			for (int w = 0; w < V; w++) {
+				out.writeDecimal(countsByTerm[w], 5);
+				out.write(' ');
+			}
+			out.newLine();
+			break;
+		case SPARSE:
+			for (int w = 0, n = 0; w < V; w++)
+				if (countsByTerm[w] != 0) {
+					if (n++ > 0)
+						out.write(' ');
+					out.writeDecimal(w, 0);
+					out.write(':');
+					out.writeDecimal(countsByTerm[w], 0);
+				}
+			out.newLine();
+			break;
+		case BINARY:
+			int nonZero = 0;
 			for (int w = 0; w < V; w++)
-				file.format("%05d ", wordCountByTopicAndTerm[k][w]);
-			file.println();
+				if (countsByTerm[w] != 0)
+					nonZero++;
+			out.writeInt(nonZero);
+			for (int w = 0; w < V; w++)
+				if (countsByTerm[w] != 0) {
+					out.writeInt(w);
+					out.writeInt(countsByTerm[w]);
+				}
 		}
-		file.close();
+	}
+
+	/** Completes the file */
+	public void close() throws IOException {
+		ChannelOutput out = this.out;
+		this.out = null;
+		out.close();
 	}
 }
@@ -6,35 +6,105 @@
 
 package de.uni_leipzig.informatik.asv.utils;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.PrintStream;
 
 /**
+ * Writes the document, term, topic and table of every word
+ *
  * @author <a href="mailto:arnim.bleier+hdp@gmail.com">Arnim Bleier</a>
  */
 public class WordAssignmentsWriter {
 
+	public enum Format {
+		/** a header line "d w z t", then a line per word */
+		TEXT,
+		/**
+		 * magic "HDPA", version, then four big-endian ints per word: d, w,
+		 * z, t
+		 */
+		BINARY
+	}
+
+	static final int MAGIC = 0x48445041; // HDPA
+	static final int VERSION = 1;
+
 	private String workioutFileStr;
-	private PrintStream file = null;
+	private final Format format;
+	private ChannelOutput file = null;
+	/** the first error of {@link #writeAssignment}, or null */
+	private IOException error;
 
+	/** @param workingDir the file to write, in {@link Format#TEXT} */
 	public WordAssignmentsWriter(String workingDir) {
-		this.workioutFileStr = workingDir;
+		this(workingDir, Format.TEXT);
+	}
+
+	public WordAssignmentsWriter(String file, Format format) {
+		this.workioutFileStr = file;
+		this.format = format;
 	}
 
+	/**
+	 * Like the PrintStream this used to write to, does not throw: an error is
+	 * kept and thrown by {@link #closeIteration()}
+	 */
 	public void writeAssignment(int docID, int term, int topic, int table) {
-		file.println(docID + " " + term + " " + topic + " " + table);
+		if (error != null)
+			return;
+		try {
+			if (format == Format.BINARY) {
+				file.writeInt(docID);
+				file.writeInt(term);
+				file.writeInt(topic);
+				file.writeInt(table);
+			} else {
+				file.writeDecimal(docID, 0);
+				file.write(' ');
+				file.writeDecimal(term, 0);
+				file.write(' ');
+				file.writeDecimal(topic, 0);
+				file.write(' ');
+				file.writeDecimal(table, 0);
+				file.newLine();
+			}
+		} catch (IOException e) {
+			error = e;
+		}
 	}
 
 	public void openForIteration() throws IOException {
 		if (file != null)
 			file.close(); // throw new
 							// IOException("closeIteration() must be called before opening an new iteration");
-		this.file = new PrintStream(workioutFileStr);
-		file.println("d w z t");
+		this.file = new ChannelOutput(new File(workioutFileStr));
+		error = null;
+		if (format == Format.BINARY) {
+			file.writeInt(MAGIC);
+			file.writeInt(VERSION);
+		} else {
+			file.write("d w z t");
+			file.newLine();
+		}
 	}
 
+	/**
+	 * Completes the file
+	 * 
+	 * @throws IOException
+	 *             also if an assignment could not be written, then the file
+	 *             is not replaced
+	 */
 	public void closeIteration() throws IOException {
-		file.close();
-		file = null;
+		ChannelOutput file = this.file;
+		IOException error = this.error;
+		this.file = null;
+		this.error = null;
+		if (error == null)
+			file.close();
+		else {
+			file.discard();
+			throw error;
+		}
 	}
 }
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2011 Arnim Bleier, Andreas Niekler and Patrick Jaehnichen
+ * Licensed under the GNU Lesser General Public License.
+ * http://www.gnu.org/licenses/lgpl.html
+ */
+package de.uni_leipzig.informatik.asv.hdp;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link FKernel} on the widest double vectors of the CPU, the int counts
+ * widened lane by lane. Sums in another order than the scalar loop, so the
+ * draws are the same only up to rounding, which differs between CPUs of
+ * different vector widths. Loaded by {@link FKernel#create()} if enabled.
+ */
+final class VectorFKernel extends FKernel {
+
+	private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+	/** as many ints as DOUBLES has lanes */
+	private static final VectorSpecies<Integer> INTS = VectorSpecies.of(
+			int.class, VectorShape.forBitSize(DOUBLES.vectorBitSize() / 2));
+
+	@Override
+	double f(double fNew, int[] termCounts, int offset, int[] wordCountByTopic,
+			int[] numberOfTablesByTopic, double beta, double vb, double[] f,
+			int numberOfTopics) {
+		int ki = 0;
+		int upperBound = DOUBLES.loopBound(numberOfTopics);
+		if (upperBound > 0) {
+			DoubleVector sum = DoubleVector.zero(DOUBLES);
+			for (; ki < upperBound; ki += DOUBLES.length()) {
+				DoubleVector fk = widen(termCounts, offset + ki).add(beta).div(
+						widen(wordCountByTopic, ki).add(vb));
+				fk.intoArray(f, ki);
+				sum = widen(numberOfTablesByTopic, ki).fma(fk, sum);
+			}
+			fNew += sum.reduceLanes(VectorOperators.ADD);
+		}
+		for (; ki < numberOfTopics; ki++) {
+			f[ki] = (termCounts[offset + ki] + beta)
+					/ (wordCountByTopic[ki] + vb);
+			fNew += numberOfTablesByTopic[ki] * f[ki];
+		}
+		return fNew;
+	}
+
+	private static DoubleVector widen(int[] a, int offset) {
+		return (DoubleVector) IntVector.fromArray(INTS, a, offset)
+				.convertShape(VectorOperators.I2D, DOUBLES, 0);
+	}
+}
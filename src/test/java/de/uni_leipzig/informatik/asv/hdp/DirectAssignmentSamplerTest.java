@@ -0,0 +1,96 @@
+package de.uni_leipzig.informatik.asv.hdp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.uni_leipzig.informatik.asv.utils.CLDACorpus;
+import de.uni_leipzig.informatik.asv.utils.WordAssignmentsWriter;
+
+public class DirectAssignmentSamplerTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * After every sweep the counts must match the words' topics, every topic
+	 * must have words, and the stick weights must sum to one
+	 */
+	@Test
+	public void testCountsMatchAssignments() throws Exception {
+		CLDACorpus corpus = new CLDACorpus(
+				CLDACorpus.class.getResourceAsStream("corpus2.lda-c"));
+		DirectAssignmentSampler hdp = new DirectAssignmentSampler(42);
+		hdp.addInstances(corpus.getDocuments(), corpus.getVocabularySize());
+		int V = corpus.getVocabularySize();
+		for (int iter = 0; iter < 20; iter++) {
+			if (iter % 5 == 0)
+				hdp.shuffle();
+			hdp.sweep();
+			int K = hdp.numberOfTopics;
+			int[] byTopic = new int[K];
+			int[][] byTopicAndTerm = new int[K][V];
+			for (int i = 0; i < hdp.topics.length; i++) {
+				byTopic[hdp.topics[i]]++;
+				byTopicAndTerm[hdp.topics[i]][hdp.terms[i]]++;
+			}
+			double sticks = hdp.newStick;
+			for (int k = 0; k < K; k++) {
+				assertTrue(byTopic[k] > 0);
+				assertEquals(byTopic[k], hdp.wordCountByTopic[k]);
+				for (int v = 0; v < V; v++)
+					assertEquals(byTopicAndTerm[k][v],
+							hdp.wordCountByTopicAndTerm.get(k, v));
+				sticks += hdp.stick[k];
+			}
+			assertEquals(1.0, sticks, 1e-9);
+			assertTrue(hdp.getTotalNumberOfTables() >= K);
+		}
+	}
+
+	/**
+	 * Both engines sample the same posterior, so after burn-in they must
+	 * average about as many tables
+	 */
+	@Test
+	public void testConvergesLikeCRF() throws Exception {
+		double crf = averageNumberOfTables(new HDPGibbsSampler(42));
+		double directAssignment = averageNumberOfTables(new DirectAssignmentSampler(
+				42));
+		assertEquals(crf, directAssignment, 0.25 * crf);
+	}
+
+	static double averageNumberOfTables(HDPSampler hdp) throws Exception {
+		CLDACorpus corpus = new CLDACorpus(
+				CLDACorpus.class.getResourceAsStream("corpus2.lda-c"));
+		hdp.addInstances(corpus.getDocuments(), corpus.getVocabularySize());
+		PrintStream log = new PrintStream(new ByteArrayOutputStream());
+		double sum = 0.0;
+		for (int iter = 0; iter < HDPGibbsSamplerTest.ITERATIONS; iter++) {
+			hdp.train(0, 1, log);
+			if (iter >= HDPGibbsSamplerTest.BURN_IN)
+				sum += hdp.getTotalNumberOfTables();
+		}
+		return sum
+				/ (HDPGibbsSamplerTest.ITERATIONS - HDPGibbsSamplerTest.BURN_IN);
+	}
+
+	@Test
+	public void testWordAssignments() throws Exception {
+		DirectAssignmentSampler hdp = new DirectAssignmentSampler(42);
+		hdp.addInstances(new int[][] { { 0, 1 }, { 2 } }, 3);
+		File file = folder.newFile();
+		hdp.writeWordAssignments(new WordAssignmentsWriter(file.getPath()));
+		assertEquals("d w z t\n0 0 0 -1\n0 1 0 -1\n1 2 0 -1\n",
+				new String(HDPGibbsSamplerTest.read(file), "UTF-8"));
+		assertEquals(2, hdp.getTotalNumberOfTables());
+		assertEquals(1, hdp.getModel().getNumberOfTopics());
+	}
+}
@@ -0,0 +1,47 @@
+package de.uni_leipzig.informatik.asv.hdp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeNotNull;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class FKernelTest {
+
+	/** Without -Dhdp.vector=true the results do not depend on the CPU */
+	@Test
+	public void testScalarByDefault() {
+		assertEquals(FKernel.class, FKernel.create().getClass());
+	}
+
+	/**
+	 * The vectorized kernel, if the module is there, computes what the scalar
+	 * loop does, for K below, at and beyond the vector width
+	 */
+	@Test
+	public void testMatchesScalar() {
+		FKernel scalar = new FKernel(), kernel = FKernel.vector();
+		assumeNotNull(kernel);
+		Random random = new Random(42);
+		for (int K = 0; K < 40; K++) {
+			int offset = random.nextInt(10);
+			int[] termCounts = new int[offset + K];
+			int[] wordCountByTopic = new int[K], numberOfTablesByTopic = new int[K];
+			for (int k = 0; k < K; k++) {
+				termCounts[offset + k] = random.nextInt(20);
+				wordCountByTopic[k] = termCounts[offset + k]
+						+ random.nextInt(1000);
+				numberOfTablesByTopic[k] = random.nextInt(30);
+			}
+			double[] expected = new double[K], f = new double[K];
+			double fNew = scalar.f(0.1, termCounts, offset, wordCountByTopic,
+					numberOfTablesByTopic, 0.5, 50, expected, K);
+			assertEquals(fNew, kernel.f(0.1, termCounts, offset,
+					wordCountByTopic, numberOfTablesByTopic, 0.5, 50, f, K),
+					1e-12 * fNew);
+			for (int k = 0; k < K; k++)
+				assertEquals(expected[k], f[k], 0);
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package de.uni_leipzig.informatik.asv.hdp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FastRandomTest {
+
+	@Test
+	public void testSeedAndCheckpoint() throws Exception {
+		FastRandom a = new FastRandom(42), b = new FastRandom(42);
+		for (int i = 0; i < 1000; i++)
+			assertEquals(a.nextLong(), b.nextLong());
+		// continues from the saved state, as after a resume
+		FastRandom c = new FastRandom(a.getS0(), a.getS1());
+		for (int i = 0; i < 1000; i++)
+			assertEquals(a.nextDouble(), c.nextDouble(), 0.0);
+		a.setSeed(7);
+		b.setSeed(7);
+		assertEquals(a.nextInt(), b.nextInt());
+		assertTrue(a.split().nextLong() != a.nextLong());
+	}
+
+	@Test
+	public void testUniform() {
+		FastRandom random = new FastRandom(42);
+		int[] counts = new int[10];
+		double sum = 0.0;
+		for (int i = 0; i < 100000; i++) {
+			double u = random.nextDouble();
+			assertTrue(u >= 0.0 && u < 1.0);
+			sum += u;
+			counts[random.nextInt(counts.length)]++;
+		}
+		assertEquals(0.5, sum / 100000, 0.01);
+		for (int count : counts)
+			assertEquals(10000, count, 500);
+	}
+}
@@ -0,0 +1,663 @@
+package de.uni_leipzig.informatik.asv.hdp;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.uni_leipzig.informatik.asv.hdp.HDPGibbsSampler.CountStorage;
+import de.uni_leipzig.informatik.asv.hdp.HDPGibbsSampler.Doc;
+import de.uni_leipzig.informatik.asv.hdp.HDPGibbsSampler.SamplingMethod;
+import de.uni_leipzig.informatik.asv.utils.CLDACorpus;
+import de.uni_leipzig.informatik.asv.utils.TopicsWriter;
+import de.uni_leipzig.informatik.asv.utils.WordAssignmentsWriter;
+
+public class HDPGibbsSamplerTest {
+
+	static final int ITERATIONS = 300, BURN_IN = 150;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Trains on the same corpus with the exact and the alias sampler and
+	 * compares the average number of tables after burn-in.
+	 */
+	@Test
+	public void testAliasConvergesLikeDense() throws Exception {
+		double dense = averages(SamplingMethod.DENSE)[0];
+		double alias = averages(SamplingMethod.ALIAS)[0];
+		assertEquals(dense, alias, 0.25 * dense);
+	}
+
+	/**
+	 * The sparse sampler walks the non-zero topics of a term and caches the
+	 * smoothing mass, but must draw from the same distribution as the dense
+	 * one: the average number of tables and log-likelihood after burn-in
+	 * must agree.
+	 */
+	@Test
+	public void testSparseConvergesLikeDense() throws Exception {
+		double[] dense = averages(SamplingMethod.DENSE);
+		double[] sparse = averages(SamplingMethod.SPARSE);
+		assertEquals(dense[0], sparse[0], 0.25 * dense[0]);
+		assertEquals(dense[1], sparse[1], -0.02 * dense[1]);
+	}
+
+	/**
+	 * @return the average number of tables and log-likelihood of a seeded
+	 *         run after burn-in
+	 */
+	static double[] averages(SamplingMethod method) throws Exception {
+		CLDACorpus corpus = new CLDACorpus(
+				CLDACorpus.class.getResourceAsStream("corpus2.lda-c"));
+		HDPGibbsSampler hdp = new HDPGibbsSampler(42);
+		hdp.setSamplingMethod(method);
+		hdp.addInstances(corpus.getDocuments(), corpus.getVocabularySize());
+		PrintStream log = new PrintStream(new ByteArrayOutputStream());
+		double tables = 0.0, logLikelihood = 0.0;
+		for (int iter = 0; iter < ITERATIONS; iter++) {
+			hdp.train(0, 1, log);
+			if (iter >= BURN_IN) {
+				tables += hdp.getTotalNumberOfTables();
+				logLikelihood += hdp.logLikelihood();
+			}
+		}
+		return new double[] { tables / (ITERATIONS - BURN_IN),
+				logLikelihood / (ITERATIONS - BURN_IN) };
+	}
+
+	/**
+	 * Runs 10 iterations at once, and 5 iterations then 5 more resumed from
+	 * the checkpoint; both must end in the same state.
+	 */
+	@Test
+	public void testResumeIsIdentical() throws Exception {
+		CLDACorpus corpus = new CLDACorpus(
+				CLDACorpus.class.getResourceAsStream("corpus2.lda-c"));
+		PrintStream log = new PrintStream(new ByteArrayOutputStream());
+		for (SamplingMethod method : SamplingMethod.values()) {
+			File once = folder.newFile();
+			File interrupted = folder.newFile();
+			File resumed = folder.newFile();
+			HDPGibbsSampler hdp = new HDPGibbsSampler(42);
+			hdp.setSamplingMethod(method);
+			hdp.setResampleConcentrations(true, 2);
+			hdp.addInstances(corpus.getDocuments(), corpus.getVocabularySize());
+			hdp.setCheckpoint(once, 5);
+			hdp.train(3, 10, log);
+
+			hdp = new HDPGibbsSampler(42);
+			hdp.setSamplingMethod(method);
+			hdp.setResampleConcentrations(true, 2);
+			hdp.addInstances(corpus.getDocuments(), corpus.getVocabularySize());
+			hdp.setCheckpoint(interrupted, 5);
+			hdp.train(3, 5, log);
+
+			hdp = new HDPGibbsSampler();
+			hdp.setSamplingMethod(method);
+			hdp.setResampleConcentrations(true, 2);
+			hdp.resume(interrupted);
+			hdp.setCheckpoint(resumed, 5);
+			hdp.train(3, 10, log);
+			assertArrayEquals(method.toString(), read(once), read(resumed));
+		}
+	}
+
+	/**
+	 * All stores of the topic-term counts hold the same numbers, so the
+	 * samplers that do not walk the lists of non-zero topics must draw
+	 * exactly the same, also when replicas are merged several times per sweep.
+	 * The stores that share a {@link TermTopicIndex} list the topics in the
+	 * same order, so for them this holds for the sparse sampler too.
+	 */
+	@Test
+	public void testCountStoragesAreIdentical() throws Exception {
+		CLDACorpus corpus = new CLDACorpus(
+				CLDACorpus.class.getResourceAsStream("corpus2.lda-c"));
+		PrintStream log = new PrintStream(new ByteArrayOutputStream());
+		for (SamplingMethod method : asList(SamplingMethod.DENSE,
+				SamplingMethod.ALIAS, SamplingMethod.SPARSE))
+			for (int threads = 1; threads <= 3; threads += 2) {
+				CountStorage[] storages = { CountStorage.DENSE,
+						CountStorage.COMPACT, CountStorage.TERM_MAJOR,
+						CountStorage.SPARSE };
+				if (method == SamplingMethod.SPARSE)
+					storages = Arrays.copyOf(storages, storages.length - 1);
+				File[] checkpoints = new File[storages.length];
+				for (int i = 0; i < storages.length; i++) {
+					checkpoints[i] = folder.newFile();
+					HDPGibbsSampler hdp = new HDPGibbsSampler(42);
+					hdp.setSamplingMethod(method);
+					hdp.setCountStorage(storages[i]);
+					hdp.addInstances(corpus.getDocuments(),
+							corpus.getVocabularySize());
+					hdp.setCheckpoint(checkpoints[i], 10);
+					hdp.train(3, 10, threads, 2, log);
+				}
+				for (int i = 1; i < storages.length; i++)
+					assertArrayEquals(method + " " + threads + " "
+							+ storages[i], read(checkpoints[0]),
+							read(checkpoints[i]));
+			}
+	}
+
+	/**
+	 * After sequential and parallel sweeps, merged once per sweep or every
+	 * few documents, the counts must be those of the words' assignments, and
+	 * the workers' lists of non-zero topics those of their counts
+	 */
+	@Test
+	public void testParallelCountsMatchAssignments() throws Exception {
+		CLDACorpus corpus = new CLDACorpus(
+				CLDACorpus.class.getResourceAsStream("corpus2.lda-c"));
+		int V = corpus.getVocabularySize();
+		PrintStream log = new PrintStream(new ByteArrayOutputStream());
+		for (SamplingMethod method : SamplingMethod.values())
+			for (int threads = 1; threads <= 3; threads += 2)
+				for (int syncInterval : new int[] { 0, 2 }) {
+					String name = method + " " + threads + " " + syncInterval;
+					HDPGibbsSampler hdp = new HDPGibbsSampler(42);
+					hdp.setSamplingMethod(method);
+					hdp.addInstances(corpus.getDocuments(), V);
+					hdp.train(3, 10, threads, syncInterval, log);
+
+					int K = hdp.getNumberOfTopics(), tables = 0;
+					int[][] counts = new int[K][V];
+					for (Doc doc : hdp.docs) {
+						int[] wordCountByTable = new int[doc.numberOfTables];
+						for (int wi = 0; wi < doc.documentLength; wi++) {
+							int t = hdp.tableAssignments.get(doc.offset + wi);
+							wordCountByTable[t]++;
+							counts[doc.tableToTopic[t]][hdp.termIndices
+									.get(doc.offset + wi)]++;
+						}
+						for (int t = 0; t < doc.numberOfTables; t++) {
+							assertEquals(name, wordCountByTable[t],
+									doc.wordCountByTable[t]);
+							if (wordCountByTable[t] > 0)
+								tables++;
+						}
+					}
+					assertEquals(name, tables, hdp.getTotalNumberOfTables());
+					File expected = folder.newFile(), actual = folder.newFile();
+					new TopicsWriter(expected.getPath(),
+							TopicsWriter.Format.BINARY)
+							.writeWordCountByTopicAndTerm(counts, K, V);
+					hdp.writeTopics(new TopicsWriter(actual.getPath(),
+							TopicsWriter.Format.BINARY));
+					assertArrayEquals(name, read(expected), read(actual));
+					for (HDPGibbsSampler.Worker worker : hdp.workers) {
+						TopicTermCounts replica = worker.wordCountByTopicAndTerm;
+						if (!replica.isIndexed())
+							continue;
+						for (int v = 0; v < V; v++) {
+							int nonZero = 0;
+							for (int k = 0; k < worker.numberOfTopics; k++)
+								if (replica.get(k, v) > 0)
+									nonZero++;
+							assertEquals(name, nonZero, replica.size(v));
+							for (int i = 0; i < replica.size(v); i++)
+								assertTrue(name,
+										replica.get(replica.topics(v)[i], v) > 0);
+						}
+					}
+				}
+	}
+
+	/**
+	 * Shuffles with one and with three threads, in full and in blocks; both
+	 * must give the same permutation of the documents and of their words.
+	 */
+	@Test
+	public void testShuffleIsIndependentOfThreads() throws Exception {
+		CLDACorpus corpus = new CLDACorpus(
+				CLDACorpus.class.getResourceAsStream("corpus2.lda-c"));
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			for (int blockSize : new int[] { 0, 3 }) {
+				String[] shuffled = new String[2];
+				for (int threads = 1; threads <= 3; threads += 2) {
+					HDPGibbsSampler hdp = new HDPGibbsSampler(42);
+					hdp.setShuffleBlockSize(blockSize);
+					hdp.addInstances(corpus.getDocuments(),
+							corpus.getVocabularySize());
+					for (int i = 0; i < 3; i++)
+						hdp.shuffle(threads > 1 ? executor : null, threads);
+					StringBuilder words = new StringBuilder();
+					for (Doc doc : hdp.docs) {
+						int[] terms = new int[doc.documentLength];
+						for (int wi = 0; wi < doc.documentLength; wi++)
+							terms[wi] = hdp.termIndices.get(doc.offset + wi);
+						words.append(doc.id).append(Arrays.toString(terms));
+						Arrays.sort(terms);
+						assertArrayEquals(sorted(corpus.getDocuments()[doc.id]),
+								terms);
+					}
+					shuffled[threads / 2] = words.toString();
+				}
+				assertEquals(shuffled[0], shuffled[1]);
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	static int[] sorted(int[] terms) {
+		int[] sorted = terms.clone();
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	/**
+	 * Reports metrics with a held-out evaluation every 5 iterations; the
+	 * log-likelihood must not depend on how the counts are stored.
+	 */
+	@Test
+	public void testTrainingMetrics() throws Exception {
+		CLDACorpus corpus = new CLDACorpus(
+				CLDACorpus.class.getResourceAsStream("corpus2.lda-c"));
+		PrintStream log = new PrintStream(new ByteArrayOutputStream());
+		for (int i = 0; i < 2; i++) {
+			HDPGibbsSampler hdp = new HDPGibbsSampler(42);
+			hdp.setCountStorage(i == 0 ? CountStorage.DENSE
+					: CountStorage.SPARSE);
+			hdp.addInstances(corpus.getDocuments(), corpus.getVocabularySize());
+			final List<TrainingMetrics> metrics = new ArrayList<TrainingMetrics>();
+			hdp.addTrainingListener(new TrainingListener() {
+				public void iterationCompleted(TrainingMetrics m) {
+					metrics.add(m);
+				}
+			});
+			ByteArrayOutputStream csv = new ByteArrayOutputStream();
+			hdp.addTrainingListener(new MetricsWriter(new PrintStream(csv),
+					MetricsWriter.Format.CSV));
+			hdp.setHeldOut(Arrays.copyOf(corpus.getDocuments(), 10), 5, 10);
+			hdp.train(0, 20, 1 + i, 0, log);
+
+			assertEquals(20, metrics.size());
+			for (int iter = 0; iter < 20; iter++) {
+				TrainingMetrics m = metrics.get(iter);
+				assertEquals(iter, m.getIteration());
+				assertEquals(iter % 5 == 4,
+						!Double.isNaN(m.getHeldOutPerplexity()));
+				assertTrue(m.getWordsPerSecond() > 0);
+				assertTrue(m.getSampleTableNanosPerWord() > 0);
+			}
+			assertTrue(metrics.get(19).getLogLikelihood() < 0);
+			assertTrue(metrics.get(19).getHeldOutPerplexity() < metrics.get(4)
+					.getHeldOutPerplexity());
+			String[] lines = csv.toString().split("\n");
+			assertEquals(21, lines.length);
+			assertTrue(lines[0].startsWith("iteration,"));
+		}
+
+		// the same state, summed over the matrix and over the sparse lists
+		double[] logLikelihoods = new double[2];
+		for (int i = 0; i < 2; i++) {
+			HDPGibbsSampler hdp = new HDPGibbsSampler(42);
+			hdp.setCountStorage(i == 0 ? CountStorage.DENSE
+					: CountStorage.SPARSE);
+			hdp.addInstances(corpus.getDocuments(), corpus.getVocabularySize());
+			hdp.train(0, 5, log);
+			logLikelihoods[i] = hdp.logLikelihood();
+		}
+		assertEquals(logLikelihoods[0], logLikelihoods[1], 1e-6);
+	}
+
+	/**
+	 * Stops once the statistics level off, and only compares whole windows
+	 */
+	@Test
+	public void testConvergence() throws Exception {
+		ConvergenceMonitor monitor = new ConvergenceMonitor(2, 3, 0.1);
+		for (int i = 0; i < 5; i++)
+			assertFalse(monitor.add(100.0, -1000.0 + i));
+		assertTrue(monitor.add(100.0, -1000.0));
+		assertFalse(monitor.add(200.0, -1000.0));
+
+		CLDACorpus corpus = new CLDACorpus(
+				CLDACorpus.class.getResourceAsStream("corpus2.lda-c"));
+		PrintStream log = new PrintStream(new ByteArrayOutputStream());
+		HDPGibbsSampler hdp = new HDPGibbsSampler(42);
+		hdp.addInstances(corpus.getDocuments(), corpus.getVocabularySize());
+		TrainingResult result = hdp.train(0, 5, log);
+		assertEquals(TrainingResult.StopReason.MAX_ITERATIONS,
+				result.getStopReason());
+		assertEquals(5, result.getIterations());
+		hdp.setConvergence(10, 0.05);
+		result = hdp.train(0, 1000, log);
+		assertEquals(TrainingResult.StopReason.CONVERGED,
+				result.getStopReason());
+		assertTrue(result.getIterations() >= 20 && result.getIterations() < 1000);
+	}
+
+	/**
+	 * The files written in the background during training must equal those
+	 * written from the state afterwards
+	 */
+	@Test
+	public void testOutput() throws Exception {
+		CLDACorpus corpus = new CLDACorpus(
+				CLDACorpus.class.getResourceAsStream("corpus2.lda-c"));
+		PrintStream log = new PrintStream(new ByteArrayOutputStream());
+		for (CountStorage storage : asList(CountStorage.DENSE,
+				CountStorage.SPARSE)) {
+			File topics = folder.newFile(), assignments = folder.newFile();
+			File topics2 = folder.newFile(), assignments2 = folder.newFile();
+			HDPGibbsSampler hdp = new HDPGibbsSampler(42);
+			hdp.setCountStorage(storage);
+			hdp.addInstances(corpus.getDocuments(), corpus.getVocabularySize());
+			hdp.setOutput(new TopicsWriter(topics.getPath(),
+					TopicsWriter.Format.SPARSE), new WordAssignmentsWriter(
+					assignments.getPath(), WordAssignmentsWriter.Format.BINARY),
+					5);
+			hdp.train(3, 10, log);
+			hdp.writeTopics(new TopicsWriter(topics2.getPath(),
+					TopicsWriter.Format.SPARSE));
+			hdp.writeWordAssignments(new WordAssignmentsWriter(assignments2
+					.getPath(), WordAssignmentsWriter.Format.BINARY));
+			assertArrayEquals(read(topics2), read(topics));
+			assertArrayEquals(read(assignments2), read(assignments));
+			int words = 0;
+			for (int[] document : corpus.getDocuments())
+				words += document.length;
+			assertEquals(8 + 16 * words, assignments.length());
+		}
+	}
+
+	/**
+	 * Moving whole tables between topics must keep the counts consistent
+	 * with the words' assignments, which a resume counts afresh
+	 */
+	@Test
+	public void testResampleTableTopics() throws Exception {
+		CLDACorpus corpus = new CLDACorpus(
+				CLDACorpus.class.getResourceAsStream("corpus2.lda-c"));
+		PrintStream log = new PrintStream(new ByteArrayOutputStream());
+		for (SamplingMethod method : SamplingMethod.values())
+			for (int threads = 1; threads <= 2; threads++) {
+				File checkpoint = folder.newFile();
+				HDPGibbsSampler hdp = new HDPGibbsSampler(42);
+				hdp.setSamplingMethod(method);
+				hdp.setResampleTableTopics(true);
+				hdp.addInstances(corpus.getDocuments(),
+						corpus.getVocabularySize());
+				hdp.setCheckpoint(checkpoint, 20);
+				hdp.train(3, 20, threads, 0, log);
+
+				HDPGibbsSampler resumed = new HDPGibbsSampler();
+				resumed.resume(checkpoint);
+				assertEquals(hdp.getNumberOfTopics(),
+						resumed.getNumberOfTopics());
+				assertEquals(hdp.getTotalNumberOfTables(),
+						resumed.getTotalNumberOfTables());
+				assertEquals(method + " " + threads, resumed.logLikelihood(),
+						hdp.logLikelihood(), 1e-6);
+			}
+	}
+
+	/**
+	 * Grouped words must stay grouped through the shuffles, and reusing f[]
+	 * must keep the counts consistent with the words' assignments
+	 */
+	@Test
+	public void testGroupTerms() throws Exception {
+		CLDACorpus corpus = new CLDACorpus(
+				CLDACorpus.class.getResourceAsStream("corpus2.lda-c"));
+		PrintStream log = new PrintStream(new ByteArrayOutputStream());
+		for (int threads = 1; threads <= 2; threads++) {
+			File checkpoint = folder.newFile();
+			HDPGibbsSampler hdp = new HDPGibbsSampler(42);
+			hdp.setGroupTerms(true);
+			hdp.addInstances(corpus.getDocuments(), corpus.getVocabularySize());
+			hdp.shuffle(); // ungrouped, train() groups them
+			hdp.setCheckpoint(checkpoint, 20);
+			hdp.train(1, 20, threads, 0, log);
+			for (Doc doc : hdp.docs) {
+				int[] terms = new int[doc.documentLength];
+				Set<Integer> seen = new HashSet<Integer>();
+				for (int wi = 0; wi < doc.documentLength; wi++) {
+					terms[wi] = hdp.termIndices.get(doc.offset + wi);
+					if (wi > 0 && terms[wi] != terms[wi - 1])
+						assertTrue(seen.add(terms[wi - 1]));
+				}
+				if (terms.length > 0)
+					assertTrue(seen.add(terms[terms.length - 1]));
+				Arrays.sort(terms);
+				assertArrayEquals(sorted(corpus.getDocuments()[doc.id]), terms);
+			}
+
+			HDPGibbsSampler resumed = new HDPGibbsSampler();
+			resumed.resume(checkpoint);
+			assertEquals(hdp.getTotalNumberOfTables(),
+					resumed.getTotalNumberOfTables());
+			assertEquals(resumed.logLikelihood(), hdp.logLikelihood(), 1e-6);
+		}
+	}
+
+	/**
+	 * Documents appended to a trained model, with terms beyond its
+	 * vocabulary, must be counted consistently by every store and by the
+	 * training that follows
+	 */
+	@Test
+	public void testAppendInstances() throws Exception {
+		CLDACorpus corpus = new CLDACorpus(
+				CLDACorpus.class.getResourceAsStream("corpus2.lda-c"));
+		int[][] documents = corpus.getDocuments();
+		int half = documents.length / 2, V = 0;
+		int[][] first = Arrays.copyOf(documents, half);
+		int[][] second = Arrays.copyOfRange(documents, half, documents.length);
+		for (int[] document : first)
+			for (int term : document)
+				V = Math.max(V, term + 1);
+		assertTrue(V < corpus.getVocabularySize());
+		PrintStream log = new PrintStream(new ByteArrayOutputStream());
+		for (CountStorage storage : CountStorage.values())
+			for (int threads = 1; threads <= 2; threads++) {
+				File checkpoint = folder.newFile();
+				HDPGibbsSampler hdp = new HDPGibbsSampler(42);
+				hdp.setCountStorage(storage);
+				hdp.addInstances(first, V);
+				hdp.train(1, 10, log);
+				hdp.appendInstances(second, corpus.getVocabularySize(), 3);
+				assertEquals(documents.length, hdp.docs.length);
+				hdp.setCheckpoint(checkpoint, 15);
+				hdp.train(1, 15, threads, 0, log);
+
+				HDPGibbsSampler resumed = new HDPGibbsSampler();
+				resumed.resume(checkpoint);
+				assertEquals(hdp.getTotalNumberOfTables(),
+						resumed.getTotalNumberOfTables());
+				assertEquals(storage + " " + threads, resumed.logLikelihood(),
+						hdp.logLikelihood(), 1e-6);
+				for (Doc doc : resumed.docs) {
+					int[] terms = new int[doc.documentLength];
+					for (int wi = 0; wi < doc.documentLength; wi++)
+						terms[wi] = resumed.termIndices.get(doc.offset + wi);
+					Arrays.sort(terms);
+					assertArrayEquals(sorted(documents[doc.id]), terms);
+				}
+			}
+	}
+
+	/**
+	 * Many short documents and a large gamma create and empty topics all the
+	 * time. With compaction all but off, the topics on the free list must be
+	 * exactly those without words after every sweep; with compaction after
+	 * every sweep, the topics must be numbered without gaps.
+	 */
+	@Test
+	public void testFreeTopics() throws Exception {
+		Random random = new Random(42);
+		int[][] documents = new int[400][];
+		for (int d = 0; d < documents.length; d++) {
+			documents[d] = new int[1 + random.nextInt(10)];
+			for (int i = 0; i < documents[d].length; i++)
+				documents[d][i] = random.nextInt(1000);
+		}
+		for (SamplingMethod method : SamplingMethod.values())
+			for (double threshold : new double[] { 0, 0.99 }) {
+				HDPGibbsSampler hdp = new HDPGibbsSampler(42);
+				hdp.setSamplingMethod(method);
+				hdp.setGamma(100);
+				hdp.setCompactionThreshold(threshold);
+				hdp.addInstances(documents, 1000);
+				for (int iter = 0; iter < 100; iter++) {
+					hdp.gibbsSampling(); // train() defragments at its end
+					Set<Integer> topics = new HashSet<Integer>();
+					int maxTopic = -1;
+					for (Doc doc : hdp.docs)
+						for (int ti = 0; ti < doc.numberOfTables; ti++)
+							if (doc.wordCountByTable[ti] > 0) {
+								topics.add(doc.tableToTopic[ti]);
+								maxTopic = Math.max(maxTopic,
+										doc.tableToTopic[ti]);
+							}
+					String message = method + " " + threshold + " " + iter;
+					assertEquals(message, topics.size(), hdp.getNumberOfTopics());
+					if (threshold == 0)
+						assertEquals(message, topics.size(), maxTopic + 1);
+				}
+			}
+	}
+
+	/**
+	 * The top words kept up to date during training must equal those
+	 * computed from the counts afterwards
+	 */
+	@Test
+	public void testTopWords() throws Exception {
+		CLDACorpus corpus = new CLDACorpus(
+				CLDACorpus.class.getResourceAsStream("corpus2.lda-c"));
+		PrintStream log = new PrintStream(new ByteArrayOutputStream());
+		for (int threads = 1; threads <= 2; threads++) {
+			HDPGibbsSampler hdp = new HDPGibbsSampler(42);
+			hdp.addInstances(corpus.getDocuments(), corpus.getVocabularySize());
+			hdp.setTopWords(3, 2);
+			assertEquals(null, hdp.getTopWords());
+			for (int i = 0; i < 5; i++) {
+				hdp.train(0, 4, threads, 0, log);
+				TopTermsTest.assertTopWords(hdp.topWords(3),
+						hdp.getTopWords());
+			}
+			assertEquals(hdp.getNumberOfTopics(), hdp.getTopWords()
+					.getNumberOfTopics());
+		}
+	}
+
+	@Test
+	public void testRandomVariates() {
+		Random random = new Random(42);
+		for (double shape : new double[] { 0.5, 1.0, 7.5 }) {
+			double sum = 0.0;
+			for (int i = 0; i < 100000; i++)
+				sum += RandomVariates.gamma(random, shape);
+			assertEquals(shape, sum / 100000, 0.02 * shape);
+		}
+	}
+
+	/**
+	 * A job killed in the middle of a document while renumbering the words
+	 * to a new state must resume to the same counts, renumbering every word
+	 * exactly once
+	 */
+	@Test
+	public void testResumeInstances() throws Exception {
+		File directory = folder.newFolder();
+		MappedWordStore store = MappedWordStore.create(
+				CLDACorpus.class.getResourceAsStream("corpus2.lda-c"),
+				directory);
+		PrintStream log = new PrintStream(new ByteArrayOutputStream());
+		HDPGibbsSampler hdp = new HDPGibbsSampler(42);
+		hdp.addInstances(store);
+		hdp.train(3, 10, log);
+		int topics = hdp.getNumberOfTopics();
+		int tables = hdp.getTotalNumberOfTables();
+		double logLikelihood = hdp.logLikelihood();
+		int[] topicOfWord = new int[store.tables.length()];
+		for (Doc doc : hdp.docs)
+			for (int i = doc.offset; i < doc.offset + doc.documentLength; i++)
+				topicOfWord[i] = doc.tableToTopic[hdp.tableAssignments.get(i)];
+
+		// save a state that rotates the tables of every document
+		MappedWordStore.State state = store.readState();
+		MappedWordStore.State next = new MappedWordStore.State();
+		next.generation = state.generation + 1;
+		next.numberOfTopics = state.numberOfTopics;
+		next.ids = state.ids;
+		next.numberOfTables = state.numberOfTables;
+		next.tOldToTNew = new int[state.ids.length][];
+		next.tableToTopic = new int[state.ids.length][];
+		for (int i = 0; i < state.ids.length; i++) {
+			int n = state.numberOfTables[i];
+			next.tOldToTNew[i] = new int[n];
+			next.tableToTopic[i] = new int[n];
+			for (int t = 0; t < n; t++) {
+				next.tOldToTNew[i][t] = (t + 1) % n;
+				next.tableToTopic[i][(t + 1) % n] = state.tableToTopic[i][t];
+			}
+		}
+		store.save(next);
+
+		// and get killed after the first word of a document halfway through
+		int[] offsets = new int[store.documentLengths.length];
+		for (int d = 1; d < offsets.length; d++)
+			offsets[d] = offsets[d - 1] + store.documentLengths[d - 1];
+		int renumbered = 0, i = 0;
+		for (; renumbered < store.tables.length() / 2
+				|| store.documentLengths[state.ids[i]] < 2; i++)
+			for (int wi = 0; wi < store.documentLengths[state.ids[i]]; wi++) {
+				int w = offsets[state.ids[i]] + wi;
+				store.tables.set(w, next.tOldToTNew[i][store.tables.get(w)]);
+				renumbered++;
+			}
+		int w = offsets[state.ids[i]];
+		store.tables.set(w, next.tOldToTNew[i][store.tables.get(w)]);
+		store.setProgress(next.generation, renumbered + 1);
+		store.close();
+
+		store = MappedWordStore.open(directory);
+		HDPGibbsSampler resumed = new HDPGibbsSampler(42);
+		resumed.resumeInstances(store);
+		assertEquals(topics, resumed.getNumberOfTopics());
+		assertEquals(tables, resumed.getTotalNumberOfTables());
+		assertEquals(logLikelihood, resumed.logLikelihood(), 1e-6);
+		for (Doc doc : resumed.docs)
+			for (int j = doc.offset; j < doc.offset + doc.documentLength; j++)
+				assertEquals(topicOfWord[j],
+						doc.tableToTopic[resumed.tableAssignments.get(j)]);
+		resumed.train(3, 2, log);
+		store.close();
+	}
+
+	static byte[] read(File file) throws Exception {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			byte[] bytes = new byte[(int) in.length()];
+			in.readFully(bytes);
+			return bytes;
+		} finally {
+			in.close();
+		}
+	}
+}
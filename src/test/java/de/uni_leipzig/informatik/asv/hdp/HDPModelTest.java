@@ -0,0 +1,54 @@
+package de.uni_leipzig.informatik.asv.hdp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import de.uni_leipzig.informatik.asv.utils.CLDACorpus;
+
+public class HDPModelTest {
+
+	@Test
+	public void testInfer() throws Exception {
+		CLDACorpus corpus = new CLDACorpus(
+				CLDACorpus.class.getResourceAsStream("corpus2.lda-c"));
+		final int[][] docs = corpus.getDocuments();
+		HDPGibbsSampler hdp = new HDPGibbsSampler(42);
+		hdp.addInstances(docs, corpus.getVocabularySize());
+		hdp.train(0, 20, new PrintStream(new ByteArrayOutputStream()));
+		final HDPModel model = hdp.getModel();
+		assertEquals(hdp.getNumberOfTopics(), model.getNumberOfTopics());
+
+		double[][] expected = model.infer(docs, 10, new Random(1));
+		for (double[] theta : expected) {
+			double sum = 0.0;
+			for (double p : theta)
+				sum += p;
+			assertEquals(1.0, sum, 1e-9);
+		}
+
+		// the same results from several threads sharing the model
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		List<Future<double[][]>> results = new ArrayList<Future<double[][]>>();
+		for (int i = 0; i < 4; i++)
+			results.add(executor.submit(new Callable<double[][]>() {
+				public double[][] call() {
+					return model.infer(docs, 10, new Random(1));
+				}
+			}));
+		executor.shutdown();
+		for (Future<double[][]> result : results)
+			assertArrayEquals(expected, result.get());
+	}
+}
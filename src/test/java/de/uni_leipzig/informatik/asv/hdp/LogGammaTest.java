@@ -0,0 +1,19 @@
+package de.uni_leipzig.informatik.asv.hdp;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class LogGammaTest {
+
+	@Test
+	public void testLogGamma() {
+		assertEquals(0.0, LogGamma.logGamma(1.0), 1e-12);
+		assertEquals(0.5 * Math.log(Math.PI), LogGamma.logGamma(0.5), 1e-12);
+		assertEquals(Math.log(362880), LogGamma.logGamma(10.0), 1e-12);
+		assertEquals(4.599479878042, LogGamma.logGamma(0.01), 1e-10);
+		// beyond the table
+		assertEquals(LogGamma.logGamma(5000.5),
+				new LogGamma(0.5, 10).of(5000), 0.0);
+	}
+}
@@ -0,0 +1,86 @@
+package de.uni_leipzig.informatik.asv.hdp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import de.uni_leipzig.informatik.asv.utils.CLDACorpus;
+import de.uni_leipzig.informatik.asv.utils.CLDACorpusVocabulary;
+
+public class TopTermsTest {
+
+	static final int V = TopicTermCountsTest.V, K = TopicTermCountsTest.K,
+			N = 5;
+
+	/**
+	 * Random increments, offered like the sampler does, and decrements;
+	 * every incremental refresh must equal a full scan of the counts
+	 */
+	@Test
+	public void testIncrementalEqualsRescan() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			for (TopicTermCounts counts : TopicTermCountsTest.create()) {
+				Random random = new Random(42);
+				TopTerms topTerms = new TopTerms(N);
+				for (int i = 1; i <= 20000; i++) {
+					int k = random.nextInt(K);
+					// skewed, so that the top terms mostly hold
+					int v = Math.min(random.nextInt(V), random.nextInt(V));
+					if (counts.get(k, v) > 0 && random.nextInt(3) == 0)
+						counts.decrement(k, v);
+					else if (counts.increment(k, v) > topTerms.threshold(k))
+						topTerms.offer(k, v);
+					if (i % 250 == 0) {
+						if (i % 1000 == 0)
+							counts.index(K);
+						topTerms.refresh(counts, K, 0, i % 500 == 0 ? executor
+								: null, 2);
+						assertTopWords(rescan(counts), topTerms.publish());
+						counts.unindex();
+					}
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	static void assertTopWords(TopWords expected, TopWords actual) {
+		assertEquals(expected.getNumberOfTopics(), actual.getNumberOfTopics());
+		for (int k = 0; k < expected.getNumberOfTopics(); k++) {
+			assertArrayEquals(expected.getTerms(k), actual.getTerms(k));
+			assertArrayEquals(expected.getCounts(k), actual.getCounts(k));
+		}
+	}
+
+	static TopWords rescan(TopicTermCounts counts) {
+		TopTerms topTerms = new TopTerms(N);
+		topTerms.refresh(counts, K, 0, null, 1);
+		return topTerms.publish();
+	}
+
+	@Test
+	public void testWords() throws Exception {
+		CLDACorpusVocabulary vocabulary = new CLDACorpusVocabulary();
+		vocabulary.load(CLDACorpus.class
+				.getResourceAsStream("corpus1.lda-c.vocab"));
+		TopicTermCounts counts = TopicTermCounts.dense(3, 1);
+		counts.increment(0, 2);
+		counts.increment(0, 2);
+		counts.increment(0, 0);
+		counts.increment(0, 1);
+		TopTerms topTerms = new TopTerms(2);
+		topTerms.refresh(counts, 1, 0, null, 1);
+		TopWords topWords = topTerms.publish();
+		assertArrayEquals(new int[] { 2, 0 }, topWords.getTerms(0));
+		assertArrayEquals(new int[] { 2, 1 }, topWords.getCounts(0));
+		assertArrayEquals(new String[] { vocabulary.getWord(2),
+				vocabulary.getWord(0) }, topWords.getWords(0, vocabulary));
+	}
+}
@@ -0,0 +1,149 @@
+package de.uni_leipzig.informatik.asv.hdp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TopicTermCountsTest {
+
+	static final int V = 50, K = 6;
+
+	static TopicTermCounts[] create() {
+		return new TopicTermCounts[] { TopicTermCounts.dense(V, K),
+				TopicTermCounts.compact(V, K), TopicTermCounts.termMajor(V, K),
+				TopicTermCounts.sparse(V) };
+	}
+
+	/**
+	 * Random increments and decrements, with some counts far beyond what fits
+	 * into 16 bits, then a relabeling, against a plain matrix
+	 */
+	@Test
+	public void testCountsMatchMatrix() {
+		for (TopicTermCounts counts : create()) {
+			Random random = new Random(42);
+			int[][] expected = new int[K][V];
+			counts.index(K);
+			for (int i = 0; i < 600000; i++) {
+				int k = random.nextInt(K), v = random.nextInt(V);
+				if (i % 2 == 0) { // two heavy cells
+					k = 0;
+					v = i / 2 % 2;
+				}
+				if (expected[k][v] > 0 && random.nextInt(4) == 0)
+					assertEquals(--expected[k][v], counts.decrement(k, v));
+				else
+					assertEquals(++expected[k][v], counts.increment(k, v));
+			}
+			assertTrue(expected[0][1] > Character.MAX_VALUE);
+			while (expected[0][1] > Character.MAX_VALUE - 10)
+				// shrink a heavy cell below the escape again
+				assertEquals(--expected[0][1], counts.decrement(0, 1));
+			assertTrue(expected[0][0] > Character.MAX_VALUE);
+			assertCounts(expected, counts);
+
+			// empty topic 2 and drop it
+			for (int v = 0; v < V; v++)
+				while (expected[2][v] > 0)
+					assertEquals(--expected[2][v], counts.decrement(2, v));
+			int[] kOldToKNew = { 0, 1, -1, 2, 3, 4 };
+			counts.relabel(kOldToKNew, K, K - 1);
+			int[][] relabeled = new int[K][];
+			for (int k = 0; k < K; k++)
+				if (kOldToKNew[k] >= 0)
+					relabeled[kOldToKNew[k]] = expected[k];
+			relabeled[K - 1] = new int[V];
+			assertCounts(relabeled, counts);
+		}
+	}
+
+	/** Two replicas change the counts, the merge must add both changes */
+	@Test
+	public void testMerge() {
+		for (TopicTermCounts counts : create()) {
+			int[][] expected = new int[K][V];
+			for (int v = 0; v < V; v++) {
+				counts.increment(v % K, v);
+				expected[v % K][v]++;
+			}
+			TopicTermCounts[] replicas = { counts.copy(null, K),
+					counts.copy(null, K) };
+			replicas[0].increment(1, 7);
+			replicas[1].increment(1, 7);
+			replicas[1].decrement(3, 3);
+			replicas[0].increment(5, 49);
+			expected[1][7] += 2;
+			expected[3][3]--;
+			expected[5][49]++;
+			for (int slice = 0; slice < 2; slice++)
+				counts.merge(replicas, 2, slice, 2, K);
+			counts.index(K);
+			assertCounts(expected, counts);
+			for (TopicTermCounts replica : replicas) {
+				replica.index(K);
+				assertCounts(expected, replica);
+			}
+		}
+	}
+
+	/** New topics beyond the initial room start at zero, the old keep theirs */
+	@Test
+	public void testAddTopic() {
+		for (TopicTermCounts counts : create()) {
+			int[][] expected = new int[2 * K + 1][V];
+			for (int v = 0; v < V; v++) {
+				counts.increment(v % K, v);
+				expected[v % K][v]++;
+			}
+			counts.index(K);
+			for (int k = K; k <= 2 * K; k++) {
+				counts.addTopic(k);
+				counts.increment(k, k);
+				expected[k][k]++;
+			}
+			for (int k = 0; k <= 2 * K; k++)
+				for (int v = 0; v < V; v++)
+					assertEquals(expected[k][v], counts.get(k, v));
+		}
+	}
+
+	/** Growing the vocabulary keeps the counts, the new terms start at zero */
+	@Test
+	public void testWithVocabulary() {
+		for (TopicTermCounts counts : create()) {
+			for (int v = 0; v < V; v++)
+				counts.increment(v % K, v);
+			counts = counts.withVocabulary(V + 10);
+			assertEquals(V + 10, counts.sizeOfVocabulary);
+			assertEquals(1, counts.increment(0, V + 9));
+			counts.index(K);
+			for (int k = 0; k < K; k++)
+				for (int v = 0; v < V + 10; v++)
+					assertEquals(v < V ? (v % K == k ? 1 : 0)
+							: (v == V + 9 && k == 0 ? 1 : 0), counts.get(k, v));
+			assertEquals(1, counts.size(V + 9));
+			assertEquals(0, counts.size(V));
+		}
+	}
+
+	static void assertCounts(int[][] expected, TopicTermCounts counts) {
+		int[] term = new int[K];
+		for (int v = 0; v < V; v++) {
+			counts.getTerm(v, term, K);
+			int nonZero = 0;
+			for (int k = 0; k < K; k++) {
+				assertEquals(expected[k][v], counts.get(k, v));
+				assertEquals(expected[k][v], term[k]);
+				if (expected[k][v] > 0)
+					nonZero++;
+			}
+			assertEquals(nonZero, counts.size(v));
+			for (int i = 0; i < counts.size(v); i++)
+				assertEquals(expected[counts.topics(v)[i]][v],
+						counts.countAt(v, i));
+		}
+	}
+}
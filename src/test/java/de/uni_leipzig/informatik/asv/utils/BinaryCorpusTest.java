@@ -0,0 +1,101 @@
+package de.uni_leipzig.informatik.asv.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BinaryCorpusTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void test() throws Exception {
+		for (int flags : new int[] { 0, BinaryCorpus.COMPRESSED }) {
+			File file = folder.newFile();
+			BinaryCorpus.write(new CLDACorpus(CLDACorpus.class
+					.getResourceAsStream("corpus1.lda-c")), file, flags);
+			BinaryCorpus corpus = new BinaryCorpus(file);
+
+			int[][] docs = corpus.getDocuments();
+			assertEquals(3, docs.length);
+			assertEquals(5, corpus.getVocabularySize());
+			assertEquals(12, corpus.getNumberOfWords());
+			assertArrayEquals(CLDACorpusTest.doc0, docs[0]);
+			assertArrayEquals(CLDACorpusTest.doc1, docs[1]);
+			assertArrayEquals(CLDACorpusTest.doc2, docs[2]);
+		}
+	}
+
+	@Test
+	public void testConvert() throws Exception {
+		CLDACorpus expected = new CLDACorpus(
+				CLDACorpus.class.getResourceAsStream("corpus2.lda-c"));
+		for (int flags : new int[] { 0, BinaryCorpus.COMPRESSED }) {
+			File file = folder.newFile();
+			BinaryCorpus.convert(
+					CLDACorpus.class.getResourceAsStream("corpus2.lda-c"),
+					file, flags);
+			BinaryCorpus corpus = new BinaryCorpus(file);
+			assertEquals(expected.getVocabularySize(),
+					corpus.getVocabularySize());
+			assertArrayEquals(expected.getDocuments(), corpus.getDocuments());
+		}
+	}
+
+	/** A stream that fails after some bytes leaves no file behind */
+	@Test
+	public void testConvertFails() throws Exception {
+		for (int flags : new int[] { 0, BinaryCorpus.COMPRESSED }) {
+			File file = new File(folder.getRoot(), "corpus" + flags);
+			InputStream is = new FilterInputStream(
+					CLDACorpus.class.getResourceAsStream("corpus2.lda-c")) {
+				private int remaining = 20000;
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					if (remaining <= 0)
+						throw new IOException("broken");
+					int n = super.read(b, off, Math.min(len, remaining));
+					remaining -= Math.max(n, 0);
+					return n;
+				}
+			};
+			try {
+				BinaryCorpus.convert(is, file, flags);
+				fail();
+			} catch (IOException e) {
+				assertEquals("broken", e.getMessage());
+			}
+			assertFalse(file.exists());
+			assertFalse(new File(file.getPath() + ".tmp").exists());
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testCorruptVarint() throws Exception {
+		File file = folder.newFile();
+		BinaryCorpus.write(new int[][] { new int[6] }, 1, file,
+				BinaryCorpus.COMPRESSED);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(BinaryCorpus.HEADER_SIZE);
+			for (int i = 0; i < 6; i++)
+				raf.write(0xff);
+		} finally {
+			raf.close();
+		}
+		new BinaryCorpus(file);
+	}
+}
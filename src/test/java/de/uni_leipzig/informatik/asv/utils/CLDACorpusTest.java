@@ -3,6 +3,7 @@ package de.uni_leipzig.informatik.asv.utils;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
+import java.io.File;
 import java.io.InputStream;
 
 import org.junit.Test;
@@ -38,6 +39,34 @@ public class CLDACorpusTest {
 		assertEquals(2, corpus.getDocuments().length);
 	}
 
+	@Test
+	public void testMalformedLines() throws Exception {
+		InputStream is = CLDACorpus.class.getResourceAsStream("corpus3.lda-c");
+		CLDACorpus corpus = new CLDACorpus(is);
+
+		int[][] docs = corpus.getDocuments();
+		assertEquals(3, docs.length);
+		assertEquals(4, corpus.getNumberOfMalformedLines());
+		assertEquals(2, corpus.getFirstMalformedLine());
+		assertArrayEquals(doc0, docs[0]);
+		assertArrayEquals(new int[] { 4, 4 }, docs[1]);
+		assertArrayEquals(new int[] { 3, 3, 1 }, docs[2]);
+	}
+
+	@Test
+	public void testParallel() throws Exception {
+		File file = new File(CLDACorpus.class.getResource("corpus2.lda-c")
+				.toURI());
+		CLDACorpus corpus = new CLDACorpus(
+				CLDACorpus.class.getResourceAsStream("corpus2.lda-c"));
+		for (int threads = 1; threads <= 4; threads++) {
+			CLDACorpus parallel = new CLDACorpus(file, threads);
+			assertEquals(corpus.getVocabularySize(),
+					parallel.getVocabularySize());
+			assertArrayEquals(corpus.getDocuments(), parallel.getDocuments());
+		}
+	}
+
 	@Test
 	public void testVocab() throws Exception {
 		InputStream is = CLDACorpusVocabulary.class
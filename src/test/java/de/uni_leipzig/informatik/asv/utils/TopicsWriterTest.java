@@ -0,0 +1,112 @@
+package de.uni_leipzig.informatik.asv.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TopicsWriterTest {
+
+	static final int[][] COUNTS = { { 0, 3, 0, 123456, 7 }, { 0, 0, 0, 0, 0 },
+			{ 1, 0, 42, 0, 0 } };
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testTopics() throws Exception {
+		// as formatted before
+		File expected = folder.newFile();
+		PrintStream ps = new PrintStream(expected);
+		for (int[] topic : COUNTS) {
+			for (int count : topic)
+				ps.format("%05d ", count);
+			ps.println();
+		}
+		ps.close();
+		File file = folder.newFile();
+		new TopicsWriter(file.getPath()).writeWordCountByTopicAndTerm(COUNTS,
+				3, 5);
+		assertEquals(read(expected), read(file));
+
+		new TopicsWriter(file.getPath(), TopicsWriter.Format.SPARSE)
+				.writeWordCountByTopicAndTerm(COUNTS, 3, 5);
+		assertEquals("1:3 3:123456 4:7\n\n0:1 2:42\n", read(file));
+
+		new TopicsWriter(file.getPath(), TopicsWriter.Format.BINARY)
+				.writeWordCountByTopicAndTerm(COUNTS, 3, 5);
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		assertEquals(TopicsWriter.MAGIC, in.readInt());
+		assertEquals(TopicsWriter.VERSION, in.readInt());
+		int[][] counts = new int[in.readInt()][in.readInt()];
+		for (int[] topic : counts)
+			for (int n = in.readInt(); n > 0; n--)
+				topic[in.readInt()] = in.readInt();
+		assertEquals(-1, in.read());
+		in.close();
+		assertArrayEquals(COUNTS, counts);
+	}
+
+	/** A target that cannot be replaced reports the error, not a null */
+	@Test
+	public void testUnwritableTarget() throws Exception {
+		File dir = folder.newFolder();
+		assertTrue(new File(dir, "child").createNewFile());
+		try {
+			new TopicsWriter(dir.getPath())
+					.writeWordCountByTopicAndTerm(COUNTS, 3, 5);
+			fail();
+		} catch (IllegalStateException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+		assertTrue(dir.isDirectory());
+		assertFalse(new File(dir.getPath() + ".tmp").exists());
+	}
+
+	@Test
+	public void testWordAssignments() throws Exception {
+		File file = folder.newFile();
+		WordAssignmentsWriter writer = new WordAssignmentsWriter(
+				file.getPath());
+		writer.openForIteration();
+		writer.writeAssignment(0, 12, 3, 1);
+		writer.writeAssignment(1, 0, 10, 0);
+		writer.closeIteration();
+		assertEquals("d w z t\n0 12 3 1\n1 0 10 0\n", read(file));
+
+		writer = new WordAssignmentsWriter(file.getPath(),
+				WordAssignmentsWriter.Format.BINARY);
+		writer.openForIteration();
+		writer.writeAssignment(0, 12, 3, 1);
+		writer.closeIteration();
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		assertEquals(WordAssignmentsWriter.MAGIC, in.readInt());
+		assertEquals(WordAssignmentsWriter.VERSION, in.readInt());
+		for (int value : new int[] { 0, 12, 3, 1 })
+			assertEquals(value, in.readInt());
+		assertEquals(-1, in.read());
+		in.close();
+	}
+
+	static String read(File file) throws Exception {
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		StringBuilder text = new StringBuilder();
+		for (String line; (line = reader.readLine()) != null;)
+			text.append(line).append('\n');
+		reader.close();
+		return text.toString();
+	}
+}